@@ -18,7 +18,6 @@ package bftsmart.clientsmanagement;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
-import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.tom.core.messages.TOMMessage;
@@ -43,9 +42,12 @@ public class ClientData {
 
     private int lastMessageDelivered = -1;
 
-    private RequestList pendingRequests = new RequestList();
+    private RequestWindow pendingRequests = new RequestWindow();
     //anb: new code to deal with client requests that arrive after their execution
-    private RequestList orderedRequests = new RequestList(5);
+    private RequestWindow orderedRequests = new RequestWindow(5);
+
+    private int proposeCursor = Integer.MIN_VALUE; // all the pending requests below this sequence number were already proposed
+    boolean ready = false; // the client is in the ready queue of the clients manager
 
     private Signature signatureVerificator = null;
     
@@ -81,11 +83,11 @@ public class ClientData {
         this.session = session;
     }
 
-    public RequestList getPendingRequests() {
+    public RequestWindow getPendingRequests() {
         return pendingRequests;
     }
 
-    public RequestList getOrderedRequests() {
+    public RequestWindow getOrderedRequests() {
         return orderedRequests;
     }
 
@@ -127,24 +129,56 @@ public class ClientData {
     public boolean removeOrderedRequest(TOMMessage request) {
         if(pendingRequests.remove(request)) {
             //anb: new code to deal with client requests that arrive after their execution
-            orderedRequests.addLast(request);
+            orderedRequests.add(request);
             return true;
         }
         return false;
     }
 
+    /**
+     * Marks as proposed the oldest pending request not yet proposed. Must be
+     * called holding the client lock.
+     *
+     * @return the request, or null if all the pending requests were proposed
+     */
+    TOMMessage proposeNext() {
+        TOMMessage request;
+        while ((request = pendingRequests.ceiling(proposeCursor)) != null) {
+            proposeCursor = request.getSequence() + 1;
+            if (!request.alreadyProposed) {
+                request.alreadyProposed = true;
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if some pending request was not proposed yet
+     */
+    boolean hasToPropose() {
+        TOMMessage request = pendingRequests.ceiling(proposeCursor);
+        while (request != null && request.alreadyProposed) {
+            request = pendingRequests.ceiling(request.getSequence() + 1);
+        }
+        return request != null;
+    }
+
+    /**
+     * Look for requests to propose from the oldest pending one again, after
+     * some of them stopped being proposed or the pending requests changed
+     */
+    void resetProposeCursor() {
+        proposeCursor = Integer.MIN_VALUE;
+    }
+
     public boolean removeRequest(TOMMessage request) {
 	lastMessageDelivered = request.getSequence();
 	boolean result = pendingRequests.remove(request);
         //anb: new code to deal with client requests that arrive after their execution
-        orderedRequests.addLast(request);
-
-	for(Iterator<TOMMessage> it = pendingRequests.iterator();it.hasNext();){
-		TOMMessage msg = it.next();
-		if(msg.getSequence()<request.getSequence()){
-			it.remove();
-		}
-	}
+        orderedRequests.add(request);
+
+	pendingRequests.removeBefore(request.getSequence());
 
     	return result;
     }
@@ -15,10 +15,10 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Set;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
@@ -29,11 +29,6 @@ import bftsmart.tom.util.TOMUtil;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.Random;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,14 +42,17 @@ public class ClientsManager {
 
     private ServerViewController controller;
     private RequestsTimer timer;
-    private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
+    private static final int SHARDS = 32; // number of stripes of the clients table, a power of two
+    private final Shard[] shards = new Shard[SHARDS];
+    private final AtomicInteger pending = new AtomicInteger(0); // requests pending and not yet proposed, in all stripes
+    private final Partition[] partitions; // the clients of each chain, when several chains order the requests
     private RequestVerifier verifier;
     
     //Used when the intention is to perform benchmarking with signature verification, but
     //without having to make the clients create one first. Useful to optimize resources
     private byte[] benchMsg = null;
     private byte[] benchSig = null;
-    private HashMap<String,Signature> benchEngines = new HashMap<>();
+    private ConcurrentHashMap<String,Signature> benchEngines = new ConcurrentHashMap<>();
     
     private ReentrantLock clientsLock = new ReentrantLock();
 
@@ -62,6 +60,15 @@ public class ClientsManager {
         this.controller = controller;
         this.timer = timer;
         this.verifier = verifier;
+
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+
+        partitions = new Partition[controller.getStaticConf().getInstances()];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
         
         if (controller.getStaticConf().getUseSignatures() == 2) {
             benchMsg = new byte []{3,5,6,7,4,3,5,6,4,7,4,1,7,7,5,4,3,1,4,85,7,5,7,3};
@@ -70,33 +77,104 @@ public class ClientsManager {
     }
 
     /**
-     * We are assuming that no more than one thread will access
-     * the same clientData during creation.
+     * The clients whose ID falls in one stripe of the clients table
+     */
+    private static class Shard {
+        final ConcurrentHashMap<Integer, ClientData> clients = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The clients whose requests are ordered by one chain
+     */
+    private static class Partition {
+        final AtomicInteger pending = new AtomicInteger(0); // requests pending and not yet proposed
+        final ConcurrentLinkedQueue<ClientData> readyClients = new ConcurrentLinkedQueue<>(); // clients with requests not yet proposed
+    }
+
+    private Partition partitionOf(int clientId) {
+        return partitions[getPartition(clientId)];
+    }
+
+    /**
+     * The chain ordering the requests of a client, when several chains order
+     * the requests in parallel
+     *
+     * @param clientId the ID of the client
+     * @return the index of the chain, below getNumPartitions()
+     */
+    public int getPartition(int clientId) {
+        return Math.floorMod(clientId, partitions.length);
+    }
+
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    private Shard shardOf(int clientId) {
+        return shards[getShard(clientId)];
+    }
+
+    /**
+     * The stripe of the clients table holding a client. Requests of clients
+     * in different stripes can be received in parallel without contention.
      *
+     * @param clientId the ID of the client
+     * @return the index of the stripe, below getNumShards()
+     */
+    public int getShard(int clientId) {
+        return clientId & (SHARDS - 1);
+    }
+
+    public int getNumShards() {
+        return SHARDS;
+    }
+
+    /**
+     * Accounts requests that became pending, or that stopped being pending
+     * or not yet proposed. Must be called holding the lock of their client.
+     */
+    private void addPending(ClientData clientData, int delta) {
+        pending.addAndGet(delta);
+        if (partitions.length > 1) {
+            partitionOf(clientData.getClientId()).pending.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Puts a client with requests to propose in the ready queue, unless it
+     * is already there. Must be called holding the lock of the client.
+     */
+    private void markReady(ClientData clientData) {
+        if (!clientData.ready) {
+            clientData.ready = true;
+            partitionOf(clientData.getClientId()).readyClients.offer(clientData);
+        }
+    }
+
+    /**
+     * Retrieves the data of a client, creating it on its first request. Only
+     * the stripe of the clients table holding the client is involved.
      *
      * @param clientId
      * @return the ClientData stored on the manager
      */
     public ClientData getClientData(int clientId) {
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        ClientData clientData = clientsData.get(clientId);
+        Shard shard = shardOf(clientId);
+        ClientData clientData = shard.clients.get(clientId);
 
         if (clientData == null) {
-            logger.debug("Creating new client data, client id=" + clientId);
-
-            //******* EDUARDO BEGIN **************//
-            clientData = new ClientData(clientId,
-                    (controller.getStaticConf().getUseSignatures() == 1)
-                    ? controller.getStaticConf().getPublicKey(clientId)
-                    : null);
-            //******* EDUARDO END **************//
-            clientsData.put(clientId, clientData);
+            clientData = shard.clients.computeIfAbsent(clientId, id -> {
+                logger.debug("Creating new client data, client id=" + id);
+
+                //******* EDUARDO BEGIN **************//
+                return new ClientData(id,
+                        (controller.getStaticConf().getUseSignatures() == 1)
+                        ? controller.getStaticConf().getPublicKey(id)
+                        : null);
+                //******* EDUARDO END **************//
+            });
         }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-
         return clientData;
     }
 
@@ -107,103 +185,97 @@ public class ClientsManager {
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
-        RequestList allReq = new RequestList();
-        
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        
-        List<Entry<Integer, ClientData>> clientsEntryList = new ArrayList<>(clientsData.entrySet().size());
-        clientsEntryList.addAll(clientsData.entrySet());
-        
-        if (controller.getStaticConf().getFairBatch()) // ensure fairness
-            Collections.shuffle(clientsEntryList);
+        return getPendingRequests(controller.getStaticConf().getMaxBatchSize());
+    }
 
-        logger.debug("Number of active clients: {}", clientsEntryList.size());
-        
-        for (int i = 0; true; i++) {
-                        
-            Iterator<Entry<Integer, ClientData>> it = clientsEntryList.iterator();
-            int noMoreMessages = 0;
-            
-            logger.debug("Fetching requests with internal index {}", i);
-            
-            while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
-                    && noMoreMessages < clientsEntryList.size()) {
+    /**
+     * Get pending requests in a round-robin way, taking turns among the
+     * clients that have requests not yet proposed, until the given number of
+     * requests is obtained. The clients are served in the order they became
+     * ready, and the next call continues from where this one stopped, so the
+     * cost depends on the size of the batch and not on the number of clients.
+     * In a fair batch each turn takes one request of the client; otherwise
+     * it takes all the requests of the client that still fit in the batch.
+     *
+     * @param maxSize the maximum number of requests to get
+     * @return the set of pending requests, at most maxSize
+     */
+    public RequestList getPendingRequests(int maxSize) {
+        RequestList allReq = new RequestList();
+        for (Partition partition : partitions) {
+            fetchPendingRequests(partition, allReq, maxSize);
+        }
+        return allReq;
+    }
 
-                ClientData clientData = it.next().getValue();
-                RequestList clientPendingRequests = clientData.getPendingRequests();
+    /**
+     * Get pending requests of the clients whose requests are ordered by one
+     * chain, in the same way as getPendingRequests(int)
+     *
+     * @param maxSize the maximum number of requests to get
+     * @param partition the chain
+     * @return the set of pending requests of the clients of the chain, at most maxSize
+     */
+    public RequestList getPendingRequests(int maxSize, int partition) {
+        RequestList allReq = new RequestList();
+        fetchPendingRequests(partitions[partition], allReq, maxSize);
+        return allReq;
+    }
 
-                clientData.clientLock.lock();
+    private void fetchPendingRequests(Partition partition, RequestList allReq, int maxSize) {
+        boolean fair = controller.getStaticConf().getFairBatch();
 
-                logger.debug("Number of pending requests for client {}: {}.", clientData.getClientId(), clientPendingRequests.size());
+        while (allReq.size() < maxSize) {
+            ClientData clientData = partition.readyClients.poll();
+            if (clientData == null) {
+                break;
+            }
 
-                /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-                TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            TOMMessage request;
+            while (allReq.size() < maxSize && (request = clientData.proposeNext()) != null) {
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
-                clientData.clientLock.unlock();
+                logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
 
-                if (request != null) {
-                    if(!request.alreadyProposed) {
-                        
-                        logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
-                        
-                        //this client have pending message
-                        request.alreadyProposed = true;
-                        allReq.addLast(request);
-                    }
-                } else {
-                    //this client don't have more pending requests
-                    noMoreMessages++;
+                addPending(clientData, -1);
+                allReq.addLast(request);
+                if (fair) {
+                    break;
                 }
             }
-            
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
-                    noMoreMessages == clientsEntryList.size()) {
-                
-                break;
+
+            if (clientData.hasToPropose()) {
+                partition.readyClients.offer(clientData); // wait for its next turn
+            } else {
+                clientData.ready = false;
             }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
         }
-        
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return allReq;
+
+        logger.debug("Fetched {} pending requests", allReq.size());
     }
 
     /**
-     * We've implemented some protection for individual client
-     * data, but the clients table can change during the operation.
+     * Reads the counter of requests pending and not yet proposed, so no
+     * client data is locked.
      *
      * @return true if there are some pending requests and false otherwise
      */
     public boolean havePendingRequests() {
-        boolean havePending = false;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext() && !havePending) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        havePending = true;
-                        break;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
-        }
+        return pending.get() > 0;
+    }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return havePending;
+    /**
+     * Reads the counter of requests pending and not yet proposed of the
+     * clients whose requests are ordered by one chain
+     *
+     * @param partition the chain
+     * @return true if those clients have some pending requests
+     */
+    public boolean havePendingRequests(int partition) {
+        return partitions.length == 1 ? havePendingRequests() : partitions[partition].pending.get() > 0;
     }
     
     /**
@@ -211,31 +283,7 @@ public class ClientsManager {
      * @return Number of pending requests
      */
     public int countPendingRequests() {
-        int count = 0;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext()) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        count++;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
-        }
-
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return count;
+        return pending.get();
     }
 
     /**
@@ -267,10 +315,81 @@ public class ClientsManager {
         return pendingMessage;
     }
 
+    /**
+     * Verifies if all the given requests are still pending, i.e., none of
+     * them was ordered since they were fetched.
+     *
+     * @param requests the requests fetched with getPendingRequests
+     * @return true if all the requests are pending
+     */
+    public boolean arePending(RequestList requests) {
+        for (TOMMessage request : requests) {
+            // the client of a prepared request is known, unless it was removed since
+            ClientData clientData = shardOf(request.getSender()).clients.get(request.getSender());
+            if (clientData == null) {
+                return false;
+            }
+
+            clientData.clientLock.lock();
+            boolean pending = clientData.getPendingRequests().getBySequence(request.getSequence()) == request;
+            clientData.clientLock.unlock();
+
+            if (!pending) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes requests fetched with getPendingRequests, but not proposed,
+     * available to the next batch again.
+     *
+     * @param requests the requests to release
+     */
+    public void releaseRequests(RequestList requests) {
+        for (TOMMessage request : requests) {
+            ClientData clientData = getClientData(request.getSender());
+
+            clientData.clientLock.lock();
+            // requests ordered in the meantime are no longer pending
+            if (request.alreadyProposed && clientData.getPendingRequests().getBySequence(request.getSequence()) == request) {
+                request.alreadyProposed = false;
+                addPending(clientData, 1);
+                clientData.resetProposeCursor();
+                markReady(clientData);
+            }
+            clientData.clientLock.unlock();
+        }
+    }
+
     public boolean requestReceived(TOMMessage request, boolean fromClient) {
         return requestReceived(request, fromClient, null);
     }
 
+    /**
+     * Looks for a request not yet delivered or recently delivered
+     *
+     * @param clientId the ID of the client
+     * @param sequence the sequence number of the request
+     * @return the request, or null if it was not received or is no longer kept
+     */
+    public TOMMessage getRequest(int clientId, int sequence) {
+        ClientData clientData = shardOf(clientId).clients.get(clientId);
+        if (clientData == null) {
+            return null;
+        }
+
+        clientData.clientLock.lock();
+        TOMMessage request = clientData.getPendingRequests().getBySequence(sequence);
+        if (request == null) {
+            request = clientData.getOrderedRequests().getBySequence(sequence);
+        }
+        clientData.clientLock.unlock();
+
+        return request;
+    }
+
     /**
      * Notifies the ClientsManager that a new request from a client arrived.
      * This method updates the ClientData of the client request.getSender().
@@ -333,7 +452,13 @@ public class ClientsManager {
             clientData.setLastMessageReceived(-1);
             clientData.setLastMessageDelivered(-1);
             clientData.getOrderedRequests().clear();
+            for (TOMMessage msg : clientData.getPendingRequests()) {
+                if (!msg.alreadyProposed) {
+                    addPending(clientData, -1);
+                }
+            }
             clientData.getPendingRequests().clear();
+            clientData.resetProposeCursor();
         }
 
         if ((clientData.getLastMessageReceived() == -1) || //first message received or new session (see above)
@@ -372,16 +497,22 @@ public class ClientsManager {
                 //insert it in the pending requests of this client
 
                 request.recvFromClient = fromClient;
-                clientData.getPendingRequests().add(request); 
-                clientData.setLastMessageReceived(request.getSequence());
-                clientData.setLastMessageReceivedTime(request.receptionTime);
+                if (clientData.getPendingRequests().add(request)) {
+                    addPending(clientData, 1);
+                    markReady(clientData);
+                    clientData.setLastMessageReceived(request.getSequence());
+                    clientData.setLastMessageReceivedTime(request.receptionTime);
+
+                    //create a timer for this message
+                    if (timer != null) {
+                        timer.watch(request);
+                    }
 
-                //create a timer for this message
-                if (timer != null) {
-                    timer.watch(request);
+                    accounted = true;
+                } else {
+                    //too far from the other pending requests of the client
+                    logger.warn("Message from client {} is too forward", clientData.getClientId());
                 }
-
-                accounted = true;
             } else {
                 
                 logger.warn("Message from client {} is invalid", clientData.getClientId());
@@ -430,13 +561,11 @@ public class ClientsManager {
      * @param requests the array of requests to account as ordered
      */
     public void requestsOrdered(TOMMessage[] requests) {
-        clientsLock.lock();
         logger.debug("Updating client manager");
         for (TOMMessage request : requests) {
             requestOrdered(request);
         }
         logger.debug("Finished updating client manager");
-        clientsLock.unlock();
     }
 
     /**
@@ -455,8 +584,11 @@ public class ClientsManager {
 
         clientData.clientLock.lock();
         /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+        TOMMessage pending = clientData.getPendingRequests().getBySequence(request.getSequence());
         if (!clientData.removeOrderedRequest(request)) {
             logger.debug("Request " + request + " does not exist in pending requests");
+        } else if (pending != null && !pending.alreadyProposed) {
+            addPending(clientData, -1);
         }
         clientData.setLastMessageDelivered(request.getSequence());
 
@@ -470,14 +602,24 @@ public class ClientsManager {
     
     public void clear() {
         clientsLock.lock();
-        clientsData.clear();
+        for (Shard shard : shards) {
+            shard.clients.clear();
+        }
+        for (Partition partition : partitions) {
+            partition.readyClients.clear();
+            partition.pending.set(0);
+        }
+        pending.set(0);
         clientsLock.unlock();
         logger.info("ClientsManager cleared.");
 
     }
     
     public int numClients() {
-        
-        return clientsData.size();
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.clients.size();
+        }
+        return count;
     }
 }
@@ -22,7 +22,8 @@ import java.util.ListIterator;
 import bftsmart.tom.core.messages.TOMMessage;
 
 /**
- * Extended LinkedList used to store pending requests issued by a client.
+ * Extended LinkedList used to store batches of requests. The requests
+ * pending for each client are kept in a RequestWindow.
  *
  * @author alysson
  */
@@ -0,0 +1,223 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * The requests of one client, indexed by sequence number. The requests are
+ * kept in a ring buffer covering the sequence numbers from the oldest to the
+ * newest request stored, so looking up, adding or removing a request by its
+ * sequence number takes constant time.
+ */
+public class RequestWindow implements Iterable<TOMMessage> {
+
+    public static final int MAX_SPAN = 1 << 16; // maximum distance between the oldest and the newest sequence number
+
+    private TOMMessage[] slots = new TOMMessage[8];
+    private int head = 0; // the lowest sequence number stored
+    private int tail = 0; // one past the highest sequence number stored
+    private int size = 0;
+    private int maxSize = Integer.MAX_VALUE;
+
+    public RequestWindow() {
+    }
+
+    /**
+     * @param maxSize the number of requests kept, the oldest ones are
+     * dropped once it is exceeded
+     */
+    public RequestWindow(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Stores a request
+     * @param msg the request
+     * @return false if a request with the same sequence number is already
+     * stored, if the request is more than MAX_SPAN sequence numbers away
+     * from the others, or if the window is full and the request is older
+     * than all the others, so it would be dropped right away
+     */
+    public boolean add(TOMMessage msg) {
+        int seq = msg.getSequence();
+        if (size > 0 && size >= maxSize && seq < head) {
+            return false;
+        }
+        if (size == 0) {
+            head = seq;
+            tail = seq;
+        }
+        int low = Math.min(head, seq);
+        int high = Math.max(tail, seq + 1);
+        if ((long) high - low > MAX_SPAN) {
+            return false;
+        }
+        if (seq >= head && seq < tail && slots[seq & (slots.length - 1)] != null) {
+            return false;
+        }
+        if (high - low > slots.length) {
+            resize(high - low);
+        }
+        slots[seq & (slots.length - 1)] = msg;
+        head = low;
+        tail = high;
+        size++;
+        if (size > maxSize) {
+            removeBySequence(head);
+        }
+        return true;
+    }
+
+    private void resize(int span) {
+        int capacity = slots.length;
+        while (capacity < span) {
+            capacity <<= 1;
+        }
+        TOMMessage[] resized = new TOMMessage[capacity];
+        for (int seq = head; seq < tail; seq++) {
+            resized[seq & (capacity - 1)] = slots[seq & (slots.length - 1)];
+        }
+        slots = resized;
+    }
+
+    public TOMMessage getBySequence(int sequence) {
+        if (sequence < head || sequence >= tail) {
+            return null;
+        }
+        return slots[sequence & (slots.length - 1)];
+    }
+
+    /**
+     * @param sequence a sequence number
+     * @return the stored request with the lowest sequence number greater
+     * than or equal to the given one, or null if there is none
+     */
+    public TOMMessage ceiling(int sequence) {
+        for (int seq = Math.max(sequence, head); seq < tail; seq++) {
+            TOMMessage msg = slots[seq & (slots.length - 1)];
+            if (msg != null) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    public TOMMessage removeBySequence(int sequence) {
+        TOMMessage msg = getBySequence(sequence);
+        if (msg == null) {
+            return null;
+        }
+        slots[sequence & (slots.length - 1)] = null;
+        size--;
+        if (size == 0) {
+            head = tail;
+        } else {
+            while (slots[head & (slots.length - 1)] == null) {
+                head++;
+            }
+            while (slots[(tail - 1) & (slots.length - 1)] == null) {
+                tail--;
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * Removes a request equal to the given one
+     * @param msg the request
+     * @return true if the request was stored
+     */
+    public boolean remove(TOMMessage msg) {
+        TOMMessage stored = getBySequence(msg.getSequence());
+        if (stored != null && stored.equals(msg)) {
+            removeBySequence(msg.getSequence());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the requests with a sequence number lower than the given one
+     * @param sequence the sequence number
+     */
+    public void removeBefore(int sequence) {
+        while (size > 0 && head < sequence) {
+            removeBySequence(head);
+        }
+    }
+
+    /**
+     * Looks for a request by its ID, which is not ordered as the sequence
+     * numbers, so all the requests may be visited
+     * @param id the ID of the request
+     * @return the request, or null
+     */
+    public TOMMessage getById(int id) {
+        for (TOMMessage msg : this) {
+            if (msg.getId() == id) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    public boolean contains(int id) {
+        return getById(id) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, null);
+        head = tail = size = 0;
+    }
+
+    /**
+     * @return an iterator over the requests, by sequence number
+     */
+    @Override
+    public Iterator<TOMMessage> iterator() {
+        return new Iterator<TOMMessage>() {
+            private TOMMessage next = ceiling(head);
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public TOMMessage next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                TOMMessage current = next;
+                next = current.getSequence() + 1 < tail ? ceiling(current.getSequence() + 1) : null;
+                return current;
+            }
+        };
+    }
+}
@@ -0,0 +1,120 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Checks the ring buffer of RequestWindow: sequence numbers wrapping around
+ * the buffer, requests added out of order and the eviction of the oldest
+ * requests.
+ *
+ * Usage: TestRequestWindow
+ */
+public class TestRequestWindow {
+
+    public static void main(String[] args) {
+        wraparound();
+        outOfOrder();
+        eviction();
+        span();
+        System.out.println("All RequestWindow checks passed");
+    }
+
+    // the window slides over many more sequence numbers than its buffer holds
+    private static void wraparound() {
+        RequestWindow window = new RequestWindow();
+        for (int seq = 0; seq < 6; seq++) {
+            check(window.add(request(seq)), "add " + seq);
+        }
+        for (int seq = 6; seq < 1000; seq++) {
+            check(window.add(request(seq)), "add " + seq);
+            check(window.removeBySequence(seq - 6).getSequence() == seq - 6, "remove " + (seq - 6));
+            check(window.size() == 6, "size after " + seq);
+        }
+        int expected = 994;
+        for (TOMMessage msg : window) {
+            check(msg.getSequence() == expected++, "iteration order");
+        }
+        check(expected == 1000, "iterated requests");
+        check(window.getBySequence(993) == null, "removed request");
+        check(window.getBySequence(999).getSequence() == 999, "newest request");
+        check(window.ceiling(0).getSequence() == 994, "ceiling below the window");
+    }
+
+    private static void outOfOrder() {
+        RequestWindow window = new RequestWindow();
+        int[] sequences = {50, 10, 70, 30, 20, 60, 40};
+        for (int seq : sequences) {
+            check(window.add(request(seq)), "add " + seq);
+        }
+        check(!window.add(request(30)), "duplicate sequence number");
+        check(window.size() == sequences.length, "size");
+        check(window.getBySequence(35) == null, "gap");
+        check(window.ceiling(35).getSequence() == 40, "ceiling in a gap");
+        int previous = -1;
+        for (TOMMessage msg : window) {
+            check(msg.getSequence() > previous, "iteration order");
+            previous = msg.getSequence();
+        }
+        window.removeBySequence(10);
+        window.removeBySequence(70);
+        check(window.ceiling(0).getSequence() == 20, "oldest after removals");
+        check(window.ceiling(61) == null, "newest after removals");
+        window.removeBefore(45);
+        check(window.size() == 2, "size after removeBefore");
+        check(window.ceiling(0).getSequence() == 50, "oldest after removeBefore");
+        check(window.add(request(5)), "add below the window");
+        check(window.ceiling(0).getSequence() == 5, "oldest after adding below the window");
+    }
+
+    private static void eviction() {
+        RequestWindow window = new RequestWindow(5);
+        for (int seq = 0; seq < 100; seq++) {
+            window.add(request(seq));
+            check(window.size() == Math.min(seq + 1, 5), "size after " + seq);
+        }
+        check(window.getBySequence(94) == null, "evicted request");
+        check(window.getBySequence(95) != null, "oldest kept request");
+        // a request older than the ones kept would be evicted right away
+        check(!window.add(request(90)), "old request rejected");
+        check(window.size() == 5 && window.getBySequence(90) == null, "old request not stored");
+        check(window.getBySequence(95) != null, "kept request after an old one");
+    }
+
+    private static void span() {
+        RequestWindow window = new RequestWindow();
+        check(window.add(request(0)), "add 0");
+        check(window.add(request(RequestWindow.MAX_SPAN - 1)), "add at the end of the span");
+        check(!window.add(request(RequestWindow.MAX_SPAN)), "add beyond the span");
+        window.removeBySequence(0);
+        check(window.add(request(RequestWindow.MAX_SPAN)), "add once the span moved");
+        check(!window.add(request(Integer.MAX_VALUE - 1)), "far request");
+    }
+
+    private static TOMMessage request(int seq) {
+        TOMMessage msg = new TOMMessage(1001, 0, seq, seq, new byte[] {(byte) seq}, 0, TOMMessageType.ORDERED_REQUEST);
+        msg.serializedMessage = new byte[] {(byte) (seq >> 24), (byte) (seq >> 16), (byte) (seq >> 8), (byte) seq};
+        return msg;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("RequestWindow check failed: " + what);
+        }
+    }
+}
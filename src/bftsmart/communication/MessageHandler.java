@@ -30,6 +30,7 @@ import bftsmart.tom.util.TOMUtil;
 ///
 import bftsmart.consensus.chainmessages.ChainConsensusMessage;
 import bftsmart.consensus.chainmessages.ChainMessageFactory;
+import bftsmart.consensus.chainmessages.FetchMessage;
 import bftsmart.consensus.chainroles.ChainAcceptor;
 import bftsmart.consensus.chainroles.ChainProposer;
 ///
@@ -83,6 +84,12 @@ public class MessageHandler {
 				case ChainMessageFactory.SYNC:
 					chainAcceptor.deliver(ccMsg);
 					break;
+				case ChainMessageFactory.FETCH:
+					chainProposer.fetchReceived((FetchMessage) ccMsg);
+					break;
+				case ChainMessageFactory.FETCH_REPLY:
+					chainAcceptor.deliver(ccMsg);
+					break;
 			}
 		}else
 		///
@@ -147,6 +154,12 @@ public class MessageHandler {
 					case TOMUtil.SM_REPLY:
 						tomLayer.getStateManager().SMReplyDeliver(smsg, tomLayer.controller.getStaticConf().isBFT());
 						break;
+					case TOMUtil.SM_CHUNK_REQUEST:
+						tomLayer.getStateManager().SMChunkRequestDeliver(smsg);
+						break;
+					case TOMUtil.SM_CHUNK_REPLY:
+						tomLayer.getStateManager().SMChunkReplyDeliver(smsg, tomLayer.controller.getStaticConf().isBFT());
+						break;
 					case TOMUtil.SM_ASK_INITIAL:
 						tomLayer.getStateManager().currentConsensusIdAsked(smsg.getSender(), smsg.getCID());
 						break;
@@ -23,7 +23,8 @@ import javax.crypto.SecretKey;
 import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.CommunicationSystemServerSideFactory;
 import bftsmart.communication.client.RequestReceiver;
-import bftsmart.communication.server.ServersCommunicationLayer;
+import bftsmart.communication.server.ServersCommunication;
+import bftsmart.communication.server.ServersCommunicationFactory;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.ServiceReplica;
@@ -50,7 +51,7 @@ public class ServerCommunicationSystem extends Thread {
     private LinkedBlockingQueue<SystemMessage> inQueue = null;//new LinkedBlockingQueue<SystemMessage>(IN_QUEUE_SIZE);
     protected MessageHandler messageHandler;
     
-    private ServersCommunicationLayer serversConn;
+    private ServersCommunication serversConn;
     private CommunicationSystemServerSide clientsConn;
     private ServerViewController controller;
 
@@ -66,7 +67,7 @@ public class ServerCommunicationSystem extends Thread {
 
         inQueue = new LinkedBlockingQueue<SystemMessage>(controller.getStaticConf().getInQueueSize());
 
-        serversConn = new ServersCommunicationLayer(controller, inQueue, replica);
+        serversConn = ServersCommunicationFactory.getServersCommunication(controller, inQueue, replica);
 
         //******* EDUARDO BEGIN **************//
             clientsConn = CommunicationSystemServerSideFactory.getCommunicationSystemServerSide(controller);
@@ -159,7 +160,7 @@ public class ServerCommunicationSystem extends Thread {
         }
     }
 
-    public ServersCommunicationLayer getServersConn() {
+    public ServersCommunication getServersConn() {
         return serversConn;
     }
     
@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.communication.client;
 
+import java.util.List;
+
 import bftsmart.tom.core.messages.TOMMessage;
 
 /**
@@ -24,6 +26,13 @@ import bftsmart.tom.core.messages.TOMMessage;
  */
 public interface CommunicationSystemServerSide {   
    public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders);
+   /**
+    * Sends each reply to the client in its destination field, writing all the
+    * replies of a client connection before flushing it once. Unlike send(),
+    * the replies are serialized and written without being cloned, so they
+    * must be copies not shared with other senders
+    */
+   public void sendReplies(List<TOMMessage> replies);
    public int[] getClients();
    public void setRequestReceiver(RequestReceiver requestReceiver);
    public void shutdown();
@@ -37,7 +37,9 @@ import java.nio.channels.ClosedChannelException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.ArrayList;
@@ -293,9 +295,10 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 		this.requestReceiver = tl;
 	}
 
-	@Override
-	public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
-
+	/**
+	 * Serializes a message sent to the clients, storing it in the message
+	 */
+	private void serialize(TOMMessage sm) {
 		// serialize message
 		DataOutputStream dos = null;
 
@@ -318,6 +321,12 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 			byte[] signature = TOMUtil.signMessage(privKey, data);
 			sm.serializedMessageSignature = signature;
 		}
+	}
+
+	@Override
+	public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
+
+		serialize(sm);
 
 		for (int target : targets) {
 			try {
@@ -344,6 +353,31 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 		}
 	}
 
+	@Override
+	public void sendReplies(List<TOMMessage> replies) {
+
+		Set<Channel> written = new HashSet<>();
+
+		rl.readLock().lock();
+		for (TOMMessage sm : replies) {
+			NettyClientServerSession session = sessionReplicaToClient.get(sm.destination);
+			if (session == null) {
+				logger.debug("Client not into sessionReplicaToClient({}), reply discarded.", sm.destination);
+				continue;
+			}
+			serialize(sm);
+			Channel channel = session.getChannel();
+			channel.write(sm, channel.voidPromise());
+			written.add(channel);
+		}
+		rl.readLock().unlock();
+
+		// a single flush, thus a single system call, per client connection
+		for (Channel channel : written) {
+			channel.flush();
+		}
+	}
+
 	@Override
 	public int[] getClients() {
 
@@ -45,6 +45,7 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.chainmessages.ChainMessageCodec;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
 import bftsmart.tom.ServiceReplica;
@@ -408,8 +409,13 @@ public class ServerConnection {
 
 						logger.trace("Read: {}, HasMAC: {}", read, hasMAC);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm;
+						if (dataLength > 0 && ChainMessageCodec.isEncoded(data[0])) {
+							sm = ChainMessageCodec.decode(data);
+						} else {
+							sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
+									.readObject());
+						}
 
 						//The verification it is done for the SSL/TLS protocol.
 						sm.authenticated = true;
@@ -0,0 +1,32 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import javax.crypto.SecretKey;
+
+import bftsmart.communication.SystemMessage;
+
+/**
+ * Methods that should be implemented by the replica-to-replica communication system
+ */
+public interface ServersCommunication {
+   public void send(int[] targets, SystemMessage sm, boolean useMAC);
+   public void updateConnections();
+   public void joinViewReceived();
+   public SecretKey getSecretKey(int id);
+   public void shutdown();
+   public void join() throws InterruptedException;
+}
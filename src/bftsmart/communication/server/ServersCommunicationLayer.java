@@ -35,6 +35,8 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.chainmessages.ChainConsensusMessage;
+import bftsmart.consensus.chainmessages.ChainMessageCodec;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.util.TOMUtil;
@@ -79,7 +81,7 @@ import org.slf4j.LoggerFactory;
   //$keytool -importkeystore -srckeystore ./RSA_KeyPair_2048.pkcs12 -destkeystore ./RSA_KeyPair_2048.pkcs12 -deststoretype pkcs12
  
 
-public class ServersCommunicationLayer extends Thread {
+public class ServersCommunicationLayer extends Thread implements ServersCommunication {
     
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -198,6 +200,7 @@ public class ServersCommunicationLayer extends Thread {
         start();
     }
 
+    @Override
     public SecretKey getSecretKey(int id) {
         if (id == controller.getStaticConf().getProcessId()) 
         	return selfPwd;
@@ -205,6 +208,7 @@ public class ServersCommunicationLayer extends Thread {
     }
 
     //******* EDUARDO BEGIN **************//
+    @Override
     public void updateConnections() {
         connectionsLock.lock();
 
@@ -253,15 +257,21 @@ public class ServersCommunicationLayer extends Thread {
     //******* EDUARDO END **************//
 
 
+    @Override
     public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        byte[] data;
         try {
-            new ObjectOutputStream(bOut).writeObject(sm);
+            if (sm instanceof ChainConsensusMessage && controller.getStaticConf().useBinaryCodec()) {
+                data = ChainMessageCodec.encode((ChainConsensusMessage) sm);
+            } else {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+                new ObjectOutputStream(bOut).writeObject(sm);
+                data = bOut.toByteArray();
+            }
         } catch (IOException ex) {
             logger.error("Failed to serialize message", ex);
+            return;
         }
-
-        byte[] data = bOut.toByteArray();
         
         // this shuffling is done to prevent the replica with the lowest ID/index  from being always
         // the last one receiving the messages, which can result in that replica  to become consistently
@@ -286,6 +296,7 @@ public class ServersCommunicationLayer extends Thread {
 		}
     }
 
+    @Override
     public void shutdown() {
         
         logger.info("Shutting down replica sockets");
@@ -303,6 +314,7 @@ public class ServersCommunicationLayer extends Thread {
     }
 
     //******* EDUARDO BEGIN **************//
+    @Override
     public void joinViewReceived() {
         waitViewLock.lock();
         for (int i = 0; i < pendingConn.size(); i++) {
@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import bftsmart.consensus.chainmessages.ChainConsensusMessage;
+import bftsmart.consensus.chainmessages.ChainMessageCodec;
+import bftsmart.consensus.chainmessages.ProposalMessage;
+import bftsmart.consensus.chainmessages.VoteMessage;
+import bftsmart.consensus.chainmessages.VoteSetCertificate;
+
+/**
+ * Compares the size and the encoding/decoding time of a PROPOSAL written with
+ * java serialization and with the binary codec of the chained protocol.
+ *
+ * Usage: TestChainSerialization [batch bytes] [replicas] [iterations]
+ */
+public class TestChainSerialization {
+
+    public static void main(String[] args) throws Exception {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 16 * 1024;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        Random random = new Random(0);
+        byte[] prevHash = new byte[32];
+        random.nextBytes(prevHash);
+        VoteMessage[] votes = new VoteMessage[n];
+        for (int i = 0; i < n; i++) {
+            votes[i] = new VoteMessage(prevHash, 0, 1, 0, i);
+            byte[] signature = new byte[71];
+            random.nextBytes(signature);
+            votes[i].addSignature(signature);
+        }
+        byte[] batch = new byte[batchSize];
+        random.nextBytes(batch);
+        ProposalMessage proposal = new ProposalMessage(batch, prevHash,
+                new VoteSetCertificate(votes, prevHash), 0, 2, 0, 0);
+
+        for (int round = 0; round < 2; round++) { // the first round warms up the JIT
+            long serialized = 0, start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+                new ObjectOutputStream(bOut).writeObject(proposal);
+                byte[] data = bOut.toByteArray();
+                serialized = data.length;
+                new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+            }
+            long javaTime = System.nanoTime() - start;
+
+            long encoded = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                byte[] data = ChainMessageCodec.encode(proposal);
+                encoded = data.length;
+                ChainConsensusMessage msg = ChainMessageCodec.decode(data);
+                if (msg.getConsId() != proposal.getConsId()) {
+                    throw new IllegalStateException("Decoded a different message");
+                }
+            }
+            long codecTime = System.nanoTime() - start;
+
+            // as the Netty transport does: encoded into a reused direct buffer, decoded in place
+            ByteBuffer buffer = ByteBuffer.allocateDirect(ChainMessageCodec.encodedLength(proposal));
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                buffer.clear();
+                ChainMessageCodec.encode(proposal, buffer);
+                buffer.flip();
+                ChainConsensusMessage msg = ChainMessageCodec.decode(buffer);
+                if (msg.getConsId() != proposal.getConsId()) {
+                    throw new IllegalStateException("Decoded a different message");
+                }
+            }
+            long bufferTime = System.nanoTime() - start;
+
+            if (round > 0) {
+                System.out.println("java serialization: " + serialized + " bytes, "
+                        + (javaTime / iterations) + " ns per round trip");
+                System.out.println("binary codec:       " + encoded + " bytes, "
+                        + (codecTime / iterations) + " ns per round trip");
+                System.out.println("codec, reused buffer: " + (bufferTime / iterations) + " ns per round trip");
+            }
+        }
+    }
+}
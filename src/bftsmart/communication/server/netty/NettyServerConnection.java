@@ -0,0 +1,291 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server.netty;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.TimeUnit;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.chainmessages.ChainMessageCodec;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.VMMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The connection with one remote replica. It holds the channel in use, if any,
+ * and opens it again when it is closed and this replica is the one that must
+ * connect.
+ */
+public class NettyServerConnection {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    static final AttributeKey<Integer> REMOTE_ID = AttributeKey.valueOf("bftsmart.replica.remoteId");
+    private static final long POOL_TIME = 5000;
+    private static final int FLUSHES_BEFORE_WRITE = 256; // flushes coalesced before the socket is written anyway
+
+    private NettyServersCommunicationLayer layer;
+    private ServerViewController controller;
+    private int remoteId;
+    private volatile Channel channel = null;
+    private volatile boolean doWork = true;
+
+    public NettyServerConnection(NettyServersCommunicationLayer layer, int remoteId) {
+        this.layer = layer;
+        this.controller = layer.getController();
+        this.remoteId = remoteId;
+    }
+
+    /**
+     * Used to send packets to the remote server. The message is framed in a
+     * pooled direct buffer and written by the event loop of the channel
+     * @param data the serialized message
+     */
+    public final void send(byte[] data) {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            logger.debug("No connection to {} (message discarded).", remoteId);
+            return;
+        }
+        // only write messages if the bytes pending in the connection are below the water mark
+        if (!ch.isWritable()) {
+            logger.info("Out queue for " + remoteId + " full (message discarded).");
+            return;
+        }
+
+        ByteBuf frame = ch.alloc().directBuffer(5 + data.length);
+        frame.writeInt(data.length);
+        frame.writeBytes(data);
+        frame.writeByte(0); // without MAC
+        ch.writeAndFlush(frame, ch.voidPromise());
+    }
+
+    /**
+     * Used to send a message already framed in a pooled buffer, which is
+     * released once written or discarded
+     * @param frame the framed message
+     */
+    public final void send(ByteBuf frame) {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive()) {
+            logger.debug("No connection to {} (message discarded).", remoteId);
+            frame.release();
+            return;
+        }
+        if (!ch.isWritable()) {
+            logger.info("Out queue for " + remoteId + " full (message discarded).");
+            frame.release();
+            return;
+        }
+        ch.writeAndFlush(frame, ch.voidPromise());
+    }
+
+    /**
+     * Stop message sending and reception.
+     */
+    public void shutdown() {
+        logger.debug("SHUTDOWN for " + remoteId);
+
+        doWork = false;
+        Channel ch = channel;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    //return true of a process shall connect to the remote process, false otherwise
+    private boolean isToConnect() {
+        if (this.controller.getStaticConf().getTTPId() == remoteId) {
+            //Need to wait for the connection request from the TTP, do not tray to connect to it
+            return false;
+        } else if (this.controller.getStaticConf().getTTPId() == this.controller.getStaticConf().getProcessId()) {
+            //If this is a TTP, one must connect to the remote process
+            return true;
+        }
+        //in this case, the node with higher ID starts the connection
+        return this.controller.isInCurrentView() && this.controller.getStaticConf().getProcessId() > remoteId;
+    }
+
+    /**
+     * Open the connection, if this replica is the one that must connect
+     */
+    void connect() {
+        if (!doWork || !layer.isWorking() || !isToConnect()) {
+            return;
+        }
+
+        ChannelFuture f = layer.getBootstrap().clone().handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(new SslHandler(layer.createSSLEngine(true)));
+            }
+        }).connect(controller.getStaticConf().getHost(remoteId),
+                controller.getStaticConf().getServerToServerPort(remoteId));
+
+        Channel ch = f.channel();
+        ch.closeFuture().addListener(future -> closed(ch));
+        f.addListener(future -> {
+            if (!future.isSuccess()) {
+                logger.debug("Connection to {} refused", remoteId);
+                ch.close();
+                return;
+            }
+            ch.pipeline().get(SslHandler.class).handshakeFuture().addListener(handshake -> {
+                if (!handshake.isSuccess()) {
+                    logger.error("SSL/TLS handshake with " + remoteId + " failed", handshake.cause());
+                    ch.close();
+                    return;
+                }
+                logger.info("SSL/TLS handshake complete!, Id:{}  ## CipherSuite: {}.", remoteId,
+                        ch.pipeline().get(SslHandler.class).engine().getSession().getCipherSuite());
+                ByteBuf id = ch.alloc().buffer(4);
+                id.writeInt(controller.getStaticConf().getProcessId());
+                ch.writeAndFlush(id);
+                addHandlers(ch.pipeline(), layer, remoteId);
+                setChannel(ch);
+            });
+        });
+    }
+
+    /**
+     * Use a channel opened by the remote replica
+     * @param ch the accepted channel, which already has its message handlers
+     */
+    void accepted(Channel ch) {
+        ch.closeFuture().addListener(future -> closed(ch));
+        setChannel(ch);
+        ch.config().setAutoRead(true);
+    }
+
+    /**
+     * add the handlers that frame, decode and deliver the messages of a remote replica
+     */
+    static void addHandlers(ChannelPipeline pipeline, NettyServersCommunicationLayer layer, int remoteId) {
+        pipeline.addLast(new FlushConsolidationHandler(FLUSHES_BEFORE_WRITE, true));
+        pipeline.addLast(new LengthFieldBasedFrameDecoder(NettyServersCommunicationLayer.MAX_FRAME_LENGTH, 0, 4, 1, 4));
+        pipeline.addLast(new ReplicaMessageHandler(layer, remoteId));
+    }
+
+    private void setChannel(Channel ch) {
+        Channel old = channel;
+        channel = ch;
+        if (old != null && old != ch) {
+            old.close();
+        }
+        if (!doWork) {
+            ch.close();
+        }
+    }
+
+    private void closed(Channel ch) {
+        if (channel == ch) {
+            channel = null;
+        }
+        if (doWork && layer.isWorking() && isToConnect() && channel == null) {
+            logger.debug("Closing socket and reconnecting");
+            ch.eventLoop().schedule(this::connect, POOL_TIME, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public String toString() {
+        Channel ch = channel;
+        return ch == null ? "disconnected" : "writable=" + ch.isWritable();
+    }
+
+    /**
+     * Decodes the frames received from the remote replica, delivering the
+     * messages in the inQueue, or to the replica if they come from the TTP.
+     */
+    private static class ReplicaMessageHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+        private NettyServersCommunicationLayer layer;
+        private ServerViewController controller;
+        private int remoteId;
+
+        ReplicaMessageHandler(NettyServersCommunicationLayer layer, int remoteId) {
+            this.layer = layer;
+            this.controller = layer.getController();
+            this.remoteId = remoteId;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+            if (controller.getStaticConf().isTheTTP()) {
+                return;
+            }
+
+            // the frame is [message][hasMAC]
+            ByteBuf data = frame.slice(frame.readerIndex(), frame.readableBytes() - 1);
+
+            SystemMessage sm;
+            if (data.isReadable() && ChainMessageCodec.isEncoded(data.getByte(data.readerIndex()))) {
+                sm = ChainMessageCodec.decode(data.nioBuffer());
+            } else {
+                try {
+                    sm = (SystemMessage) new ObjectInputStream(new ByteBufInputStream(data)).readObject();
+                } catch (ClassNotFoundException ex) {
+                    logger.info("Invalid message received. Ignoring!");
+                    return;
+                }
+            }
+
+            if (sm.getSender() != remoteId) {
+                return;
+            }
+
+            if (controller.getStaticConf().getTTPId() == remoteId) {
+                layer.getReplica().joinMsgReceived((VMMessage) sm);
+                return;
+            }
+
+            //The verification it is done for the SSL/TLS protocol.
+            sm.authenticated = true;
+
+            if (!layer.getInQueue().offer(sm)) {
+                logger.warn("Inqueue full (message from " + remoteId + " discarded).");
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (cause instanceof IOException) {
+                logger.debug("Closing connection with " + remoteId, cause);
+            } else {
+                logger.error("Error in connection with " + remoteId, cause);
+            }
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server.netty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.server.ServersCommunication;
+import bftsmart.consensus.chainmessages.ChainConsensusMessage;
+import bftsmart.consensus.chainmessages.ChainMessageCodec;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.util.TOMUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replica-to-replica communication on Netty event loops. All connections share
+ * a small group of event loop threads instead of a sender and a receiver thread
+ * per replica, frames are written from pooled direct buffers, and the flushes
+ * of messages sent close together are coalesced into a single socket write.
+ *
+ * The wire format and the connection rules are the same as the ones of
+ * ServersCommunicationLayer: the replica with the higher ID opens the
+ * connection over SSL/TLS and sends its ID, then every message is framed as
+ * [length][message][hasMAC].
+ */
+public class NettyServersCommunicationLayer implements ServersCommunication {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String SECRET = "MySeCreT_2hMOygBwY";
+    static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024; // larger frames close the connection
+    private static final int LOW_WATER_MARK = 32 * 1024 * 1024; // bytes pending in a connection
+    private static final int HIGH_WATER_MARK = 64 * 1024 * 1024; // before messages to it are discarded
+    private static final int CONNECTION_BACKLOG = 100;
+
+    private ServerViewController controller;
+    private LinkedBlockingQueue<SystemMessage> inQueue;
+    private ServiceReplica replica;
+    private int me;
+    private volatile boolean doWork = true;
+
+    private Map<Integer, NettyServerConnection> connections = new ConcurrentHashMap<>();
+    private ReentrantLock connectionsLock = new ReentrantLock();
+    private ReentrantLock waitViewLock = new ReentrantLock();
+    private List<Channel> pendingConn = new LinkedList<>(); // accepted before this replica learned the view
+
+    private SSLContext context;
+    private SecretKey selfPwd;
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Bootstrap bootstrap;
+    private Channel serverChannel;
+
+    public NettyServersCommunicationLayer(ServerViewController controller,
+            LinkedBlockingQueue<SystemMessage> inQueue,
+            ServiceReplica replica) throws Exception {
+
+        this.controller = controller;
+        this.inQueue = inQueue;
+        this.me = controller.getStaticConf().getProcessId();
+        this.replica = replica;
+
+        String myAddress;
+        String confAddress =
+                    controller.getStaticConf().getRemoteAddress(me).getAddress().getHostAddress();
+
+        if (InetAddress.getLoopbackAddress().getHostAddress().equals(confAddress)) {
+            myAddress = InetAddress.getLoopbackAddress().getHostAddress();
+        } else if (controller.getStaticConf().getBindAddress().equals("")) {
+            myAddress = InetAddress.getLocalHost().getHostAddress();
+            //If the replica binds to the loopback address, clients will not be able to connect to replicas.
+            //To solve that issue, we bind to the address supplied in config/hosts.config instead.
+            if (InetAddress.getLoopbackAddress().getHostAddress().equals(myAddress) && !myAddress.equals(confAddress)) {
+                myAddress = confAddress;
+            }
+        } else {
+            myAddress = controller.getStaticConf().getBindAddress();
+        }
+
+        int myPort = controller.getStaticConf().getServerToServerPort(me);
+
+        context = createSSLContext();
+
+        SecretKeyFactory fac = TOMUtil.getSecretFactory();
+        PBEKeySpec spec = TOMUtil.generateKeySpec(SECRET.toCharArray());
+        selfPwd = fac.generateSecret(spec);
+
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup(Math.max(1, controller.getStaticConf().getNumberOfNIOThreads()));
+        WriteBufferWaterMark waterMark = new WriteBufferWaterMark(LOW_WATER_MARK, HIGH_WATER_MARK);
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.SO_BACKLOG, CONNECTION_BACKLOG)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new SslHandler(createSSLEngine(false)));
+                        ch.pipeline().addLast(new ReplicaIdDecoder(NettyServersCommunicationLayer.this));
+                    }
+                });
+
+        bootstrap = new Bootstrap();
+        bootstrap.group(workerGroup).channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark);
+
+        serverChannel = b.bind(new InetSocketAddress(myAddress, myPort)).sync().channel();
+
+        logger.info("Replica transport (Netty) bound to {}:{}, {} event loop threads", myAddress, myPort,
+                controller.getStaticConf().getNumberOfNIOThreads());
+
+        //Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
+        if (controller.isInCurrentView()) {
+            int[] initialV = controller.getCurrentViewAcceptors();
+            for (int i = 0; i < initialV.length; i++) {
+                if (initialV[i] != me) {
+                    getConnection(initialV[i]);
+                }
+            }
+        }
+    }
+
+    private SSLContext createSSLContext() throws Exception {
+        KeyStore ks;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream("config/keysSSL_TLS/" + controller.getStaticConf().getSSLTLSKeyStore());
+            ks = KeyStore.getInstance(KeyStore.getDefaultType());
+            ks.load(fis, SECRET.toCharArray());
+        } finally {
+            if (fis != null) {
+                fis.close();
+            }
+        }
+
+        String algorithm = Security.getProperty("ssl.KeyManagerFactory.algorithm");
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(algorithm);
+        kmf.init(ks, SECRET.toCharArray());
+
+        TrustManagerFactory trustMgrFactory = TrustManagerFactory.getInstance(algorithm);
+        trustMgrFactory.init(ks);
+
+        SSLContext sslContext = SSLContext.getInstance(controller.getStaticConf().getSSLTLSProtocolVersion());
+        sslContext.init(kmf.getKeyManagers(), trustMgrFactory.getTrustManagers(), new SecureRandom());
+        return sslContext;
+    }
+
+    SSLEngine createSSLEngine(boolean clientMode) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(clientMode);
+        engine.setEnabledCipherSuites(controller.getStaticConf().getEnabledCiphers());
+        if (!clientMode) {
+            engine.setEnableSessionCreation(true);
+            engine.setNeedClientAuth(true);
+        }
+        return engine;
+    }
+
+    ServerViewController getController() {
+        return controller;
+    }
+
+    Bootstrap getBootstrap() {
+        return bootstrap;
+    }
+
+    LinkedBlockingQueue<SystemMessage> getInQueue() {
+        return inQueue;
+    }
+
+    ServiceReplica getReplica() {
+        return replica;
+    }
+
+    boolean isWorking() {
+        return doWork;
+    }
+
+    @Override
+    public SecretKey getSecretKey(int id) {
+        // every replica derives the same key from the shared secret
+        return selfPwd;
+    }
+
+    //******* EDUARDO BEGIN **************//
+    @Override
+    public void updateConnections() {
+        connectionsLock.lock();
+
+        if (this.controller.isInCurrentView()) {
+
+            Iterator<Integer> it = this.connections.keySet().iterator();
+            List<Integer> toRemove = new LinkedList<Integer>();
+            while (it.hasNext()) {
+                int rm = it.next();
+                if (!this.controller.isCurrentViewMember(rm)) {
+                    toRemove.add(rm);
+                }
+            }
+            for (int i = 0; i < toRemove.size(); i++) {
+                this.connections.remove(toRemove.get(i)).shutdown();
+            }
+
+            int[] newV = controller.getCurrentViewAcceptors();
+            for (int i = 0; i < newV.length; i++) {
+                if (newV[i] != me) {
+                    getConnection(newV[i]);
+                }
+            }
+        } else {
+
+            Iterator<Integer> it = this.connections.keySet().iterator();
+            while (it.hasNext()) {
+                this.connections.get(it.next()).shutdown();
+            }
+        }
+
+        connectionsLock.unlock();
+    }
+
+    private NettyServerConnection getConnection(int remoteId) {
+        NettyServerConnection ret = this.connections.get(remoteId);
+        if (ret == null) {
+            connectionsLock.lock();
+            ret = this.connections.get(remoteId);
+            if (ret == null) {
+                ret = new NettyServerConnection(this, remoteId);
+                this.connections.put(remoteId, ret);
+                ret.connect();
+            }
+            connectionsLock.unlock();
+        }
+        return ret;
+    }
+    //******* EDUARDO END **************//
+
+    @Override
+    public void send(int[] targets, SystemMessage sm, boolean useMAC) {
+        byte[] data = null;
+        ByteBuf frame = null; // a message of the codec is framed once in a pooled buffer shared by all targets
+        try {
+            if (sm instanceof ChainConsensusMessage && controller.getStaticConf().useBinaryCodec()) {
+                frame = encodeFrame((ChainConsensusMessage) sm);
+            } else {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+                new ObjectOutputStream(bOut).writeObject(sm);
+                data = bOut.toByteArray();
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to serialize message", ex);
+            return;
+        }
+
+        // this shuffling is done to prevent the replica with the lowest ID/index  from being always
+        // the last one receiving the messages, which can result in that replica  to become consistently
+        // delayed in relation to the others.
+        Integer[] targetsShuffled = Arrays.stream( targets ).boxed().toArray( Integer[]::new );
+        Collections.shuffle(Arrays.asList(targetsShuffled), new Random(System.nanoTime()));
+
+        for (int target : targetsShuffled) {
+            try {
+                if (target == me) {
+                    sm.authenticated = true;
+                    inQueue.put(sm);
+                    logger.debug("Queueing (delivering) my own message, me:{}", target);
+                } else {
+                    logger.debug("Sending message from:{} -> to:{}.", me,  target);
+                    if (frame != null) {
+                        getConnection(target).send(frame.retainedDuplicate());
+                    } else {
+                        getConnection(target).send(data);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                logger.error("Interruption while inserting message into inqueue", ex);
+            }
+        }
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Encodes a message of the chained protocol directly into a pooled direct
+     * buffer, framed as [length][message][hasMAC]
+     * @param msg the message
+     * @return the frame, released by the caller
+     */
+    private ByteBuf encodeFrame(ChainConsensusMessage msg) throws IOException {
+        int length = ChainMessageCodec.encodedLength(msg);
+        ByteBuf frame = PooledByteBufAllocator.DEFAULT.directBuffer(5 + length);
+        try {
+            frame.writeInt(length);
+            ChainMessageCodec.encode(msg, frame.nioBuffer(4, length));
+            frame.writerIndex(4 + length);
+            frame.writeByte(0); // without MAC
+            return frame;
+        } catch (IOException | RuntimeException ex) {
+            frame.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Called by the event loop once a replica that connected to this one sent its ID
+     * @param channel the accepted channel
+     * @param remoteId the ID sent by the remote replica
+     */
+    void connectionAccepted(Channel channel, int remoteId) {
+        //******* EDUARDO BEGIN **************//
+        if (!this.controller.isInCurrentView() &&
+                (this.controller.getStaticConf().getTTPId() != remoteId)) {
+            waitViewLock.lock();
+            channel.attr(NettyServerConnection.REMOTE_ID).set(remoteId);
+            pendingConn.add(channel);
+            waitViewLock.unlock();
+        } else {
+            logger.debug("Trying establish connection with Replica: {}", remoteId);
+            establishConnection(channel, remoteId);
+        }
+        //******* EDUARDO END **************//
+    }
+
+    private void establishConnection(Channel channel, int remoteId) {
+        if ((this.controller.getStaticConf().getTTPId() == remoteId) || this.controller.isCurrentViewMember(remoteId)) {
+            connectionsLock.lock();
+            NettyServerConnection conn = this.connections.get(remoteId);
+            if (conn == null) {
+                conn = new NettyServerConnection(this, remoteId);
+                this.connections.put(remoteId, conn);
+            } else {
+                logger.debug("ReConnecting with replica: {}", remoteId);
+            }
+            conn.accepted(channel);
+            connectionsLock.unlock();
+        } else {
+            logger.debug("Closing connection with replica: {}", remoteId);
+            channel.close();
+        }
+    }
+
+    //******* EDUARDO BEGIN **************//
+    @Override
+    public void joinViewReceived() {
+        waitViewLock.lock();
+        for (Channel channel : pendingConn) {
+            if (channel.isActive()) {
+                establishConnection(channel, channel.attr(NettyServerConnection.REMOTE_ID).get());
+            }
+        }
+
+        pendingConn.clear();
+
+        waitViewLock.unlock();
+    }
+    //******* EDUARDO END **************//
+
+    @Override
+    public void shutdown() {
+
+        logger.info("Shutting down replica sockets");
+
+        doWork = false;
+
+        for (NettyServerConnection conn : connections.values()) {
+            conn.shutdown();
+        }
+        serverChannel.close();
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        serverChannel.closeFuture().await();
+        workerGroup.terminationFuture().await();
+        logger.info("ServerCommunicationLayer stopped.");
+    }
+
+    @Override
+    public String toString() {
+        String str = "inQueue=" + inQueue.toString();
+        int[] activeServers = controller.getCurrentViewAcceptors();
+        for (int i = 0; i < activeServers.length; i++) {
+            if (me != activeServers[i]) {
+                str += ", connections[" + activeServers[i] + "]: " + getConnection(activeServers[i]);
+            }
+        }
+        return str;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server.netty;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * Reads the ID that a replica sends after opening a connection to this one.
+ * It then installs the message handlers of the connection and leaves the
+ * pipeline, handing the bytes that follow the ID to them.
+ */
+public class ReplicaIdDecoder extends ByteToMessageDecoder {
+
+    private NettyServersCommunicationLayer layer;
+
+    public ReplicaIdDecoder(NettyServersCommunicationLayer layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (in.readableBytes() < 4) {
+            return;
+        }
+        int remoteId = in.readInt();
+
+        // nothing more is read until the connection is established
+        ctx.channel().config().setAutoRead(false);
+        NettyServerConnection.addHandlers(ctx.pipeline(), layer, remoteId);
+        ctx.pipeline().remove(this);
+        layer.connectionAccepted(ctx.channel(), remoteId);
+    }
+}
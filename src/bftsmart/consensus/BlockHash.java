@@ -0,0 +1,70 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Fixed-width key for the hash of a block. Unlike a raw byte[], it compares by
+ * content, so it can be used as a map key. Since block hashes are already
+ * uniformly distributed, the hash code is taken from the leading bytes.
+ */
+public final class BlockHash {
+
+    private final byte[] hash; // the hash value of the block
+    private final int hashCode; // cached, the key is looked up on every append
+
+    /**
+     * Wraps a block hash, the array must not be modified afterwards
+     * @param hash the hash value of the block
+     */
+    public BlockHash(byte[] hash) {
+        this.hash = hash;
+        if (hash.length >= 4) {
+            this.hashCode = ((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16) |
+                    ((hash[2] & 0xff) << 8) | (hash[3] & 0xff);
+        } else {
+            this.hashCode = Arrays.hashCode(hash);
+        }
+    }
+
+    public byte[] getBytes() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof BlockHash) {
+            return hashCode == ((BlockHash) o).hashCode && Arrays.equals(hash, ((BlockHash) o).hash);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return Base64.encodeBase64String(hash);
+    }
+}
@@ -1,29 +1,64 @@
 package bftsmart.consensus;
 
 import bftsmart.consensus.chainmessages.ProposalMessage;
-import bftsmart.consensus.chainmessages.VoteMessage;
+import bftsmart.consensus.chainmessages.QuorumCertificate;
 import bftsmart.tom.util.TOMUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
 
 public class Blockchain {
 
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private Map<byte[], ProposalMessage> blocks; // the blocks written into the chain
-    private List<ProposalMessage> chain; // the chain consisting of blocks
+    /**
+     * number of committed blocks kept by default behind the 3-chain commit point
+     */
+    public static final int DEFAULT_RETENTION = 1024;
+
+    /**
+     * number of blocks above the last committed one, a block at height h is
+     * committed once the block at height h+2 is appended
+     */
+    private static final int UNCOMMITTED_BLOCKS = 3;
+
+    private Map<BlockHash, Integer> heights; // the height of each block still in the window, by hash
+    private ProposalMessage[] blocks; // ring of the blocks still in the window, indexed by height
+    private BlockHash[] hashes; // ring of the hashes of those blocks, indexed by height
+    private int mask; // the rings have a power of two length
+    private int retention; // how many committed blocks are kept
+    private int lowestHeight; // the lowest height still in the window
     private int currentHeight; // the current height of the blockchain
     private byte[] currentHash;
 
+    private MessageDigest md; // reused for every block header
+    private byte[] intBuffer = new byte[4]; // scratch space for the header integers
+
     public Blockchain() {
-        this.blocks = new HashMap<byte[], ProposalMessage>();
-        this.chain = new LinkedList<ProposalMessage>();
+        this(DEFAULT_RETENTION);
+    }
+
+    /**
+     * Creates a blockchain that keeps only the last blocks in memory
+     * @param retention number of committed blocks kept below the 3-chain commit point
+     */
+    public Blockchain(int retention) {
+        this.retention = Math.max(retention, 1);
+        int capacity = Integer.highestOneBit(this.retention + UNCOMMITTED_BLOCKS - 1) << 1;
+        this.heights = new HashMap<BlockHash, Integer>(capacity * 2);
+        this.blocks = new ProposalMessage[capacity];
+        this.hashes = new BlockHash[capacity];
+        this.mask = capacity - 1;
+        this.lowestHeight = 0;
         this.currentHeight = -1;
+
+        try {
+            this.md = TOMUtil.getHashEngine();
+        } catch (Exception e) {
+            logger.error("Failed to get message digest engine", e);
+        }
     }
 
     /**
@@ -31,25 +66,65 @@ public class Blockchain {
      */
     public void initBlockchain(){
         ProposalMessage geniusBlock = new ProposalMessage(null,null,null,-1,-1,-1, -1);
-        chain.add(geniusBlock);
-
-        byte[] geniusHash = computeBlockHash(geniusBlock);
-        blocks.put(geniusHash,geniusBlock);
-
-        this.currentHash = geniusHash;
+        store(0, geniusBlock, computeBlockHash(geniusBlock, 0));
         this.currentHeight += 1;
         logger.debug("I've init the blockchain with a genius block {}", geniusBlock);
     }
 
-    public byte[] computeBlockHash(ProposalMessage msg) {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        try {
-            new ObjectOutputStream(bOut).writeObject(msg);
-        } catch (IOException ex) {
-            logger.error("Failed to serialize message", ex);
+    /**
+     * Hashes the canonical header of a block instead of its serialized form:
+     * prevHash, height, leader, the digest of the batch and the digest of the
+     * vote set, each variable-length field prefixed by its length (-1 for null).
+     * The batch is digested once per block and the digest is kept in the block,
+     * with digest-only proposals it is the digest of the request digests
+     * @param msg the block
+     * @param height the height the block is appended at
+     * @return the hash of the block
+     */
+    public byte[] computeBlockHash(ProposalMessage msg, int height) {
+        byte[] batchDigest = msg.getBatchDigest();
+        if (batchDigest == null && msg.getData() != null) {
+            batchDigest = md.digest(msg.getData());
+            msg.setBatchDigest(batchDigest);
+        }
+
+        byte[] votesDigest = null;
+        QuorumCertificate certificate = msg.getCertificate();
+        if (certificate != null) {
+            int[] voters = certificate.getVoters();
+            byte[][] signatures = certificate.getSignatures();
+            updateBytes(certificate.getBlockHash());
+            updateInt(voters.length);
+            for (int i = 0; i < voters.length; i++) {
+                updateInt(voters[i]);
+                updateBytes(signatures[i]);
+            }
+            votesDigest = md.digest();
+        }
+
+        updateBytes(msg.getPrevHash());
+        updateInt(height);
+        updateInt(msg.getLeaderID());
+        updateBytes(batchDigest);
+        updateBytes(votesDigest);
+        return md.digest();
+    }
+
+    private void updateInt(int value) {
+        intBuffer[0] = (byte) (value >>> 24);
+        intBuffer[1] = (byte) (value >>> 16);
+        intBuffer[2] = (byte) (value >>> 8);
+        intBuffer[3] = (byte) value;
+        md.update(intBuffer);
+    }
+
+    private void updateBytes(byte[] value) {
+        if (value == null) {
+            updateInt(-1);
+        } else {
+            updateInt(value.length);
+            md.update(value);
         }
-        byte[] data = bOut.toByteArray();
-        return TOMUtil.computeHash(data);
     }
 
     public byte[] getCurrentHash(){
@@ -61,22 +136,36 @@ public class Blockchain {
         return currentHeight;
     }
 
+    /**
+     * @return the lowest height whose block was not pruned yet
+     */
+    public int getLowestHeight() {
+        return lowestHeight;
+    }
 
+    /**
+     * @return the blocks still kept in memory, from the lowest to the current height
+     */
     public List<ProposalMessage> getChain() {
+        List<ProposalMessage> chain = new ArrayList<ProposalMessage>(currentHeight - lowestHeight + 1);
+        for (int h = lowestHeight; h <= currentHeight; h++) {
+            chain.add(blocks[h & mask]);
+        }
         return chain;
     }
 
 
     public ProposalMessage getBlockByHeight(int height) {
-        if (height > -1 && height <= currentHeight) {
-            return chain.get(height);
+        if (height >= lowestHeight && height <= currentHeight) {
+            return blocks[height & mask];
         }
         return null;
     }
 
     public ProposalMessage getBlockByHash(byte[] hash) {
-        if (blocks.containsKey(hash)) {
-            return blocks.get(hash);
+        Integer height = heights.get(new BlockHash(hash));
+        if (height != null) {
+            return blocks[height & mask];
         }
         return null;
     }
@@ -85,43 +174,77 @@ public class Blockchain {
     public ProposalMessage appendBlock(ProposalMessage msg) {
         // only check if the proposal extends to the current block
         if (Arrays.equals(msg.getPrevHash(),this.currentHash)) {
-            chain.add(msg);
             currentHeight++;
-
-            currentHash = computeBlockHash(msg);
-            blocks.put(currentHash,msg);
+            store(currentHeight, msg, computeBlockHash(msg, currentHeight));
 
             // return the committed block
-            if(currentHeight >= 3)
-                return chain.get(currentHeight-2);
+            if(currentHeight >= 3) {
+                int committed = currentHeight - 2;
+                prune(committed - retention);
+                return blocks[committed & mask];
+            }
         }
         return null;
     }
 
     public boolean replaceBlock(ProposalMessage msg) {
         // only check if the proposal at the same height with the current block
-        if (Arrays.equals(chain.get(currentHeight).getPrevHash(),msg.getPrevHash())) {
-            chain.remove(currentHeight);
-            chain.add(msg);
-
-            blocks.remove(currentHash);
-            currentHash = computeBlockHash(msg);
-            blocks.put(currentHash,msg);
+        if (Arrays.equals(blocks[currentHeight & mask].getPrevHash(),msg.getPrevHash())) {
+            heights.remove(hashes[currentHeight & mask]);
+            store(currentHeight, msg, computeBlockHash(msg, currentHeight));
+            return true;
         }
         return false;
     }
 
     public boolean rollBack() {
-        // remove the current block
-        if (currentHeight > 0) {
-            chain.remove(currentHeight);
+        // remove the current block, the previous one must still be in the window
+        if (currentHeight > 0 && currentHeight > lowestHeight) {
+            int slot = currentHeight & mask;
+            heights.remove(hashes[slot]);
+            blocks[slot] = null;
+            hashes[slot] = null;
             currentHeight--;
 
-            blocks.remove(currentHash);
-            currentHash = computeBlockHash(chain.get(currentHeight));
+            currentHash = hashes[currentHeight & mask].getBytes();
 
             return true;
         }
         return false;
     }
+
+    /**
+     * put a block in the window, evicting the block that used the same slot
+     */
+    private void store(int height, ProposalMessage msg, byte[] hash) {
+        if (height - lowestHeight > mask) {
+            prune(height - mask);
+        }
+        int slot = height & mask;
+        BlockHash key = new BlockHash(hash);
+        blocks[slot] = msg;
+        hashes[slot] = key;
+        heights.put(key, height);
+        currentHash = hash;
+    }
+
+    /**
+     * drop every block below the given height
+     * @param height the lowest height to keep
+     */
+    private void prune(int height) {
+        if (lowestHeight >= height) {
+            return;
+        }
+        while (lowestHeight < height && lowestHeight < currentHeight) {
+            int slot = lowestHeight & mask;
+            if (hashes[slot] != null) {
+                heights.remove(hashes[slot]);
+            }
+            blocks[slot] = null;
+            hashes[slot] = null;
+            lowestHeight++;
+        }
+        logger.debug("Pruned the blockchain up to height {}", lowestHeight);
+    }
 }
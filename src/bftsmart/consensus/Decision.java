@@ -38,6 +38,7 @@ public class Decision {
     //for benchmarking
     public TOMMessage firstMessageProposed = null;
     public int batchSize = 0;
+    public long decisionTime = 0; // time the value was decided
 
     /**
      * Creates a new instance of Decision
@@ -30,7 +30,6 @@ import bftsmart.tom.core.messages.TOMMessage;
 import java.util.LinkedHashSet;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
-import bftsmart.consensus.chainmessages.VoteMessage;
 
 
 /**
@@ -46,10 +45,8 @@ public class Epoch implements Serializable {
     private final int me; // Process ID
     private boolean[] writeSetted;
     private boolean[] acceptSetted;
-    private boolean[] voteSetted;
     private byte[][] write; // WRITE values from other processes
     private byte[][] accept; // accepted values from other processes
-    private VoteMessage[] votes;
     private boolean writeSent;
     private boolean acceptSent;
     private boolean acceptCreated;
@@ -92,12 +89,9 @@ public class Epoch implements Serializable {
 
         writeSetted = new boolean[n];
         acceptSetted = new boolean[n];
-        voteSetted = new boolean[n];
 
         Arrays.fill(writeSetted, false);
         Arrays.fill(acceptSetted, false);
-        votes = new VoteMessage[n];
-        Arrays.fill(votes, null);
 
         writeSent = false;
         acceptSent = false;
@@ -133,11 +127,9 @@ public class Epoch implements Serializable {
             
             boolean[] writeSetted = new boolean[n];
             boolean[] acceptSetted = new boolean[n];
-            boolean[] voteSetted = new boolean[n];
 
             Arrays.fill(writeSetted, false);
             Arrays.fill(acceptSetted, false);
-            Arrays.fill(voteSetted, false);
         
             for (int pid : lastView.getProcesses()) {
                 
@@ -151,7 +143,6 @@ public class Epoch implements Serializable {
 
                     writeSetted[currentPos] = this.writeSetted[lastPos];
                     acceptSetted[currentPos] = this.acceptSetted[lastPos];
-                    voteSetted[currentPos] = this.voteSetted[lastPos];
 
                 }
             }
@@ -360,41 +351,6 @@ public class Epoch implements Serializable {
         return count(acceptSetted,accept, value);
     }
 
-    /**
-     * add a count of VOTE to this acceptor
-     * @param acceptor the acceptor of current leader
-     */
-    public void setVote(int acceptor, VoteMessage msg) { // TODO: add viewnumber or some identification else
-
-        updateArrays();
-
-        //******* EDUARDO BEGIN **************//
-        int p = this.controller.getCurrentViewPos(acceptor);
-        if (p >= 0) { //it can only be setted once
-            votes[p] = msg;
-            voteSetted[p] = true;
-        }
-        //******* EDUARDO END **************//
-    }
-
-    /**
-     * Retrieves the amount of votes that leader received, no need for value for no value in VOTE
-     * @return Amount of votes that leader received
-     */
-    public int countVote() {
-        int counter = 0;
-        for (int i = 0; i < voteSetted.length; i++) {
-            if (voteSetted != null && voteSetted[i] ) {
-                counter++;
-            }
-        }
-        return counter;
-    }
-
-    public VoteMessage[] getVotes() {
-        return votes.clone();
-    }
-
     /**
      * Indicate that the consensus instance already sent its WRITE message
      */
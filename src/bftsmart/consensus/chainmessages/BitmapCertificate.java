@@ -0,0 +1,203 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.chainmessages;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A compact quorum certificate: the fields shared by all votes are sent once,
+ * the voters are a bitmap of replica IDs and only their signatures are
+ * concatenated. All signatures are checked in a single pass by the verifier.
+ */
+public class BitmapCertificate implements QuorumCertificate {
+
+    private static final long serialVersionUID = -1464368687718040243L;
+
+    private int viewNumber; // the view the votes were created in
+    private int consId; // the consensus ID the votes were created in
+    private int epoch; // the epoch the votes were created in
+    private byte[] blockHash; // the hash value of voted block
+    private BitSet voters; // the replicas that voted
+    private byte[][] signatures; // the signature of each voter, by ascending replica ID
+
+    /**
+     * to avoid EOFException in Serializable
+     */
+    public BitmapCertificate(){}
+
+    /**
+     * compacts the votes received by the leader, votes for other blocks are left out
+     * @param votes the votes received by the leader
+     * @param blockHash the hash of the block that was voted for
+     */
+    public BitmapCertificate(VoteMessage[] votes, byte[] blockHash) {
+        this.blockHash = blockHash;
+        this.voters = new BitSet();
+        this.viewNumber = -1;
+
+        VoteMessage[] byVoter = votes.clone();
+        Arrays.sort(byVoter, (a, b) -> a == null ? (b == null ? 0 : 1) :
+                (b == null ? -1 : Integer.compare(a.getSender(), b.getSender())));
+
+        int count = 0;
+        this.signatures = new byte[votes.length][];
+        for (VoteMessage vote : byVoter) {
+            if (vote == null || vote.getSignature() == null ||
+                    !Arrays.equals(vote.getBlockHash(), blockHash) || voters.get(vote.getSender())) {
+                continue;
+            }
+            if (viewNumber == -1) {
+                viewNumber = vote.getViewNumber();
+                consId = vote.getConsId();
+                epoch = vote.getEpoch();
+            } else if (vote.getViewNumber() != viewNumber || vote.getConsId() != consId ||
+                    vote.getEpoch() != epoch) {
+                continue;
+            }
+            voters.set(vote.getSender());
+            signatures[count++] = vote.getSignature();
+        }
+        this.signatures = Arrays.copyOf(signatures, count);
+    }
+
+    public int getViewNumber() {
+        return viewNumber;
+    }
+
+    public int getConsId() {
+        return consId;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public byte[] getBlockHash() {
+        return blockHash;
+    }
+
+    @Override
+    public int[] getVoters() {
+        return voters.stream().toArray();
+    }
+
+    @Override
+    public byte[][] getSignatures() {
+        return signatures;
+    }
+
+    @Override
+    public boolean verify(int quorum, VoteVerifier verifier) {
+        int[] ids = getVoters();
+        if (ids.length != signatures.length) {
+            return false;
+        }
+        byte[][] contents = new byte[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            contents[i] = VoteMessage.signedContent(viewNumber, consId, epoch, ids[i], blockHash);
+        }
+        return verifier.verifyQuorum(ids, contents, signatures, quorum);
+    }
+
+    @Override
+    public String toString() {
+        return "voters = " + voters + ", consId = " + consId;
+    }
+
+    // Implemented method of the Externalizable interface
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize());
+        write(buf);
+        out.write(buf.array());
+    }
+
+    // Implemented method of the Externalizable interface
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        read(in);
+    }
+
+    /**
+     * the number of bytes written by write(ByteBuffer)
+     */
+    int encodedSize() {
+        int size = 12 + 4 + (blockHash == null ? 0 : blockHash.length) + 2 + (voters.length() + 7) / 8;
+        for(byte[] signature : signatures) {
+            size += 2 + signature.length;
+        }
+        return size;
+    }
+
+    /**
+     * writes this certificate, shared by java serialization and ChainMessageCodec
+     */
+    void write(ByteBuffer out) {
+
+        out.putInt(viewNumber);
+        out.putInt(consId);
+        out.putInt(epoch);
+
+        if(blockHash == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(blockHash.length);
+            out.put(blockHash);
+        }
+
+        byte[] bitmap = voters.toByteArray();
+        out.putShort((short) bitmap.length);
+        out.put(bitmap);
+
+        for(byte[] signature : signatures) {
+            out.putShort((short) signature.length);
+            out.put(signature);
+        }
+    }
+
+    /**
+     * reads this certificate, shared by java serialization and ChainMessageCodec
+     */
+    void read(DataInput in) throws IOException {
+
+        viewNumber = in.readInt();
+        consId = in.readInt();
+        epoch = in.readInt();
+
+        int len = in.readInt();
+        if(len != -1) {
+            blockHash = new byte[len];
+            in.readFully(blockHash);
+        }
+
+        byte[] bitmap = new byte[in.readUnsignedShort()];
+        in.readFully(bitmap);
+        voters = BitSet.valueOf(bitmap);
+
+        signatures = new byte[voters.cardinality()][];
+        for(int i = 0; i < signatures.length; i++) {
+            signatures[i] = new byte[in.readUnsignedShort()];
+            in.readFully(signatures[i]);
+        }
+    }
+}
@@ -0,0 +1,520 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.chainmessages;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary codec for the messages of the chained protocol. The messages are
+ * written field by field in a fixed layout, without the class descriptors and
+ * block headers of java serialization. The size of a message is known before
+ * it is written, so it is encoded once into an array of the exact size, or
+ * into a buffer supplied by the transport, such as a pooled Netty buffer that
+ * is shared by all destinations. Decoding reads the fields in place from the
+ * received frame, without an intermediate stream; the byte-array fields are
+ * copied once out of the frame, because the replica keeps batches, hashes and
+ * signatures as arrays after the frame is released.
+ *
+ * The first byte of an encoded message is its type tag. The tags can never be
+ * the first byte of a java serialization stream (0xAC), which allows receivers
+ * to accept both encodings on the same connection.
+ *
+ * Layout: tag, sender, viewNumber, consId, epoch, followed by
+ *  VOTE:     blockHash, signature
+ *  PROPOSAL: prevHash, certificate tag and body, data
+ *            (a vote set is written as blockHash, count and, for each entry,
+ *            0 for a missing vote or 1 followed by the VOTE without its tag)
+ *  SYNC:     0 or 1, followed by the PROPOSAL without its tag
+ *  FETCH, FETCH_REPLY:
+ *            count, the indexes and, in a FETCH_REPLY, each request followed
+ *            by its signature
+ * where every byte array is preceded by its length, -1 standing for null.
+ */
+public final class ChainMessageCodec {
+
+    // type tags, the first byte of an encoded message
+    public static final byte VOTE      = 1;
+    public static final byte PROPOSAL  = 2;
+    public static final byte SYNC      = 3;
+    public static final byte FETCH     = 4;
+    public static final byte FETCH_REPLY = 5;
+
+    // certificate tags
+    private static final byte NO_CERTIFICATE      = 0;
+    private static final byte VOTE_SET_CERTIFICATE = 1;
+    private static final byte BITMAP_CERTIFICATE   = 2;
+
+    private static final int HEADER_SIZE = 16; // sender, viewNumber, consId and epoch
+
+    private ChainMessageCodec() {}
+
+    /**
+     * check whether the first byte of a message marks it as encoded by this codec
+     * @param tag the first byte of the message
+     * @return encoded by this codec(true) or not(false)
+     */
+    public static boolean isEncoded(int tag) {
+        return tag == VOTE || tag == PROPOSAL || tag == SYNC || tag == FETCH || tag == FETCH_REPLY;
+    }
+
+    /**
+     * encode a message of the chained protocol. The size of the message is
+     * computed first, so it is written once into an array of the exact size
+     * @param msg the message to encode
+     * @return the encoded message
+     */
+    public static byte[] encode(ChainConsensusMessage msg) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(1 + encodedSize(msg));
+        write(msg, out);
+        return out.array();
+    }
+
+    /**
+     * @param msg a message of the chained protocol
+     * @return the number of bytes written by encode(msg, out), tag included
+     */
+    public static int encodedLength(ChainConsensusMessage msg) throws IOException {
+        return 1 + encodedSize(msg);
+    }
+
+    /**
+     * encode a message of the chained protocol into a buffer provided by the
+     * caller, from its position
+     * @param msg the message to encode
+     * @param out a buffer with at least encodedLength(msg) bytes remaining
+     */
+    public static void encode(ChainConsensusMessage msg, ByteBuffer out) throws IOException {
+        if (out.remaining() < encodedLength(msg)) {
+            throw new IOException("Buffer too small for chain message: " + out.remaining() + " bytes left");
+        }
+        write(msg, out);
+    }
+
+    /**
+     * decode a message encoded by this codec
+     * @param data the encoded message, starting with its tag
+     * @return the decoded message
+     */
+    public static ChainConsensusMessage decode(byte[] data) throws IOException {
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * decode a message encoded by this codec, reading it in place
+     * @param data the encoded message, from its tag to the end of the buffer
+     * @return the decoded message
+     */
+    public static ChainConsensusMessage decode(ByteBuffer data) throws IOException {
+        Reader reader = new Reader(data);
+        ChainConsensusMessage msg;
+        byte tag = reader.readByte();
+        switch (tag) {
+            case VOTE:
+                msg = readVote(reader);
+                break;
+            case PROPOSAL:
+                msg = readProposal(reader);
+                break;
+            case SYNC:
+                msg = readSync(reader);
+                break;
+            case FETCH:
+                msg = readFetch(reader, ChainMessageFactory.FETCH);
+                break;
+            case FETCH_REPLY:
+                msg = readFetch(reader, ChainMessageFactory.FETCH_REPLY);
+                break;
+            default:
+                throw new IOException("Unknown chain message tag " + tag);
+        }
+        if (reader.buf.hasRemaining()) {
+            throw new IOException(reader.buf.remaining() + " trailing bytes in chain message");
+        }
+        return msg;
+    }
+
+    private static int encodedSize(ChainConsensusMessage msg) throws IOException {
+        switch (msg.getMsgType()) {
+            case ChainMessageFactory.VOTE:
+                return voteSize((VoteMessage) msg);
+            case ChainMessageFactory.PROPOSAL:
+                return proposalSize((ProposalMessage) msg);
+            case ChainMessageFactory.SYNC:
+                ProposalMessage proposal = ((SyncMessage) msg).getProposal();
+                return HEADER_SIZE + 1 + (proposal == null ? 0 : proposalSize(proposal));
+            case ChainMessageFactory.FETCH:
+            case ChainMessageFactory.FETCH_REPLY:
+                return fetchSize((FetchMessage) msg);
+            default:
+                throw new IOException("Unknown chain message type " + msg.getMsgType());
+        }
+    }
+
+    private static int voteSize(VoteMessage vote) {
+        return HEADER_SIZE + bytesSize(vote.getBlockHash()) + bytesSize(vote.getSignature());
+    }
+
+    private static int proposalSize(ProposalMessage msg) throws IOException {
+        int size = HEADER_SIZE + bytesSize(msg.getPrevHash()) + 1 + bytesSize(msg.getData());
+        QuorumCertificate certificate = msg.getCertificate();
+        if (certificate instanceof VoteSetCertificate) {
+            size += bytesSize(certificate.getBlockHash()) + 4;
+            VoteMessage[] votes = ((VoteSetCertificate) certificate).getVotes();
+            if (votes != null) {
+                for (VoteMessage vote : votes) {
+                    size += 1 + (vote == null ? 0 : voteSize(vote));
+                }
+            }
+        } else if (certificate instanceof BitmapCertificate) {
+            size += ((BitmapCertificate) certificate).encodedSize();
+        } else if (certificate != null) {
+            throw new IOException("Unknown certificate " + certificate.getClass().getName());
+        }
+        return size;
+    }
+
+    private static int fetchSize(FetchMessage msg) {
+        int size = HEADER_SIZE + 4 + 4 * msg.getIndexes().length;
+        if (msg.getMsgType() == ChainMessageFactory.FETCH_REPLY) {
+            for (int i = 0; i < msg.getIndexes().length; i++) {
+                size += bytesSize(msg.getRequests()[i]) + bytesSize(msg.getSignatures()[i]);
+            }
+        }
+        return size;
+    }
+
+    private static int bytesSize(byte[] b) {
+        return 4 + (b == null ? 0 : b.length);
+    }
+
+    private static void write(ChainConsensusMessage msg, ByteBuffer out) {
+        switch (msg.getMsgType()) {
+            case ChainMessageFactory.VOTE:
+                out.put(VOTE);
+                writeVote((VoteMessage) msg, out);
+                break;
+            case ChainMessageFactory.PROPOSAL:
+                out.put(PROPOSAL);
+                writeProposal((ProposalMessage) msg, out);
+                break;
+            case ChainMessageFactory.SYNC:
+                out.put(SYNC);
+                writeHeader(msg, out);
+                ProposalMessage proposal = ((SyncMessage) msg).getProposal();
+                out.put((byte) (proposal == null ? 0 : 1));
+                if (proposal != null) {
+                    writeProposal(proposal, out);
+                }
+                break;
+            case ChainMessageFactory.FETCH:
+                out.put(FETCH);
+                writeFetch((FetchMessage) msg, out);
+                break;
+            case ChainMessageFactory.FETCH_REPLY:
+                out.put(FETCH_REPLY);
+                writeFetch((FetchMessage) msg, out);
+                break;
+        }
+    }
+
+    private static void writeHeader(ChainConsensusMessage msg, ByteBuffer out) {
+        out.putInt(msg.getSender());
+        out.putInt(msg.getViewNumber());
+        out.putInt(msg.getConsId());
+        out.putInt(msg.getEpoch());
+    }
+
+    private static void writeVote(VoteMessage vote, ByteBuffer out) {
+        writeHeader(vote, out);
+        writeBytes(vote.getBlockHash(), out);
+        writeBytes(vote.getSignature(), out);
+    }
+
+    private static void writeProposal(ProposalMessage msg, ByteBuffer out) {
+        writeHeader(msg, out);
+        writeBytes(msg.getPrevHash(), out);
+
+        QuorumCertificate certificate = msg.getCertificate();
+        if (certificate == null) {
+            out.put(NO_CERTIFICATE);
+        } else if (certificate instanceof VoteSetCertificate) {
+            out.put(VOTE_SET_CERTIFICATE);
+            writeBytes(certificate.getBlockHash(), out);
+            VoteMessage[] votes = ((VoteSetCertificate) certificate).getVotes();
+            out.putInt(votes == null ? -1 : votes.length);
+            if (votes != null) {
+                for (VoteMessage vote : votes) {
+                    // the votes are indexed by replica, missing votes are null
+                    out.put((byte) (vote == null ? 0 : 1));
+                    if (vote != null) {
+                        writeVote(vote, out);
+                    }
+                }
+            }
+        } else {
+            out.put(BITMAP_CERTIFICATE);
+            ((BitmapCertificate) certificate).write(out);
+        }
+
+        writeBytes(msg.getData(), out);
+    }
+
+    private static void writeFetch(FetchMessage msg, ByteBuffer out) {
+        writeHeader(msg, out);
+        int[] indexes = msg.getIndexes();
+        out.putInt(indexes.length);
+        for (int index : indexes) {
+            out.putInt(index);
+        }
+        if (msg.getMsgType() == ChainMessageFactory.FETCH_REPLY) {
+            for (int i = 0; i < indexes.length; i++) {
+                writeBytes(msg.getRequests()[i], out);
+                writeBytes(msg.getSignatures()[i], out);
+            }
+        }
+    }
+
+    private static void writeBytes(byte[] b, ByteBuffer out) {
+        if (b == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(b.length);
+            out.put(b);
+        }
+    }
+
+    private static VoteMessage readVote(Reader in) throws IOException {
+        int sender = in.readInt();
+        int viewNumber = in.readInt();
+        int consId = in.readInt();
+        int epoch = in.readInt();
+        VoteMessage vote = new VoteMessage(in.readBytes(), viewNumber, consId, epoch, sender);
+        vote.addSignature(in.readBytes());
+        return vote;
+    }
+
+    private static ProposalMessage readProposal(Reader in) throws IOException {
+        int sender = in.readInt();
+        int viewNumber = in.readInt();
+        int consId = in.readInt();
+        int epoch = in.readInt();
+        byte[] prevHash = in.readBytes();
+
+        QuorumCertificate certificate;
+        byte certificateTag = in.readByte();
+        switch (certificateTag) {
+            case NO_CERTIFICATE:
+                certificate = null;
+                break;
+            case VOTE_SET_CERTIFICATE:
+                byte[] blockHash = in.readBytes();
+                int count = in.readInt();
+                VoteMessage[] votes = null;
+                if (count != -1) {
+                    in.checkLength(count);
+                    votes = new VoteMessage[count];
+                    for (int i = 0; i < count; i++) {
+                        votes[i] = in.readBoolean() ? readVote(in) : null;
+                    }
+                }
+                certificate = new VoteSetCertificate(votes, blockHash);
+                break;
+            case BITMAP_CERTIFICATE:
+                BitmapCertificate bitmap = new BitmapCertificate();
+                bitmap.read(in);
+                certificate = bitmap;
+                break;
+            default:
+                throw new IOException("Unknown certificate tag " + certificateTag);
+        }
+
+        byte[] data = in.readBytes();
+        return new ProposalMessage(data, prevHash, certificate, viewNumber, consId, epoch, sender);
+    }
+
+    private static SyncMessage readSync(Reader in) throws IOException {
+        int sender = in.readInt();
+        int viewNumber = in.readInt();
+        int consId = in.readInt();
+        int epoch = in.readInt();
+        ProposalMessage proposal = in.readByte() == 0 ? null : readProposal(in);
+        return new SyncMessage(proposal, viewNumber, consId, epoch, sender);
+    }
+
+    private static FetchMessage readFetch(Reader in, int msgType) throws IOException {
+        int sender = in.readInt();
+        int viewNumber = in.readInt();
+        int consId = in.readInt();
+        int epoch = in.readInt();
+        int count = in.readInt();
+        in.checkLength(count);
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = in.readInt();
+        }
+        byte[][] requests = null;
+        byte[][] signatures = null;
+        if (msgType == ChainMessageFactory.FETCH_REPLY) {
+            requests = new byte[count][];
+            signatures = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                requests[i] = in.readBytes();
+                signatures[i] = in.readBytes();
+            }
+        }
+        return new FetchMessage(msgType, indexes, requests, signatures, viewNumber, consId, epoch, sender);
+    }
+
+    /**
+     * Input over an encoded message, it rejects lengths that do not fit the
+     * message instead of allocating an arbitrary array or reading past its end.
+     * Also used to read the BitmapCertificate, which shares its layout with
+     * java serialization.
+     */
+    private static final class Reader implements DataInput {
+
+        private final ByteBuffer buf;
+
+        Reader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        private void check(int len) throws IOException {
+            if (len < 0 || len > buf.remaining()) {
+                throw new IOException("Invalid length " + len + " in chain message, " + buf.remaining() + " bytes left");
+            }
+        }
+
+        void checkLength(int len) throws IOException {
+            check(len);
+        }
+
+        byte[] readBytes() throws IOException {
+            int len = readInt();
+            if (len == -1) {
+                return null;
+            }
+            byte[] b = new byte[len];
+            readFully(b);
+            return b;
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            check(len);
+            buf.get(b, off, len);
+        }
+
+        @Override
+        public int skipBytes(int n) throws IOException {
+            int skipped = Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            check(1);
+            return buf.get();
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xff;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            check(2);
+            return buf.getShort();
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xffff;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            check(2);
+            return buf.getChar();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            check(4);
+            return buf.getInt();
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            check(8);
+            return buf.getLong();
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            check(4);
+            return buf.getFloat();
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            check(8);
+            return buf.getDouble();
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            if (!buf.hasRemaining()) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder();
+            while (buf.hasRemaining()) {
+                int c = buf.get() & 0xff;
+                if (c == '\n') {
+                    break;
+                }
+                if (c == '\r') {
+                    if (buf.hasRemaining() && buf.get(buf.position()) == '\n') {
+                        buf.get();
+                    }
+                    break;
+                }
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
+}
@@ -27,6 +27,8 @@ public class ChainMessageFactory {
     public static final int PROPOSAL    = 1110;
     public static final int VOTE        = 1111;
     public static final int SYNC        = 1112;
+    public static final int FETCH       = 1113;
+    public static final int FETCH_REPLY = 1114;
     private int from; //Replica ID of the process that send the message
 
     /**
@@ -41,14 +43,14 @@ public class ChainMessageFactory {
      * create a PROPOSAL message
      * @param data the data to propose
      * @param prevHash the hash of previous block
-     * @param votes the votes voted for previous block
+     * @param certificate the votes voted for previous block
      * @param viewNumber the view this message in
      * @param epoch the epoch this message in
      * @return a PROPOSAL message
      */
-    public ProposalMessage createPROPOSAL(byte[] data, byte[] prevHash, VoteMessage[] votes,
+    public ProposalMessage createPROPOSAL(byte[] data, byte[] prevHash, QuorumCertificate certificate,
                                           int viewNumber, int consId, int epoch) {
-        return new ProposalMessage(data, prevHash, votes, viewNumber, consId, epoch, this.from);
+        return new ProposalMessage(data, prevHash, certificate, viewNumber, consId, epoch, this.from);
     }
 
     /**
@@ -73,4 +75,26 @@ public class ChainMessageFactory {
     public SyncMessage createSYNC(ProposalMessage msg, int viewNumber, int consId, int epoch) {
         return new SyncMessage(msg, viewNumber, consId, epoch, this.from);
     }
-}
\ No newline at end of file
+
+    /**
+     * create a FETCH message
+     * @param indexes the positions in the batch of the requests missing
+     * @param consId the consensus ID of the digest-only PROPOSAL
+     * @return a FETCH message
+     */
+    public FetchMessage createFETCH(int[] indexes, int consId) {
+        return new FetchMessage(FETCH, indexes, null, null, 0, consId, 0, this.from);
+    }
+
+    /**
+     * create a FETCH_REPLY message
+     * @param indexes the positions in the batch of the requests carried
+     * @param requests the serialized requests
+     * @param signatures the signatures of the requests
+     * @param consId the consensus ID of the digest-only PROPOSAL
+     * @return a FETCH_REPLY message
+     */
+    public FetchMessage createFETCH_REPLY(int[] indexes, byte[][] requests, byte[][] signatures, int consId) {
+        return new FetchMessage(FETCH_REPLY, indexes, requests, signatures, 0, consId, 0, this.from);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.chainmessages;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+/**
+ * Asks the leader for the requests of a digest-only PROPOSAL that a replica
+ * did not receive from the clients (FETCH), or carries them back (FETCH_REPLY).
+ * The requests are identified by their position in the batch.
+ */
+public class FetchMessage extends ChainConsensusMessage {
+
+    private static final long serialVersionUID = 8287313114073743918L;
+
+    private int[] indexes; // the positions of the requests in the batch
+    private byte[][] requests; // the serialized requests, only in a FETCH_REPLY
+    private byte[][] signatures; // the signatures of the requests, only in a FETCH_REPLY
+
+    /**
+     * to avoid EOFException in Serializable
+     */
+    public FetchMessage(){}
+
+    public FetchMessage(int msgType, int[] indexes, byte[][] requests, byte[][] signatures,
+                        int viewNumber, int consId, int epoch, int from) {
+        super(msgType, viewNumber, consId, epoch, from);
+
+        this.indexes = indexes;
+        this.requests = requests;
+        this.signatures = signatures;
+    }
+
+    public int[] getIndexes() {
+        return indexes;
+    }
+
+    public byte[][] getRequests() {
+        return requests;
+    }
+
+    public byte[][] getSignatures() {
+        return signatures;
+    }
+
+    @Override
+    public String toString(){
+        return "\ntype = " + (msgType == ChainMessageFactory.FETCH ? "FETCH" : "FETCH_REPLY") +
+                "\nviewNumber = " + super.viewNumber +
+                "\nconsId = " + super.consId +
+                "\nindexes = " + Arrays.toString(this.indexes);
+    }
+
+    // Implemented method of the Externalizable interface
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+
+        super.writeExternal(out);
+
+        out.writeInt(indexes.length);
+        for (int index : indexes) {
+            out.writeInt(index);
+        }
+
+        out.writeBoolean(requests != null);
+        if (requests != null) {
+            for (int i = 0; i < indexes.length; i++) {
+                writeBytes(out, requests[i]);
+                writeBytes(out, signatures[i]);
+            }
+        }
+    }
+
+    private static void writeBytes(ObjectOutput out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    // Implemented method of the Externalizable interface
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+
+        super.readExternal(in);
+
+        indexes = new int[in.readInt()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = in.readInt();
+        }
+
+        if (in.readBoolean()) {
+            requests = new byte[indexes.length][];
+            signatures = new byte[indexes.length][];
+            for (int i = 0; i < indexes.length; i++) {
+                requests[i] = readBytes(in);
+                signatures[i] = readBytes(in);
+            }
+        }
+    }
+
+    private static byte[] readBytes(ObjectInput in) throws IOException {
+        int len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+}
@@ -19,7 +19,6 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
-import bftsmart.reconfiguration.util.TOMConfiguration;
 import bftsmart.tom.util.TOMUtil;
 
 import java.security.PublicKey;
@@ -31,7 +30,8 @@ public class ProposalMessage extends ChainConsensusMessage {
 
     private byte[] data; // the data that the block contains
     private byte[] prevHash; // the hash value of the referred block
-    private VoteMessage[] votes; // the set of votes to prove this block valid
+    private QuorumCertificate certificate; // the votes that prove the previous block valid
+    private transient byte[] batchDigest; // the digest of data, computed once for the block header
 
     private int leaderID; // identify the current leader
 //    private byte[] signature; // signed by the current leader
@@ -43,13 +43,13 @@ public class ProposalMessage extends ChainConsensusMessage {
      */
     public ProposalMessage(){}
 
-    public ProposalMessage(byte[] data, byte[] prevHash, VoteMessage[] votes,
+    public ProposalMessage(byte[] data, byte[] prevHash, QuorumCertificate certificate,
                            int viewNumber, int consId, int epoch, int from) {
         super(ChainMessageFactory.PROPOSAL, viewNumber, consId, epoch, from);
 
         this.data = data;
         this.prevHash = prevHash;
-        this.votes = votes;
+        this.certificate = certificate;
         this.leaderID = from;
     }
 
@@ -66,32 +66,41 @@ public class ProposalMessage extends ChainConsensusMessage {
 //        return ret;
 //    }
 
-    public boolean verifyVotes(int Quorum, TOMConfiguration TC) {
-        int count = 0;
-        for(VoteMessage vote : this.votes) {
-            if(vote == null){
-                continue;
-            }
-            PublicKey pubKey = TC.getPublicKey(vote.getSender());
-            if(Arrays.equals(vote.getBlockHash(), this.prevHash)) {
-                count += 1;
-                if(count > Quorum){
-                    break;
-                }
-            }
-        }
-        if(count <= Quorum) {
+    /**
+     * check whether this proposal carries more than Quorum valid votes for the previous block
+     * @param Quorum the quorum size
+     * @param verifier the verifier of the vote signatures
+     * @return valid(true) or not(false)
+     */
+    public boolean verifyVotes(int Quorum, VoteVerifier verifier) {
+        if (this.certificate == null || !Arrays.equals(this.certificate.getBlockHash(), this.prevHash)) {
             return false;
         }
-        return true;
+        return this.certificate.verify(Quorum, verifier);
     }
 
     public byte[] getData() {
         return data;
     }
 
-    public VoteMessage[] getVotes() {
-        return votes;
+    /**
+     * @return the digest of the data of this block, if it was computed already
+     */
+    public byte[] getBatchDigest() {
+        return batchDigest;
+    }
+
+    /**
+     * keep the digest of the data of this block, so that it is computed only
+     * once however many times the block is hashed
+     * @param batchDigest the digest of the data
+     */
+    public void setBatchDigest(byte[] batchDigest) {
+        this.batchDigest = batchDigest;
+    }
+
+    public QuorumCertificate getCertificate() {
+        return certificate;
     }
 
 //    public byte[] getSignature() {
@@ -113,7 +122,7 @@ public class ProposalMessage extends ChainConsensusMessage {
                 "\nepoch = " + super.epoch +
                 "\ndata = " + Arrays.toString(this.data) +
                 "\nprevHash = " + Arrays.toString(this.prevHash) +
-                "\nvotes = " + Arrays.toString(this.votes) +
+                "\ncertificate = " + this.certificate +
                 "\nleaderID = " + this.leaderID;
 //                "\nsignature = " + Arrays.toString(this.signature);
     }
@@ -147,14 +156,7 @@ public class ProposalMessage extends ChainConsensusMessage {
 //            out.write(signature);
 //        }
 
-        if(votes == null) {
-            out.writeInt(-1);
-        } else {
-            out.writeInt(votes.length);
-            for(VoteMessage v : votes) {
-                out.writeObject(v);
-            }
-        }
+        out.writeObject(certificate);
 
     }
 
@@ -190,13 +192,7 @@ public class ProposalMessage extends ChainConsensusMessage {
 //            }while(len > 0);
 //        }
 
-        len = in.readInt();
-        if(len != -1) {
-            votes = new VoteMessage[len];
-            for(int i = 0; i < len; i++) {
-                votes[i] = (VoteMessage)in.readObject();
-            }
-        }
+        certificate = (QuorumCertificate)in.readObject();
 
     }
 }
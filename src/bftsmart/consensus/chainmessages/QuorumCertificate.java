@@ -0,0 +1,52 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.chainmessages;
+
+import java.io.Externalizable;
+
+/**
+ * The proof carried by a PROPOSAL that a quorum of replicas voted for the
+ * previous block. Implementations differ in how the votes are encoded, so
+ * that the size of a PROPOSAL and the cost of checking it can be traded off
+ * against the number of replicas.
+ */
+public interface QuorumCertificate extends Externalizable {
+
+    /**
+     * @return the hash of the block that was voted for
+     */
+    byte[] getBlockHash();
+
+    /**
+     * @return the replicas whose votes for getBlockHash() are in this
+     * certificate, once each and by ascending replica ID, regardless of
+     * the encoding, since the hash of a block digests them
+     */
+    int[] getVoters();
+
+    /**
+     * @return the signature of each voter, in the same order as getVoters()
+     */
+    byte[][] getSignatures();
+
+    /**
+     * check whether more than quorum replicas voted for the block
+     * @param quorum the quorum size
+     * @param verifier the verifier of the vote signatures
+     * @return valid(true) or not(false)
+     */
+    boolean verify(int quorum, VoteVerifier verifier);
+}
@@ -34,6 +34,10 @@ public class SyncMessage extends ChainConsensusMessage {
         this.msg = msg;
     }
 
+    public ProposalMessage getProposal() {
+        return msg;
+    }
+
     @Override
     public String toString(){
         return "\ntype = SYNC" +
@@ -19,6 +19,7 @@ package bftsmart.consensus.chainmessages;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.util.Arrays;
 import bftsmart.tom.util.TOMUtil;
@@ -50,12 +51,36 @@ public class VoteMessage extends ChainConsensusMessage {
     }
 
     public boolean verifySignature(PublicKey pubKey) {
-        byte[] signature = this.signature;
-        this.signature = null;
-        byte[] b = TOMUtil.computeHash(this.getBytes());
-        boolean ret = TOMUtil.verifySignature(pubKey, b, signature);
-        this.signature = signature;
-        return ret;
+        byte[] b = TOMUtil.computeHash(this.getSignedContent());
+        return TOMUtil.verifySignature(pubKey, b, signature);
+    }
+
+    /**
+     * the content covered by the signature of this vote, encoded without
+     * java serialization so that verifying a vote stays cheap
+     * @return the fields of this vote, except the signature
+     */
+    public byte[] getSignedContent() {
+        return signedContent(viewNumber, consId, epoch, replicaID, blockHash);
+    }
+
+    /**
+     * the content signed by a replica when voting, also used to check the
+     * signatures of a quorum certificate that no longer carries the votes
+     */
+    public static byte[] signedContent(int viewNumber, int consId, int epoch, int replicaID, byte[] blockHash) {
+        int hashLength = blockHash == null ? 0 : blockHash.length;
+        ByteBuffer buf = ByteBuffer.allocate(24 + hashLength);
+        buf.putInt(ChainMessageFactory.VOTE);
+        buf.putInt(viewNumber);
+        buf.putInt(consId);
+        buf.putInt(epoch);
+        buf.putInt(replicaID);
+        buf.putInt(blockHash == null ? -1 : hashLength);
+        if (blockHash != null) {
+            buf.put(blockHash);
+        }
+        return buf.array();
     }
 
     public byte[] getBlockHash() {
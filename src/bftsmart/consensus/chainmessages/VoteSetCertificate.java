@@ -0,0 +1,124 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.chainmessages;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+/**
+ * A quorum certificate that carries every VOTE message received by the
+ * leader, the size of the PROPOSAL grows with the number of replicas.
+ */
+public class VoteSetCertificate implements QuorumCertificate {
+
+    private static final long serialVersionUID = 2947159369888986430L;
+
+    private VoteMessage[] votes; // the set of votes to prove the block valid
+    private byte[] blockHash; // the hash value of voted block
+    private transient BitmapCertificate compact; // the votes kept by getVoters() and getSignatures()
+
+    /**
+     * to avoid EOFException in Serializable
+     */
+    public VoteSetCertificate(){}
+
+    public VoteSetCertificate(VoteMessage[] votes, byte[] blockHash) {
+        this.votes = votes;
+        this.blockHash = blockHash;
+    }
+
+    public VoteMessage[] getVotes() {
+        return votes;
+    }
+
+    @Override
+    public byte[] getBlockHash() {
+        return blockHash;
+    }
+
+    /**
+     * The voters are those a BitmapCertificate would keep from these votes,
+     * in the same order, so that a block hashes the same with both encodings
+     */
+    @Override
+    public int[] getVoters() {
+        return compact().getVoters();
+    }
+
+    @Override
+    public byte[][] getSignatures() {
+        return compact().getSignatures();
+    }
+
+    private BitmapCertificate compact() {
+        if (compact == null) {
+            compact = new BitmapCertificate(votes == null ? new VoteMessage[0] : votes, blockHash);
+        }
+        return compact;
+    }
+
+    @Override
+    public boolean verify(int quorum, VoteVerifier verifier) {
+        return verifier.verifyQuorum(votes, blockHash, quorum);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(this.votes);
+    }
+
+    // Implemented method of the Externalizable interface
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+
+        if(blockHash == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(blockHash.length);
+            out.write(blockHash);
+        }
+
+        if(votes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(votes.length);
+            for(VoteMessage v : votes) {
+                out.writeObject(v);
+            }
+        }
+    }
+
+    // Implemented method of the Externalizable interface
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+
+        int len = in.readInt();
+        if(len != -1) {
+            blockHash = new byte[len];
+            in.readFully(blockHash);
+        }
+
+        len = in.readInt();
+        if(len != -1) {
+            votes = new VoteMessage[len];
+            for(int i = 0; i < len; i++) {
+                votes[i] = (VoteMessage)in.readObject();
+            }
+        }
+    }
+}
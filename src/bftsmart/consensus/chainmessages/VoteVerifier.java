@@ -0,0 +1,245 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.chainmessages;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.reconfiguration.util.TOMConfiguration;
+import bftsmart.tom.util.TOMUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class verifies the votes carried by a PROPOSAL. The signatures are
+ * checked in parallel on a dedicated pool, using one initialized signature
+ * engine per replica and thread, and the verification stops as soon as a
+ * quorum of valid votes is found. Votes that were already verified are
+ * remembered, so a proposal processed again is not re-verified.
+ */
+public class VoteVerifier {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int CACHE_SIZE = 4096; // number of verified votes remembered
+
+    private TOMConfiguration conf;
+    private ExecutorService verifierExecutor; // thread pool used to paralelise signature verification
+    private ThreadLocal<Map<Integer, Signature>> engines = ThreadLocal.withInitial(HashMap::new);
+    private Map<ByteBuffer, Boolean> verified; // digest and signature of the votes already verified
+
+    public VoteVerifier(TOMConfiguration conf) {
+        this.conf = conf;
+        int nThreads = Math.max(1, Math.min(conf.getN(), Runtime.getRuntime().availableProcessors()));
+        this.verifierExecutor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Vote Verifier " + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.verified = new LinkedHashMap<ByteBuffer, Boolean>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * check whether there are more than quorum votes for the given block,
+     * each one from a different replica and with a valid signature
+     * @param votes the votes carried by the PROPOSAL
+     * @param blockHash the hash of the block that was voted for
+     * @param quorum the quorum size
+     * @return valid(true) or not(false)
+     */
+    public boolean verifyQuorum(VoteMessage[] votes, byte[] blockHash, int quorum) {
+        if (votes == null) {
+            return false;
+        }
+
+        int count = 0;
+        int[] voters = new int[votes.length];
+        byte[][] contents = new byte[votes.length][];
+        byte[][] signatures = new byte[votes.length][];
+        for (VoteMessage vote : votes) {
+            if (vote == null || !Arrays.equals(vote.getBlockHash(), blockHash)) {
+                continue;
+            }
+            voters[count] = vote.getSender();
+            contents[count] = vote.getSignedContent();
+            signatures[count] = vote.getSignature();
+            count++;
+        }
+
+        return verifyQuorum(Arrays.copyOf(voters, count), contents, signatures, quorum);
+    }
+
+    /**
+     * check whether more than quorum of the given signatures are valid, each
+     * one from a different replica. Used by every kind of quorum certificate
+     * @param voters the replicas that signed
+     * @param contents the content signed by each replica
+     * @param signatures the signature of each replica
+     * @param quorum the quorum size
+     * @return valid(true) or not(false)
+     */
+    public boolean verifyQuorum(int[] voters, byte[][] contents, byte[][] signatures, int quorum) {
+        int valid = 0;
+        List<Integer> toVerify = new ArrayList<>(voters.length);
+        List<byte[]> digests = new ArrayList<>(voters.length);
+        List<ByteBuffer> keys = new ArrayList<>(voters.length);
+        Set<Integer> distinct = new HashSet<>();
+
+        for (int i = 0; i < voters.length; i++) {
+            if (contents[i] == null || signatures[i] == null || !distinct.add(voters[i])) {
+                continue;
+            }
+            byte[] digest = TOMUtil.computeHash(contents[i]);
+            ByteBuffer key = cacheKey(digest, signatures[i]);
+            if (isVerified(key)) {
+                valid++;
+            } else {
+                toVerify.add(i);
+                digests.add(digest);
+                keys.add(key);
+            }
+        }
+
+        if (valid > quorum) {
+            return true;
+        }
+        if (valid + toVerify.size() <= quorum) {
+            return false;
+        }
+
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(verifierExecutor);
+        List<Future<Boolean>> futures = new ArrayList<>(toVerify.size());
+        for (int i = 0; i < toVerify.size(); i++) {
+            int voter = voters[toVerify.get(i)];
+            byte[] signature = signatures[toVerify.get(i)];
+            byte[] digest = digests.get(i);
+            ByteBuffer key = keys.get(i);
+            futures.add(completion.submit(() -> verify(voter, digest, signature, key)));
+        }
+
+        int remaining = toVerify.size();
+        try {
+            // stop as soon as the quorum is reached, or can no longer be reached
+            while (remaining > 0 && valid <= quorum && valid + remaining > quorum) {
+                if (completion.take().get()) {
+                    valid++;
+                }
+                remaining--;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Error while verifying votes", e);
+            return false;
+        } finally {
+            for (Future<Boolean> f : futures) {
+                f.cancel(false);
+            }
+        }
+
+        return valid > quorum;
+    }
+
+    /**
+     * Stops the verification threads
+     */
+    public void shutdown() {
+        verifierExecutor.shutdownNow();
+    }
+
+    private boolean verify(int voter, byte[] digest, byte[] signature, ByteBuffer key) {
+        Signature engine = getEngine(voter);
+        if (engine == null) {
+            return false;
+        }
+        boolean result;
+        try {
+            result = TOMUtil.verifySignature(engine, digest, signature);
+        } catch (SignatureException ex) {
+            logger.warn("Malformed signature in vote from replica {}", voter);
+            engines.get().remove(voter);
+            return false;
+        }
+        if (result) {
+            synchronized (verified) {
+                verified.put(key, Boolean.TRUE);
+            }
+        } else {
+            logger.warn("Invalid signature in vote from replica {}", voter);
+        }
+        return result;
+    }
+
+    private Signature getEngine(int replica) {
+        Map<Integer, Signature> threadEngines = engines.get();
+        Signature engine = threadEngines.get(replica);
+        if (engine == null) {
+            PublicKey pubKey = conf.getPublicKey(replica);
+            if (pubKey == null) {
+                logger.warn("No public key for replica {}", replica);
+                return null;
+            }
+            try {
+                engine = TOMUtil.getSigEngine();
+                engine.initVerify(pubKey);
+                threadEngines.put(replica, engine);
+            } catch (Exception ex) {
+                logger.error("Signature error.", ex);
+                return null;
+            }
+        }
+        return engine;
+    }
+
+    private boolean isVerified(ByteBuffer key) {
+        synchronized (verified) {
+            return verified.get(key) != null;
+        }
+    }
+
+    private ByteBuffer cacheKey(byte[] digest, byte[] signature) {
+        ByteBuffer key = ByteBuffer.allocate(digest.length + signature.length);
+        key.put(digest).put(signature);
+        key.flip();
+        return key;
+    }
+}
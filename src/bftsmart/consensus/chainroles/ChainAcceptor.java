@@ -18,15 +18,33 @@ package bftsmart.consensus.chainroles;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.clientsmanagement.RequestList;
 import bftsmart.consensus.Decision;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.BatchDigest;
+import bftsmart.tom.util.LatencyHistogram;
+import bftsmart.tom.util.MetricsRegistry;
 import bftsmart.tom.util.TOMUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +61,8 @@ import bftsmart.consensus.chainmessages.ProposalMessage;
 import bftsmart.consensus.chainmessages.VoteMessage;
 import bftsmart.consensus.chainmessages.SyncMessage;
 import bftsmart.consensus.chainmessages.ChainMessageFactory;
+import bftsmart.consensus.chainmessages.FetchMessage;
+import bftsmart.consensus.chainmessages.VoteVerifier;
 import bftsmart.consensus.Blockchain;
 
 public final class ChainAcceptor {
@@ -54,8 +74,31 @@ public final class ChainAcceptor {
     private TOMLayer tomLayer; // TOM layer
     private ServerViewController controller;// ServerViewController
     private ExecutorService proofExecutor = null;// thread pool used to paralelise creation of consensus proofs
-    private Blockchain blockchain;
+    private Blockchain[] blockchains; // the chain of each instance, a single one unless several chains order the requests
     private PrivateKey privKey;
+    private VoteVerifier voteVerifier; // verifies the votes carried by the PROPOSALs
+    private int pipelineDepth; // how many heights may be in flight before waiting for execution
+    private LatencyHistogram proposalToDecide; // time from the PROPOSAL received to the block decided
+    private static final long FETCH_TIMEOUT = 500; // milliseconds before the missing requests are fetched from another replica
+    private static final int RECENT_BATCHES = 16; // number of accepted batches kept to answer FETCHes
+    private ReentrantLock awaitLock = new ReentrantLock(); // guards awaited and the deferral of PROPOSALs
+    private volatile AwaitedProposal awaited = null; // the digest-only PROPOSAL waiting for requests
+    private ConcurrentSkipListMap<Integer, ProposalMessage> deferred = new ConcurrentSkipListMap<>(); // PROPOSALs received meanwhile, by cid
+    private ScheduledExecutorService fetchTimer; // sends the FETCHes again when the requests do not arrive
+    private Map<Integer, TOMMessage[]> recentBatches; // requests of the last digest-only PROPOSALs accepted, by height
+    // hashes the requests of digest-only PROPOSALs, which are rebuilt by the threads delivering PROPOSALs and FETCH_REPLYs
+    private ThreadLocal<MessageDigest> md = ThreadLocal.withInitial(() -> {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (Exception e) {
+            logger.error("Failed to get message digest engine", e);
+            return null;
+        }
+    });
+    private ReentrantLock voteLock = new ReentrantLock();
+    private int votedUpTo = -1; // the highest consensus voted for, when several chains order the requests
+    private int votedRegency = -1; // the regency in which those VOTEs were sent
+    private AtomicBoolean replaying = new AtomicBoolean(false); // the blocks that follow a decision are being processed
 
     /**
      * Creates a new instance of Acceptor.
@@ -63,18 +106,61 @@ public final class ChainAcceptor {
      * @param communication Replicas communication system
      * @param factory       Message factory for PaW messages
      * @param controller
+     * @param blockchains the chain of each instance
      */
     public ChainAcceptor(ServerCommunicationSystem communication,
                          ChainMessageFactory factory,
                          ServerViewController controller,
-                         Blockchain blockchain) {
+                         Blockchain[] blockchains) {
         this.communication = communication;
         this.me = controller.getStaticConf().getProcessId();
         this.factory = factory;
         this.controller = controller;
         this.proofExecutor = Executors.newSingleThreadExecutor();
-        this.blockchain = blockchain;
+        this.blockchains = blockchains;
         this.privKey = controller.getStaticConf().getPrivateKey();
+        this.pipelineDepth = controller.getStaticConf().getPipelineDepth();
+        this.voteVerifier = new VoteVerifier(controller.getStaticConf());
+        this.fetchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Fetch timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.recentBatches = Collections.synchronizedMap(new LinkedHashMap<Integer, TOMMessage[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, TOMMessage[]> eldest) {
+                return size() > RECENT_BATCHES;
+            }
+        });
+    }
+
+    /**
+     * Stops the threads used to verify the PROPOSALs and to create the proofs
+     */
+    public void shutdown() {
+        voteVerifier.shutdown();
+        proofExecutor.shutdownNow();
+        fetchTimer.shutdownNow();
+    }
+
+    /**
+     * A digest-only PROPOSAL whose requests were not all received from the
+     * clients. Its fields are guarded by awaitLock
+     */
+    private static class AwaitedProposal {
+        final ProposalMessage msg;
+        final BatchDigest digest;
+        final TOMMessage[] requests; // the requests of the batch, null while missing
+        final long receivedTime;
+        int attempts = 0; // the number of replicas the missing requests were fetched from
+        ScheduledFuture<?> retransmit = null; // fetches the requests from the next replica
+
+        AwaitedProposal(ProposalMessage msg, BatchDigest digest, TOMMessage[] requests, long receivedTime) {
+            this.msg = msg;
+            this.digest = digest;
+            this.requests = requests;
+            this.receivedTime = receivedTime;
+        }
     }
 
     /**
@@ -90,6 +176,7 @@ public final class ChainAcceptor {
 
     public void setTOMLayer(TOMLayer tomLayer) {
         this.tomLayer = tomLayer;
+        this.proposalToDecide = tomLayer.getMetrics().histogram(MetricsRegistry.PROPOSAL_TO_DECIDE);
     }
 
     /**
@@ -111,43 +198,57 @@ public final class ChainAcceptor {
     }
 
     /**
-     * start a consensus by follower's voting
+     * the chain a consensus appends its block to
      * @param cid
      */
-    public void startConsensus(int cid, long receiveTime) {
-        //for benchmark
-        Consensus con = executionManager.getConsensus(cid);
-        con.lock.lock();
-        Decision dec = con.getDecision();
-        if(dec.firstMessageProposed == null) {
-            dec.firstMessageProposed = new TOMMessage();
-        }
-        if(dec.firstMessageProposed != null) {
-            dec.firstMessageProposed.consensusStartTime = System.nanoTime();
+    private Blockchain blockchainOf(int cid) {
+        return blockchains[executionManager.getInstance(cid)];
+    }
+
+    /**
+     * start a consensus by follower's voting. When several chains order the
+     * requests, the previous block of the next block of every chain is
+     * already appended, so the VOTEs for all of them are sent at once and
+     * their leaders propose in parallel
+     * @param cid
+     */
+    public void startConsensus(int cid) {
+        int instances = executionManager.getInstances();
+        if (instances == 1) {
+            vote(cid);
+            return;
         }
-        if(dec.firstMessageProposed != null) {
-            dec.firstMessageProposed.deliveryTime = receiveTime;
+        voteLock.lock();
+        try {
+            int regency = tomLayer.getSynchronizer().getLCManager().getLastReg();
+            if (regency != votedRegency) {
+                // the chains have new leaders, which did not receive the VOTEs
+                votedRegency = regency;
+                votedUpTo = -1;
+            }
+            for (int c = Math.max(cid, votedUpTo + 1); c < cid + instances; c++) {
+                vote(c);
+            }
+            votedUpTo = Math.max(votedUpTo, cid + instances - 1);
+        } finally {
+            voteLock.unlock();
         }
-        con.lock.unlock();
-
+    }
 
-        VoteMessage v = factory.createVOTE(blockchain.getCurrentHash(), 0, cid, 0);
-        byte[] signature = TOMUtil.signMessage(privKey, TOMUtil.computeHash(v.getBytes()));
+    /**
+     * send a VOTE for the current block of the chain of a consensus to its leader
+     * @param cid
+     */
+    private void vote(int cid) {
+        VoteMessage v = factory.createVOTE(blockchainOf(cid).getCurrentHash(), 0, cid, 0);
+        byte[] signature = TOMUtil.signMessage(privKey, TOMUtil.computeHash(v.getSignedContent()));
         v.addSignature(signature);
 
         int[] leader = new int[1];
-        leader[0] = executionManager.getCurrentLeader();
-
-        //for benchmark
-        con.lock.lock();
-        if(dec.firstMessageProposed != null) {
-            dec.firstMessageProposed.voteSentTime = System.nanoTime();
-        }
-        con.lock.unlock();
-
+        leader[0] = executionManager.getLeader(cid);
 
         communication.send(leader, v);
-        logger.debug("I've sent VOTE in cid {} to leader {}", cid, executionManager.getCurrentLeader());
+        logger.debug("I've sent VOTE in cid {} to leader {}", cid, leader[0]);
 
     }
 
@@ -163,16 +264,14 @@ public final class ChainAcceptor {
         logger.debug("message = " + msg.toString());
         switch (msg.getMsgType()) {
             case ChainMessageFactory.PROPOSAL:
-                //for benchmark
-                Decision dec = epoch.getConsensus().getDecision();
-                if(dec.firstMessageProposed != null) {
-                    dec.firstMessageProposed.proposalReceivedTime = System.nanoTime();
-                }
                 proposalReceived(epoch, (ProposalMessage)msg);
                 break;
             case ChainMessageFactory.SYNC:
                 syncReceived(epoch, (SyncMessage)msg);
                 break;
+            case ChainMessageFactory.FETCH_REPLY:
+                fetchReplyReceived((FetchMessage)msg);
+                break;
             default:
                 logger.info("unexpected type of message.");
         }
@@ -186,18 +285,349 @@ public final class ChainAcceptor {
      * @param msg the PROPOSE message
      */
     public void proposalReceived(Epoch epoch, ProposalMessage msg) {
+        long receivedTime = System.nanoTime();
         int cid = epoch.getConsensus().getId();
 
         logger.debug("PROPOSAL received from:{}, for consensus cId:{}",
                 msg.getSender(), cid);
+        awaitLock.lock();
+        try {
+            AwaitedProposal pending = awaited;
+            if (pending != null && pending.msg.getSender() != executionManager.getLeader(pending.msg.getConsId())) {
+                // the leader that would send the requests was replaced
+                stopAwaiting();
+                pending = null;
+            }
+            if (pending != null && msg.getConsId() > pending.msg.getConsId()) {
+                // it extends a block not appended yet, wait for the requests of that block
+                deferred.put(msg.getConsId(), msg);
+                logger.debug("PROPOSAL for cid {} deferred until cid {} has its requests", cid, pending.msg.getConsId());
+                return;
+            }
+        } finally {
+            awaitLock.unlock();
+        }
         if (checkPROPOSAL(msg)) {
-            blockchain.appendBlock(msg);
-            decide(msg);
+            byte[] value = msg.getData();
+            if (controller.getStaticConf().useDigestProposals()) {
+                value = rebuildBatch(msg, receivedTime);
+                if (value == null) {
+                    return;
+                }
+            }
+            acceptProposal(msg, value, receivedTime);
         } else {
             logger.info("PROPOSAL invalid.");
         }
     }
 
+    /**
+     * append the block of a valid PROPOSAL and decide its batch
+     * @param msg the PROPOSAL message
+     * @param value the batch of the PROPOSAL
+     * @param receivedTime when the PROPOSAL was received
+     */
+    private void acceptProposal(ProposalMessage msg, byte[] value, long receivedTime) {
+        TOMMessage[] requests = tomLayer.checkProposedValue(value, true);
+        if (requests == null || !inInstance(msg.getConsId(), requests)) {
+            logger.warn("PROPOSAL for cid {} carries an invalid batch", msg.getConsId());
+            return;
+        }
+        blockchainOf(msg.getConsId()).appendBlock(msg);
+        if (controller.getStaticConf().useDigestProposals()) {
+            // the replicas that miss some of the requests may fetch them from this one
+            recentBatches.put(msg.getConsId(), requests);
+        }
+        decide(msg, value, requests);
+        proposalToDecide.record(executionManager.getConsensus(msg.getConsId()).getDecision().decisionTime - receivedTime);
+        if (pipelineDepth > 1) {
+            voteAhead();
+        }
+        if (executionManager.getInstances() > 1 && replaying.compareAndSet(false, true)) {
+            // the next blocks, proposed by the leaders of the other chains, may have arrived already
+            try {
+                tomLayer.processOutOfContext();
+            } finally {
+                replaying.set(false);
+            }
+        }
+    }
+
+    /**
+     * check whether the requests of a block are from the clients of its chain
+     * @param cid the consensus of the block
+     * @param requests the requests of the block
+     */
+    private boolean inInstance(int cid, TOMMessage[] requests) {
+        if (executionManager.getInstances() == 1) {
+            return true;
+        }
+        int instance = executionManager.getInstance(cid);
+        for (TOMMessage request : requests) {
+            if (tomLayer.clientsManager.getPartition(request.getSender()) != instance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * rebuild the batch of a digest-only PROPOSAL from the requests received
+     * from the clients. The requests missing are fetched from the leader, or
+     * from the other replicas if it does not send them in time, and the
+     * PROPOSAL is accepted once they arrive
+     * @param msg the digest-only PROPOSAL message
+     * @param receivedTime when the PROPOSAL was received
+     * @return the batch, or null if some requests are missing
+     */
+    private byte[] rebuildBatch(ProposalMessage msg, long receivedTime) {
+        BatchDigest digest;
+        try {
+            digest = new BatchDigest(msg.getData());
+        } catch (RuntimeException e) {
+            logger.warn("PROPOSAL for cid {} carries an invalid batch digest", msg.getConsId(), e);
+            return null;
+        }
+
+        boolean useSignatures = controller.getStaticConf().getUseSignatures() == 1;
+        TOMMessage[] requests = new TOMMessage[digest.size()];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < requests.length; i++) {
+            TOMMessage request = tomLayer.clientsManager.getRequest(digest.getSender(i), digest.getSequence(i));
+            if (digest.matches(md.get(), i, request, useSignatures)) {
+                requests[i] = request;
+            } else {
+                missing.add(i);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return digest.rebuild(Arrays.asList(requests), useSignatures);
+        }
+
+        awaitLock.lock();
+        try {
+            if (awaited != null) {
+                // another PROPOSAL waits for its requests, this one is processed after it
+                deferred.put(msg.getConsId(), msg);
+                logger.debug("PROPOSAL for cid {} deferred until cid {} has its requests",
+                        msg.getConsId(), awaited.msg.getConsId());
+                return null;
+            }
+            awaited = new AwaitedProposal(msg, digest, requests, receivedTime);
+            fetchMissing(awaited);
+        } finally {
+            awaitLock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * send a FETCH for the requests still missing from a digest-only PROPOSAL,
+     * to its leader the first time and to each of the other replicas after
+     * that, and schedule the next attempt. Must be called holding awaitLock
+     * @param proposal the PROPOSAL waiting for requests
+     */
+    private void fetchMissing(AwaitedProposal proposal) {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < proposal.requests.length; i++) {
+            if (proposal.requests[i] == null) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        int[] indexes = new int[missing.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = missing.get(i);
+        }
+
+        List<Integer> sources = new ArrayList<>();
+        sources.add(proposal.msg.getSender());
+        for (int replica : controller.getCurrentViewOtherAcceptors()) {
+            if (replica != proposal.msg.getSender()) {
+                sources.add(replica);
+            }
+        }
+        int target = sources.get(proposal.attempts % sources.size());
+        proposal.attempts++;
+
+        communication.send(new int[]{target}, factory.createFETCH(indexes, proposal.msg.getConsId()));
+        logger.debug("Fetching {} of {} requests of cid {} from {}", indexes.length, proposal.requests.length,
+                proposal.msg.getConsId(), target);
+        proposal.retransmit = fetchTimer.schedule(() -> fetchTimeout(proposal, sources.size()),
+                FETCH_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * called when the requests fetched for a digest-only PROPOSAL did not
+     * arrive in time. They are fetched from the next replica, and once every
+     * replica was asked, the batch is considered lost and a leader change is
+     * started, which brings this replica up to date through synchronization
+     * @param proposal the PROPOSAL waiting for requests
+     * @param sources the number of replicas the requests may be fetched from
+     */
+    private void fetchTimeout(AwaitedProposal proposal, int sources) {
+        awaitLock.lock();
+        try {
+            if (awaited != proposal) {
+                return;
+            }
+            if (proposal.attempts < sources) {
+                logger.info("Requests of cid {} not received in time, fetching them from another replica",
+                        proposal.msg.getConsId());
+                fetchMissing(proposal);
+                return;
+            }
+            logger.warn("Requests of cid {} not received from any replica, starting a leader change",
+                    proposal.msg.getConsId());
+            stopAwaiting();
+        } finally {
+            awaitLock.unlock();
+        }
+        tomLayer.getSynchronizer().triggerTimeout(new LinkedList<>());
+    }
+
+    /**
+     * stop waiting for the requests of a digest-only PROPOSAL, and drop the
+     * PROPOSALs deferred until they arrive. Must be called holding awaitLock
+     */
+    private void stopAwaiting() {
+        if (awaited != null && awaited.retransmit != null) {
+            awaited.retransmit.cancel(false);
+        }
+        awaited = null;
+        deferred.clear();
+    }
+
+    /**
+     * @param cid a consensus
+     * @return the requests of its digest-only PROPOSAL if this replica
+     * accepted it recently, or null
+     */
+    public TOMMessage[] getRecentBatch(int cid) {
+        return recentBatches.get(cid);
+    }
+
+    /**
+     * called when a replica sends the requests missing from a digest-only
+     * PROPOSAL, which is accepted once none is missing
+     * @param msg the FETCH_REPLY message
+     */
+    private void fetchReplyReceived(FetchMessage msg) {
+        boolean useSignatures = controller.getStaticConf().getUseSignatures() == 1;
+        AwaitedProposal proposal;
+        awaitLock.lock();
+        try {
+            proposal = awaited;
+            if (proposal == null || proposal.msg.getConsId() != msg.getConsId() || msg.getRequests() == null) {
+                logger.debug("Unexpected FETCH_REPLY from {} for cid {}", msg.getSender(), msg.getConsId());
+                return;
+            }
+
+            // the requests are checked against the digest, so any replica may send them
+            int[] indexes = msg.getIndexes();
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i] < 0 || indexes[i] >= proposal.requests.length || proposal.requests[indexes[i]] != null) {
+                    continue;
+                }
+                TOMMessage request = readRequest(msg.getRequests()[i], msg.getSignatures()[i]);
+                if (proposal.digest.matches(md.get(), indexes[i], request, useSignatures)) {
+                    proposal.requests[indexes[i]] = request;
+                } else {
+                    logger.warn("Request {} fetched from {} for cid {} does not match its digest",
+                            indexes[i], msg.getSender(), msg.getConsId());
+                }
+            }
+
+            for (TOMMessage request : proposal.requests) {
+                if (request == null) {
+                    return;
+                }
+            }
+            proposal.retransmit.cancel(false);
+        } finally {
+            awaitLock.unlock();
+        }
+
+        // the PROPOSALs that arrive until the block is appended are still deferred
+        if (Arrays.equals(proposal.msg.getPrevHash(), blockchainOf(proposal.msg.getConsId()).getCurrentHash())) {
+            acceptProposal(proposal.msg, proposal.digest.rebuild(Arrays.asList(proposal.requests), useSignatures),
+                    proposal.receivedTime);
+        } else {
+            logger.info("PROPOSAL for cid {} no longer extends the current block", msg.getConsId());
+        }
+        awaitLock.lock();
+        try {
+            if (awaited == proposal) {
+                awaited = null;
+            }
+        } finally {
+            awaitLock.unlock();
+        }
+        processDeferred();
+    }
+
+    /**
+     * process in order the PROPOSALs received while waiting for requests,
+     * until one of them waits for requests too. They were either deferred, or
+     * stored as out of context if this replica had already voted for the
+     * height that was waiting
+     */
+    private void processDeferred() {
+        Map.Entry<Integer, ProposalMessage> next;
+        while (awaited == null) {
+            tomLayer.processOutOfContext();
+            if (awaited != null || (next = deferred.pollFirstEntry()) == null) {
+                break;
+            }
+            ProposalMessage msg = next.getValue();
+            Consensus consensus = executionManager.getConsensus(msg.getConsId());
+            consensus.lock.lock();
+            try {
+                proposalReceived(consensus.getEpoch(msg.getEpoch(), controller), msg);
+            } finally {
+                consensus.lock.unlock();
+            }
+        }
+    }
+
+    private TOMMessage readRequest(byte[] serialized, byte[] signature) {
+        if (serialized == null) {
+            return null;
+        }
+        try {
+            TOMMessage request = new TOMMessage();
+            request.rExternal(new DataInputStream(new ByteArrayInputStream(serialized)));
+            request.serializedMessage = serialized;
+            request.serializedMessageSignature = signature;
+            return request;
+        } catch (Exception e) {
+            logger.warn("Failed to deserialize a fetched request", e);
+            return null;
+        }
+    }
+
+    /**
+     * in pipelined mode, vote for the next height right after the current block
+     * is appended, instead of waiting for the TOM layer to start it. The vote is
+     * held back while the delivery thread already has pipelineDepth decided
+     * blocks waiting to be executed
+     */
+    private void voteAhead() {
+        int pending = tomLayer.getDeliveryThread().getPendingDecisions();
+        if (pending >= pipelineDepth) {
+            logger.debug("{} decisions waiting for execution, not voting ahead", pending);
+            return;
+        }
+        int cid = tomLayer.claimNextConsensus();
+        if (cid != -1) {
+            logger.debug("Voting ahead for cid {}", cid);
+            startConsensus(cid);
+        }
+    }
+
     /**
      * check whether a PROPOSAL message is valid
      * @param msg the PROPOSAL message
@@ -205,10 +635,10 @@ public final class ChainAcceptor {
      */
     private boolean checkPROPOSAL(ProposalMessage msg) {
 //        PublicKey pubKey = controller.getStaticConf().getPublicKey(msg.getSender());
-        if(msg.getSender() == executionManager.getCurrentLeader() &&// is the message from the leader?
-                Arrays.equals(msg.getPrevHash(), blockchain.getCurrentHash()) &&// is the hash link valid?
+        if(msg.getSender() == executionManager.getLeader(msg.getConsId()) &&// is the message from the leader?
+                Arrays.equals(msg.getPrevHash(), blockchainOf(msg.getConsId()).getCurrentHash()) &&// is the hash link valid?
 //                msg.verifySignature(pubKey) &&// is the signature valid?
-                msg.verifyVotes(controller.getQuorum(), controller.getStaticConf())
+                msg.verifyVotes(controller.getQuorum(), voteVerifier)
         ) {//if all votes are valid?
             return true;
         }
@@ -244,27 +674,19 @@ public final class ChainAcceptor {
     /**
      * decide the consensus through message and send this to the client
      * @param msg which to be sent
+     * @param value the batch of the message
+     * @param requests the requests of the batch, already checked
      */
-    private void decide(ProposalMessage msg) {
+    private void decide(ProposalMessage msg, byte[] value, TOMMessage[] requests) {
         Consensus consensus = executionManager.getConsensus(msg.getConsId());
         Epoch epoch = consensus.getEpoch(msg.getEpoch(), controller);
-        byte[] value = msg.getData();
         epoch.propValue = value;
-        epoch.deserializedPropValue = tomLayer.checkProposedValue(value, true);
-        TOMMessage tmptom = epoch.getConsensus().getDecision().firstMessageProposed;
-        epoch.getConsensus().getDecision().firstMessageProposed = epoch.deserializedPropValue[0];
-        if(tmptom != null) {
-            epoch.getConsensus().getDecision().firstMessageProposed.deliveryTime = tmptom.deliveryTime;
-            epoch.getConsensus().getDecision().firstMessageProposed.voteSentTime = tmptom.voteSentTime;
-            epoch.getConsensus().getDecision().firstMessageProposed.proposalReceivedTime = tmptom.proposalReceivedTime;
-            epoch.getConsensus().getDecision().firstMessageProposed.decisionTime = tmptom.decisionTime;
-            epoch.getConsensus().getDecision().firstMessageProposed.requestReplyTime = tmptom.requestReplyTime;
-        }
+        epoch.deserializedPropValue = requests;
+        epoch.getConsensus().getDecision().firstMessageProposed = requests.length > 0 ? requests[0] : null;
         epoch.writeSent();
         epoch.acceptSent();
         epoch.acceptCreated();
-        if (epoch.getConsensus().getDecision().firstMessageProposed != null)
-            epoch.getConsensus().getDecision().firstMessageProposed.decisionTime = System.nanoTime();
+        epoch.getConsensus().getDecision().decisionTime = System.nanoTime();
         epoch.getConsensus().decided(epoch, true);
     }
 
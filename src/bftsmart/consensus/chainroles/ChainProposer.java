@@ -20,16 +20,25 @@ import bftsmart.consensus.Decision;
 import bftsmart.reconfiguration.ServerViewController;
 
 ///
+import bftsmart.consensus.chainmessages.BitmapCertificate;
 import bftsmart.consensus.chainmessages.ChainMessageFactory;
 import bftsmart.consensus.chainmessages.ProposalMessage;
+import bftsmart.consensus.chainmessages.QuorumCertificate;
 import bftsmart.consensus.chainmessages.VoteMessage;
+import bftsmart.consensus.chainmessages.VoteSetCertificate;
 import bftsmart.consensus.chainmessages.ChainConsensusMessage;
+import bftsmart.consensus.chainmessages.FetchMessage;
 import bftsmart.consensus.Blockchain;
+import bftsmart.clientsmanagement.RequestList;
 import bftsmart.tom.core.ExecutionManager;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.BatchBuilder;
+import bftsmart.tom.util.BatchDigest;
+import bftsmart.tom.util.LatencyHistogram;
+import bftsmart.tom.util.MetricsRegistry;
 import bftsmart.tom.util.TOMUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,10 +46,16 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.sql.Array;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 ///
 public class ChainProposer {
@@ -48,22 +63,43 @@ public class ChainProposer {
     private ChainMessageFactory factory; // Factory for PaW messages
     private ServerCommunicationSystem communication; // Replicas comunication system
     private ServerViewController controller;
-    private Blockchain blockchain;
+    private Blockchain[] blockchains; // the chain of each instance, a single one unless several chains order the requests
     private ExecutionManager executionManager;// Execution manager of consensus's executions
     private TOMLayer tomLayer; // TOM layer
     private byte[] data;
+    private ConcurrentSkipListMap<Integer, VoteCollector> collectors = new ConcurrentSkipListMap<>(); // VOTEs by height
+    private LinkedBlockingQueue<Integer> readyQueue = new LinkedBlockingQueue<>(); // heights with a quorum of VOTEs
+    private AtomicInteger stalledCid = new AtomicInteger(-1); // consensus holding a quorum of VOTEs but no requests to propose
+    private ProposerThread proposerThread = new ProposerThread();
+    private static final int PREPARE = Integer.MIN_VALUE; // queued to ask the proposer thread to prepare a batch
+    private AtomicBoolean prepareQueued = new AtomicBoolean(false);
+    private RequestList preparedRequests = null; // the next batch, only used by the proposer thread
+    private int preparedInstance = -1; // the chain whose clients the next batch has requests from
+    private BatchBuilder.Body preparedBatch = null; // the requests of the next batch, serialized as they are added
+    private volatile int preparedCount = 0; // the number of requests in the prepared batch
+    private RequestList proposedRequests = null; // the requests of the last batch taken, only used by the proposer thread
+    private MessageDigest md; // hashes the requests of digest-only PROPOSALs, only used by the proposer thread
+    private volatile boolean doWork = true;
+    private LatencyHistogram voteToQuorum; // time from the first VOTE to the quorum
+    private LatencyHistogram quorumToProposal; // time from the quorum to the PROPOSAL sent
 //    private PrivateKey privKey;
 
 
     public ChainProposer(ServerCommunicationSystem communication,
                          ChainMessageFactory factory,
                          ServerViewController controller,
-                         Blockchain blockchain) {
+                         Blockchain[] blockchains) {
         this.communication = communication;
         this.factory = factory;
         this.controller = controller;
-        this.blockchain = blockchain;
+        this.blockchains = blockchains;
 //        this.privKey = controller.getStaticConf().getPrivateKey();
+        try {
+            this.md = TOMUtil.getHashEngine();
+        } catch (Exception e) {
+            logger.error("Failed to get message digest engine", e);
+        }
+        this.proposerThread.start();
     }
 
     public void setExecutionManager(ExecutionManager executionManager) {
@@ -72,6 +108,8 @@ public class ChainProposer {
 
     public void setTOMLayer(TOMLayer tomLayer) {
         this.tomLayer = tomLayer;
+        this.voteToQuorum = tomLayer.getMetrics().histogram(MetricsRegistry.VOTE_TO_QUORUM);
+        this.quorumToProposal = tomLayer.getMetrics().histogram(MetricsRegistry.QUORUM_TO_PROPOSAL);
     }
 
     /**
@@ -92,44 +130,41 @@ public class ChainProposer {
 
     /**
      * called when a consensus message need to be processed, which processed
-     * differently accroding to its type
+     * differently accroding to its type. VOTEs are collected without taking
+     * the consensus lock, the PROPOSAL is built by the proposer thread
      * @param msg
      */
     public final void processMessage(ChainConsensusMessage msg) {
-        Consensus consensus = executionManager.getConsensus(msg.getConsId());
-        consensus.lock.lock();
-        Decision dec = consensus.getDecision();
-        Epoch epoch = consensus.getEpoch(msg.getEpoch(), controller);
         logger.debug("message = " + msg.toString());
         switch (msg.getMsgType()) {
             case ChainMessageFactory.VOTE:
-//                if(dec.firstMessageProposed == null) {
-//                    dec.firstMessageProposed = new TOMMessage();
-//                }
-//                if(dec.firstMessageProposed != null && dec.firstMessageProposed.voteReceivedTime == 0) {
-//                    dec.firstMessageProposed.voteReceivedTime = System.nanoTime();
-//                }
-                voteReceived(epoch, (VoteMessage)msg);
+                voteReceived((VoteMessage)msg);
                 break;
             default:
                 logger.info("unexpected type of message.");
         }
-        consensus.lock.unlock();
     }
 
 
     /**
      * the procedure when leader receives a VOTE message
-     * @param epoch the epoch related to the consensus, which usage is not clear
      * @param msg the VOTE message
      */
-    public void voteReceived(Epoch epoch, VoteMessage msg) {
-        int cid = epoch.getConsensus().getId();
+    public void voteReceived(VoteMessage msg) {
+        int cid = msg.getConsId();
         logger.debug("VOTE received from:{}, for consensus cId:{}",
                 msg.getSender(), cid);
         if (checkVOTE(msg)) {
-            epoch.setVote(msg.getSender(), msg);//record the VOTEs
-            executeVOTE(epoch, msg);
+            VoteCollector collector = collectors.get(cid);
+            if (collector == null) {
+                VoteCollector created = new VoteCollector(cid, msg.getBlockHash(), controller.getCurrentViewN());
+                collector = collectors.putIfAbsent(cid, created);
+                if (collector == null) {
+                    collector = created;
+                    executionManager.processOutOfContext(executionManager.getConsensus(cid));
+                }
+            }
+            executeVOTE(collector, msg);
         } else {
             logger.debug("VOTE invalid.");
         }
@@ -142,6 +177,7 @@ public class ChainProposer {
      */
     private boolean checkVOTE(VoteMessage msg) {
 //        PublicKey pubKey = controller.getStaticConf().getPublicKey(msg.getSender());
+        Blockchain blockchain = blockchains[executionManager.getInstance(msg.getConsId())];
         if(Arrays.equals(msg.getBlockHash(), blockchain.getCurrentHash())) {// is the vote's blockhash equals to the one which voting for?
             return true;
         }
@@ -151,33 +187,266 @@ public class ChainProposer {
     }
 
     /**
-     * if enough VOTEs received, send a PROPOSAL to all
-     * @param epoch
+     * record the VOTE, and once enough VOTEs are received hand the
+     * consensus to the proposer thread, which sends a PROPOSAL to all
+     * @param collector the VOTEs of the consensus
      * @param msg
      */
-    public void executeVOTE(Epoch epoch, VoteMessage msg) {
-        if(epoch.countVote() > controller.getQuorum() && // there are enough votes
-                !epoch.isProposalSent() && // proposal haven't been sent yet
-                tomLayer.clientsManager.havePendingRequests()){// there are requests can be gotten
-            epoch.proposalSent();
-            logger.debug("id {} proposalSent turned to true", msg.getConsId());
-            this.data = tomLayer.createPropose(tomLayer.execManager.getConsensus(msg.getConsId()).getDecision());
-            ProposalMessage p = factory.createPROPOSAL(this.data, blockchain.getCurrentHash(),
-                    epoch.getVotes(), 0, msg.getConsId(),0);
+    public void executeVOTE(VoteCollector collector, VoteMessage msg) {
+        int pos = controller.getCurrentViewPos(msg.getSender());
+        if (collector.add(pos, msg, controller.getQuorum())) { // the quorum was just reached
+            voteToQuorum.record(collector.getQuorumTime() - collector.getCreatedTime());
+            logger.debug("id {} has enough votes, handing it to the proposer thread", collector.getCid());
+            readyQueue.offer(collector.getCid());
+        }
+    }
+
+    /**
+     * Indicates if there is a consensus which already has enough VOTEs and
+     * is only waiting for requests to be proposed
+     * @return true if such a consensus exists
+     */
+    public boolean hasStalledProposal() {
+        return stalledCid.get() != -1;
+    }
+
+    /**
+     * called when new requests arrive, hands back to the proposer thread a
+     * consensus that reached its VOTE quorum while there were no pending requests
+     */
+    public void resumeStalledProposal() {
+        int cid = stalledCid.get();
+        if (cid != -1 && stalledCid.compareAndSet(cid, -1)) {
+            readyQueue.offer(cid);
+        }
+    }
+
+    /**
+     * build the batch and send the PROPOSAL of a consensus that reached its
+     * VOTE quorum, called by the proposer thread
+     * @param cid
+     */
+    private void buildProposal(int cid) {
+        VoteCollector collector = collectors.get(cid);
+        if (collector == null || cid <= tomLayer.getLastExec()) {
+            return;
+        }
+        // with several chains the block is proposed even if empty, as the
+        // blocks of the other chains that follow it wait for its decision
+        if (preparedBatch == null && executionManager.getInstances() == 1 &&
+                !tomLayer.clientsManager.havePendingRequests()) {
+            // keep the quorum, the proposal is sent once requests arrive
+            stalledCid.set(cid);
+            logger.debug("id {} has enough votes but no pending requests", cid);
+            // requests may have arrived before the consensus was marked as stalled
+            if (tomLayer.clientsManager.havePendingRequests()) {
+                resumeStalledProposal();
+            }
+            return;
+        }
+
+        Consensus consensus = executionManager.getConsensus(cid);
+        consensus.lock.lock();
+        Epoch epoch = consensus.getEpoch(0, controller);
+        if (!epoch.isProposalSent()) {
+            propose(epoch, collector);
+        }
+        consensus.lock.unlock();
+
+        // the votes of this and of older heights are no longer needed
+        collectors.headMap(cid, true).clear();
+
+        // start assembling the batch of the next height
+        requestsReceived();
+    }
+
+    /**
+     * called when new requests arrive, asks the proposer thread to add them
+     * to the batch prepared for the next height
+     */
+    public void requestsReceived() {
+        if (controller.getStaticConf().useSpeculativeBatching() && prepareQueued.compareAndSet(false, true)) {
+            readyQueue.offer(PREPARE);
+        }
+    }
+
+    /**
+     * add the pending requests to the batch prepared for the next height and
+     * serialize it, so it is ready once the VOTE quorum is reached. Called by
+     * the proposer thread
+     */
+    private void prepareBatch() {
+        prepareQueued.set(false);
+        int instance = executionManager.getInstanceLedBy(controller.getStaticConf().getProcessId());
+        if (instance != preparedInstance) {
+            releasePreparedBatch();
+        }
+        if (instance == -1) {
+            return;
+        }
+
+        int prepared = preparedRequests == null ? 0 : preparedRequests.size();
+        int room = tomLayer.getBatchSizeLimit() - prepared;
+        if (room <= 0) {
+            return;
+        }
+        RequestList more = tomLayer.clientsManager.getPendingRequests(room, instance);
+        if (more.isEmpty()) {
+            return;
+        }
+        if (preparedRequests == null) {
+            preparedRequests = more;
+            preparedInstance = instance;
+            preparedBatch = tomLayer.newBatchBody();
+        } else {
+            preparedRequests.addAll(more);
+        }
+        // only the new requests are serialized, the header is written when the batch is proposed
+        preparedBatch.addAll(more);
+        preparedCount = preparedRequests.size();
+        // the TOM layer may have seen the requests neither pending nor prepared
+        tomLayer.haveMessages();
+        logger.debug("Prepared a batch with {} requests", preparedRequests.size());
+    }
+
+    private void releasePreparedBatch() {
+        if (preparedRequests != null) {
+            tomLayer.clientsManager.releaseRequests(preparedRequests);
+        }
+        preparedRequests = null;
+        preparedInstance = -1;
+        preparedBatch = null;
+        preparedCount = 0;
+    }
+
+    /**
+     * Retrieves the number of requests in the batch prepared for the next
+     * height, which are no longer reported as pending by the clients manager
+     */
+    public int countPreparedRequests() {
+        return preparedCount;
+    }
+
+    /**
+     * the batch to propose for a consensus: the prepared one, unless some of
+     * its requests were ordered meanwhile, or a freshly built one
+     * @param dec the decision of the consensus
+     * @return the serialized batch
+     */
+    private byte[] takeBatch(Decision dec) {
+        int instance = executionManager.getInstance(dec.getConsensusId());
+        if (preparedBatch != null && preparedInstance == instance && tomLayer.clientsManager.arePending(preparedRequests)) {
+            byte[] batch = tomLayer.makeBatch(preparedBatch);
+            tomLayer.setProposedRequests(dec, preparedRequests);
+            proposedRequests = preparedRequests;
+            preparedRequests = null;
+            preparedInstance = -1;
+            preparedBatch = null;
+            preparedCount = 0;
+            return batch;
+        }
+        if (preparedBatch != null) {
+            logger.debug("Prepared batch is stale, building a new one");
+        }
+        releasePreparedBatch();
+        // with several chains, the batch may be empty if only the clients of the other chains have requests
+        proposedRequests = tomLayer.clientsManager.getPendingRequests(tomLayer.getBatchSizeLimit(), instance);
+        tomLayer.setProposedRequests(dec, proposedRequests);
+        return tomLayer.makeBatch(proposedRequests);
+    }
+
+    /**
+     * build the batch and send the PROPOSAL for the given consensus,
+     * must be called holding the consensus lock
+     * @param epoch
+     * @param collector the VOTEs that prove the previous block valid
+     */
+    private void propose(Epoch epoch, VoteCollector collector) {
+        int cid = collector.getCid();
+        epoch.proposalSent();
+        logger.debug("id {} proposalSent turned to true", cid);
+        this.data = takeBatch(epoch.getConsensus().getDecision());
+        if (controller.getStaticConf().useDigestProposals()) {
+            // the replicas rebuild the batch from the requests they received from the clients, or fetch
+            // the missing ones from the batches their acceptors keep, this one included
+            this.data = BatchDigest.create(md, this.data, proposedRequests,
+                    controller.getStaticConf().getUseSignatures() == 1);
+        }
+        proposedRequests = null;
+        byte[] prevHash = collector.getBlockHash();
+        QuorumCertificate certificate = controller.getStaticConf().useCompactCertificate() ?
+                new BitmapCertificate(collector.getVotes(), prevHash) :
+                new VoteSetCertificate(collector.getVotes(), prevHash);
+        ProposalMessage p = factory.createPROPOSAL(this.data, prevHash,
+                certificate, 0, cid,0);
 //            byte[] pb =  p.getBytes();
 //            byte[] signature = TOMUtil.signMessage(privKey, pb);
 //            p.addSignature(signature);
-            logger.debug("get enough votes, proposing");
+        logger.debug("get enough votes, proposing");
+
+        communication.send(this.controller.getCurrentViewAcceptors(), p);
+        quorumToProposal.record(System.nanoTime() - collector.getQuorumTime());
+    }
+
+    /**
+     * called when a replica asks for the requests of a digest-only PROPOSAL
+     * that it did not receive from the clients
+     * @param msg the FETCH message
+     */
+    public void fetchReceived(FetchMessage msg) {
+        // the acceptor of every replica, the leader included, keeps the batches it accepted
+        TOMMessage[] batch = executionManager.getChainAcceptor().getRecentBatch(msg.getConsId());
+        if (batch == null) {
+            logger.debug("FETCH from {} for cid {}, whose batch is no longer kept", msg.getSender(), msg.getConsId());
+            return;
+        }
+        int[] indexes = msg.getIndexes();
+        byte[][] requests = new byte[indexes.length][];
+        byte[][] signatures = new byte[indexes.length][];
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] < 0 || indexes[i] >= batch.length) {
+                logger.warn("FETCH from {} for cid {} asks for request {} of {}",
+                        msg.getSender(), msg.getConsId(), indexes[i], batch.length);
+                return;
+            }
+            requests[i] = batch[indexes[i]].serializedMessage;
+            signatures[i] = batch[indexes[i]].serializedMessageSignature;
+        }
+        logger.debug("Sending {} requests of cid {} to {}", indexes.length, msg.getConsId(), msg.getSender());
+        communication.send(new int[]{msg.getSender()},
+                factory.createFETCH_REPLY(indexes, requests, signatures, msg.getConsId()));
+    }
 
-            //for benchmark
-            Decision dec = epoch.getConsensus().getDecision();
-//            if(dec.firstMessageProposed != null) {
-//                dec.firstMessageProposed.proposalSentTime = System.nanoTime();
-//            }
+    public void shutdown() {
+        doWork = false;
+        proposerThread.interrupt();
+    }
 
+    /**
+     * Thread that builds the batches and sends the PROPOSALs, so that the
+     * message handler thread does not wait for the batch assembly
+     */
+    private class ProposerThread extends Thread {
+
+        public ProposerThread() {
+            super("Chain Proposer");
+        }
 
-            communication.send(this.controller.getCurrentViewAcceptors(), p);
+        @Override
+        public void run() {
+            while (doWork) {
+                try {
+                    int cid = readyQueue.take();
+                    if (cid == PREPARE) {
+                        prepareBatch();
+                    } else {
+                        buildProposal(cid);
+                    }
+                } catch (InterruptedException ex) {
+                    logger.debug("Proposer thread interrupted");
+                }
+            }
+            logger.info("ChainProposer stopped.");
         }
-        executionManager.processOutOfContext(epoch.getConsensus());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.chainroles;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import bftsmart.consensus.chainmessages.VoteMessage;
+
+/**
+ * The VOTEs received by the leader for one height. Votes are added without
+ * locking: a bitmap of the voters makes sure each replica is counted once,
+ * and the vote that crosses the quorum is reported exactly once, so that a
+ * single PROPOSAL is built for the height.
+ */
+public class VoteCollector {
+
+    private final int cid; // the consensus ID the votes belong to
+    private final byte[] blockHash; // the hash of the block voted for
+    private final AtomicLongArray voters; // bitmap of the view positions that voted
+    private final AtomicReferenceArray<VoteMessage> votes; // the votes, by view position
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicBoolean quorumReached = new AtomicBoolean(false);
+    private final long createdTime = System.nanoTime(); // when the first VOTE arrived
+    private volatile long quorumTime = 0; // when the VOTE quorum was reached
+
+    /**
+     * @param cid the consensus ID the votes belong to
+     * @param blockHash the hash of the block voted for
+     * @param n the number of replicas in the view
+     */
+    public VoteCollector(int cid, byte[] blockHash, int n) {
+        this.cid = cid;
+        this.blockHash = blockHash;
+        this.voters = new AtomicLongArray((n + 63) / 64);
+        this.votes = new AtomicReferenceArray<>(n);
+    }
+
+    /**
+     * add the vote of a replica
+     * @param pos the position of the voter in the current view
+     * @param vote the VOTE message
+     * @param quorum the quorum size
+     * @return true only for the vote that makes the count exceed the quorum
+     */
+    public boolean add(int pos, VoteMessage vote, int quorum) {
+        if (pos < 0 || pos >= votes.length() || !Arrays.equals(blockHash, vote.getBlockHash())) {
+            return false;
+        }
+        int word = pos >>> 6;
+        long bit = 1L << (pos & 63);
+        long current;
+        do {
+            current = voters.get(word);
+            if ((current & bit) != 0) {
+                return false; // it can only be set once
+            }
+        } while (!voters.compareAndSet(word, current, current | bit));
+
+        votes.set(pos, vote);
+        if (count.incrementAndGet() > quorum && quorumReached.compareAndSet(false, true)) {
+            quorumTime = System.nanoTime();
+            return true;
+        }
+        return false;
+    }
+
+    public int getCid() {
+        return cid;
+    }
+
+    public byte[] getBlockHash() {
+        return blockHash;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    public long getQuorumTime() {
+        return quorumTime;
+    }
+
+    public int countVotes() {
+        return count.get();
+    }
+
+    /**
+     * @return the votes received so far, indexed by the view position of the voter
+     */
+    public VoteMessage[] getVotes() {
+        VoteMessage[] ret = new VoteMessage[votes.length()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = votes.get(i);
+        }
+        return ret;
+    }
+}
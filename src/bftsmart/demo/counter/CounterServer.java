@@ -17,6 +17,7 @@ package bftsmart.demo.counter;
 
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.server.SnapshotReadable;
 import bftsmart.tom.server.defaultservices.DefaultSingleRecoverable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -33,25 +34,16 @@ import java.util.List;
 /**
  * Example replica that implements a BFT replicated service (a counter).
  * If the increment > 0 the counter is incremented, otherwise, the counter
- * value is read.
+ * value is read. With a pool of readers (system.numreaders), the reads are
+ * executed on a snapshot of the counter, concurrently with the increments.
  * 
  * @author alysson
  */
 
-public final class CounterServer extends DefaultSingleRecoverable  {
+public final class CounterServer extends DefaultSingleRecoverable implements SnapshotReadable<Integer> {
     
     private int counter = 0;
     private int iterations = 0;
-    ///for benchmark
-    private long voteSum = 0;
-    private long proposalSum = 0;
-    private long decisionSum = 0;
-    private long replySum = 0;
-    private int voteCount = 0;
-    private int proposalCount = 0;
-    private int decisionCount = 0;
-    private int replyCount = 0;
-    ///for benchmark
     private List<Integer> resultList = new ArrayList<Integer>();
     
     public CounterServer(int id) {
@@ -62,9 +54,24 @@ public final class CounterServer extends DefaultSingleRecoverable  {
     public byte[] appExecuteUnordered(byte[] command, MessageContext msgCtx) {         
         iterations++;
         System.out.println("(" + iterations + ") Counter current value: " + counter);
+        return read(counter);
+    }
+
+    @Override
+    public Integer takeSnapshot() {
+        return counter;
+    }
+
+    @Override
+    public byte[] executeOnSnapshot(Integer snapshot, byte[] command, MessageContext msgCtx) {
+        System.out.println("Counter value read from a snapshot: " + snapshot);
+        return read(snapshot);
+    }
+
+    private byte[] read(int value) {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream(4);
-            new DataOutputStream(out).writeInt(counter);
+            new DataOutputStream(out).writeInt(value);
             return out.toByteArray();
         } catch (IOException ex) {
             System.err.println("Invalid request received!");
@@ -102,45 +109,6 @@ public final class CounterServer extends DefaultSingleRecoverable  {
             }
             
             System.out.println("(" + iterations + ") Counter was incremented. Current value = " + counter);
-            ///for benchmark
-//            System.out.println("time:" + msgCtx.getFirstInBatch().deliveryTime);
-//            System.out.println("time:" + msgCtx.getFirstInBatch().voteSentTime);
-//            System.out.println("time:" + msgCtx.getFirstInBatch().proposalReceivedTime);
-//            System.out.println("time:" + msgCtx.getFirstInBatch().decisionTime);
-//            System.out.println("time:" + msgCtx.getFirstInBatch().requestReplyTime);
-            long tmpv = msgCtx.getFirstInBatch().voteSentTime - msgCtx.getFirstInBatch().deliveryTime;
-            long tmpp = msgCtx.getFirstInBatch().proposalReceivedTime - msgCtx.getFirstInBatch().deliveryTime;
-            long tmpd = msgCtx.getFirstInBatch().decisionTime - msgCtx.getFirstInBatch().deliveryTime;
-            long tmpr = msgCtx.getFirstInBatch().requestReplyTime - msgCtx.getFirstInBatch().deliveryTime;
-            if(tmpp > 0 && tmpp < 2000000000) {
-                proposalSum += tmpp;
-                proposalCount += 1;
-            }
-            if(tmpv > 0 && tmpv < 2000000000){
-                voteSum += tmpv;
-                voteCount += 1;
-            }
-            if(tmpd > 0 && tmpd < 2000000000){
-                decisionSum += tmpd;
-                decisionCount += 1;
-            }
-            if(tmpr > 0 && tmpr < 2000000000){
-                replySum += tmpr;
-                replyCount += 1;
-            }
-            if(voteCount > 0){
-                System.out.print(/*"average vote latency = " + */voteSum / voteCount + ",");
-            }
-            if(proposalCount > 0) {
-                System.out.print(/*"average proposal latency = " + */proposalSum / proposalCount + ",");
-            }
-            if(proposalCount > 0) {
-                System.out.print(/*"average decision latency = " + */decisionSum / decisionCount + ",");
-            }
-            if(proposalCount > 0) {
-                System.out.println(/*"average reply latency = " + */replySum / replyCount + ",");
-            }
-            ///for benchmark
             ByteArrayOutputStream out = new ByteArrayOutputStream(4);
             new DataOutputStream(out).writeInt(counter);
             return out.toByteArray();
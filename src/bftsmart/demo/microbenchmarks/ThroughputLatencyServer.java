@@ -19,6 +19,9 @@ import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.DefaultRecoverable;
+import bftsmart.tom.server.defaultservices.SnapshotHandle;
+import bftsmart.tom.util.LatencyHistogram;
+import bftsmart.tom.util.MetricsRegistry;
 import bftsmart.tom.util.Storage;
 import bftsmart.tom.util.TOMUtil;
 
@@ -56,12 +59,8 @@ public final class ThroughputLatencyServer extends DefaultRecoverable{
     private Storage totalLatency = null;
     private Storage consensusLatency = null;
     private Storage preConsLatency = null;
-    private Storage decisionLatency = null;
-    private Storage replyLatency = null;
     private Storage writeLatency = null;
     private Storage acceptLatency = null;
-    private Storage proposalLatency = null;
-    private Storage voteLatency = null;
     
     private Storage batchSize = null;
     
@@ -90,12 +89,8 @@ public final class ThroughputLatencyServer extends DefaultRecoverable{
         totalLatency = new Storage(interval);
         consensusLatency = new Storage(interval);
         preConsLatency = new Storage(interval);
-        decisionLatency = new Storage(interval);
-        replyLatency = new Storage(interval);
         writeLatency = new Storage(interval);
         acceptLatency = new Storage(interval);
-        proposalLatency = new Storage(interval);
-        voteLatency = new Storage(interval);
 
         batchSize = new Storage(interval);
         
@@ -247,34 +242,14 @@ public final class ThroughputLatencyServer extends DefaultRecoverable{
                 consensusLatency.store(msgCtx.getFirstInBatch().decisionTime - msgCtx.getFirstInBatch().consensusStartTime);
                 long temp = msgCtx.getFirstInBatch().consensusStartTime - msgCtx.getFirstInBatch().receptionTime;
                 preConsLatency.store(temp > 0 ? temp : 0);
-                long tmpv = msgCtx.getFirstInBatch().voteSentTime - msgCtx.getFirstInBatch().deliveryTime;
-                long tmpp = msgCtx.getFirstInBatch().proposalReceivedTime - msgCtx.getFirstInBatch().deliveryTime;
-                long tmpd = msgCtx.getFirstInBatch().decisionTime - msgCtx.getFirstInBatch().deliveryTime;
-                long tmpr = msgCtx.getFirstInBatch().requestReplyTime - msgCtx.getFirstInBatch().deliveryTime;
-                if(tmpp > 0 && tmpp < 2000000000) {
-                    proposalLatency.store(tmpp);
-                }
-                if(tmpv > 0 && tmpv < 2000000000){
-                    voteLatency.store(tmpv);
-                }
-                if(tmpd > 0 && tmpd < 2000000000){
-                    decisionLatency.store(tmpd);
-                }
-                if(tmpr > 0 && tmpr < 2000000000){
-                    replyLatency.store(tmpr);
-                }
 
             } else {
             
            
                 consensusLatency.store(0);
                 preConsLatency.store(0);
-                decisionLatency.store(0);            
-                replyLatency.store(0);
                 writeLatency.store(0);
                 acceptLatency.store(0);
-                proposalLatency.store(0);
-                voteLatency.store(0);
                 
                 
             }
@@ -284,12 +259,8 @@ public final class ThroughputLatencyServer extends DefaultRecoverable{
             
                 consensusLatency.store(0);
                 preConsLatency.store(0);
-                decisionLatency.store(0);            
-                replyLatency.store(0);
                 writeLatency.store(0);
                 acceptLatency.store(0);
-                proposalLatency.store(0);
-                voteLatency.store(0);
                 
                
         }
@@ -316,21 +287,19 @@ public final class ThroughputLatencyServer extends DefaultRecoverable{
 //            writeLatency.reset();
 //            System.out.println("Accept latency = " + acceptLatency.getAverage(false) / 1000 + " (+/- "+ (long)acceptLatency.getDP(false) / 1000 +") us ");
 //            acceptLatency.reset();
+            String[] phases = {MetricsRegistry.VOTE_TO_QUORUM, MetricsRegistry.QUORUM_TO_PROPOSAL,
+                    MetricsRegistry.PROPOSAL_TO_DECIDE, MetricsRegistry.DECIDE_TO_EXECUTE, MetricsRegistry.EXECUTE};
+            StringBuilder line = new StringBuilder();
+            for (String phase : phases) {
+                LatencyHistogram.Snapshot latency = replica.getMetrics().histogram(phase).snapshot(false);
+                System.out.println("Latency " + phase + " = " + latency.getMean() / 1000 + " (p99 "
+                        + latency.getValueAtPercentile(99) / 1000 + ") us ");
+                line.append(Double.toString(latency.getMean() / 1000)).append(", ");
+            }
             try {
-                bftbw.write(Double.toString(voteLatency.getAverage(false) / 1000) + ", ");
-                bftbw.write(Double.toString(proposalLatency.getAverage(false) / 1000) + ", ");
-                bftbw.write(Double.toString(decisionLatency.getAverage(false) / 1000) + ", ");
-                bftbw.write(Double.toString(replyLatency.getAverage(false) / 1000) + ", ");
+                bftbw.write(line.toString());
                 bftbw.write(Double.toString(batchSize.getSum()) + "\n");
             }catch (Exception e){}
-            System.out.println("Vote latency = " + voteLatency.getAverage(false) / 1000 + " (+/- "+ (long)voteLatency.getDP(false) / 1000 +") us ");
-            voteLatency.reset();
-            System.out.println("Proposal latency = " + proposalLatency.getAverage(false) / 1000 + " (+/- "+ (long)proposalLatency.getDP(false) / 1000 +") us ");
-            proposalLatency.reset();
-            System.out.println("Decision latency = " + decisionLatency.getAverage(false) / 1000 + " (+/- "+ (long)decisionLatency.getDP(false) / 1000 +") us ");
-            decisionLatency.reset();
-            System.out.println("Reply latency = " + replyLatency.getAverage(false) / 1000 + " (+/- "+ (long)replyLatency.getDP(false) / 1000 +") us ");
-            replyLatency.reset();
             System.out.println("Batch amount = " + (batchSize.getSum())+" requests");
             batchSize.reset();
             
@@ -375,7 +344,7 @@ public final class ThroughputLatencyServer extends DefaultRecoverable{
 
     @Override
     public void installSnapshot(byte[] state) {
-        //nothing
+        this.state = state;
     }
 
     @Override
@@ -383,5 +352,13 @@ public final class ThroughputLatencyServer extends DefaultRecoverable{
         return this.state;
     }
 
+    @Override
+    public SnapshotHandle getSnapshotHandle() {
+        // the state array is never changed in place, only replaced by installSnapshot,
+        // so the checkpoint thread can write the array of this checkpoint without a copy
+        byte[] snapshot = this.state;
+        return () -> snapshot;
+    }
+
    
 }
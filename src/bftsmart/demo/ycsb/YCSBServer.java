@@ -22,10 +22,13 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.TreeMap;
 
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.server.defaultservices.ChunkedState;
 import bftsmart.tom.server.defaultservices.DefaultRecoverable;
 
 /**
@@ -33,10 +36,12 @@ import bftsmart.tom.server.defaultservices.DefaultRecoverable;
  * @author Marcel Santos
  *
  */
-public class YCSBServer extends DefaultRecoverable {
+public class YCSBServer extends DefaultRecoverable implements ChunkedState {
 
     private static final boolean _debug = false;
-    private TreeMap<String, YCSBTable> mTables;
+    private static final int CHUNKS = 256; // the records are split in chunks by the hash of their key
+    private ArrayList<TreeMap<String, YCSBTable>> mChunks;
+    private BitSet mChanged = new BitSet(CHUNKS);
 
     private boolean logPrinted = false;
 
@@ -49,7 +54,10 @@ public class YCSBServer extends DefaultRecoverable {
     }
 
     private YCSBServer(int id) {
-        this.mTables = new TreeMap<>();
+        this.mChunks = new ArrayList<>();
+        for (int i = 0; i < CHUNKS; i++) {
+            mChunks.add(new TreeMap<>());
+        }
         new ServiceReplica(id, this, this);
     }
 
@@ -74,6 +82,8 @@ public class YCSBServer extends DefaultRecoverable {
             if (_debug) {
                 System.out.println("[INFO] Processing an ordered request");
             }
+            int chunk = chunkOf(aRequest.getKey());
+            TreeMap<String, YCSBTable> mTables = mChunks.get(chunk);
             switch (aRequest.getType()) {
                 case CREATE: { // ##### operation: create #####
                     switch (aRequest.getEntity()) {
@@ -83,6 +93,7 @@ public class YCSBServer extends DefaultRecoverable {
                             }
                             if (!mTables.get(aRequest.getTable()).containsKey(aRequest.getKey())) {
                                 mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
+                                mChanged.set(chunk);
                                 reply = YCSBMessage.newInsertResponse(0);
                             }
                             break;
@@ -99,6 +110,7 @@ public class YCSBServer extends DefaultRecoverable {
                                 mTables.put((String) aRequest.getTable(), new YCSBTable());
                             }
                             mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
+                            mChanged.set(chunk);
                             reply = YCSBMessage.newUpdateResponse(1);
                             break;
                         default: // Only update records
@@ -126,6 +138,7 @@ public class YCSBServer extends DefaultRecoverable {
         if (_debug) {
             System.out.println("[INFO] Processing an unordered request");
         }
+        TreeMap<String, YCSBTable> mTables = mChunks.get(chunkOf(aRequest.getKey()));
 
         switch (aRequest.getType()) {
             case READ: { // ##### operation: read #####
@@ -151,27 +164,71 @@ public class YCSBServer extends DefaultRecoverable {
         return reply.getBytes();
     }
 
+    private static int chunkOf(String key) {
+        return Math.floorMod(key == null ? 0 : key.hashCode(), CHUNKS);
+    }
+
+    @Override
+    public int getChunkCount() {
+        return CHUNKS;
+    }
+
+    @Override
+    public int[] getChangedChunks() {
+        int[] changed = mChanged.stream().toArray();
+        mChanged.clear();
+        return changed;
+    }
+
+    @Override
+    public byte[] getChunk(int index) {
+        return serialize(mChunks.get(index));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void installChunks(byte[][] chunks) {
+        for (int i = 0; i < chunks.length; i++) {
+            Object chunk = deserialize(chunks[i]);
+            mChunks.set(i, chunk != null ? (TreeMap<String, YCSBTable>) chunk : new TreeMap<>());
+        }
+        mChanged.clear();
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public void installSnapshot(byte[] state) {
+        Object chunks = deserialize(state);
+        if (chunks != null) {
+            mChunks = (ArrayList<TreeMap<String, YCSBTable>>) chunks;
+        }
+    }
+
+    @Override
+    public byte[] getSnapshot() {
+        return serialize(mChunks);
+    }
+
+    private static Object deserialize(byte[] state) {
         try {
             ByteArrayInputStream bis = new ByteArrayInputStream(state);
             ObjectInput in = new ObjectInputStream(bis);
-            mTables = (TreeMap<String, YCSBTable>) in.readObject();
+            Object object = in.readObject();
             in.close();
             bis.close();
+            return object;
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("[ERROR] Error deserializing state: "
                     + e.getMessage());
+            return null;
         }
     }
 
-    @Override
-    public byte[] getSnapshot() {
+    private static byte[] serialize(Object state) {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             ObjectOutput out = new ObjectOutputStream(bos);
-            out.writeObject(mTables);
+            out.writeObject(state);
             out.flush();
             bos.flush();
             out.close();
@@ -42,9 +42,12 @@ public class TOMConfiguration extends Configuration {
     protected int outQueueSize;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
+    private boolean useBinaryCodec;
+    private boolean useNettyReplicaTransport;
     private int numNIOThreads;
     private int useSignatures;
     private boolean stateTransferEnabled;
+    private int stateChunkSize;
     private int checkpointPeriod;
     private int globalCheckpointPeriod;
     private int useControlFlow;
@@ -54,13 +57,26 @@ public class TOMConfiguration extends Configuration {
     private boolean syncLog;
     private boolean parallelLog;
     private boolean logToDisk;
+    private int logSegmentSize;
     private boolean isToWriteCkpsToDisk;
     private boolean syncCkp;
+    private boolean asyncCheckpoint;
     private boolean isBFT;
     private int numRepliers;
     private int numNettyWorkers;
+    private int numReaders;
     private boolean sameBatchSize;
     private boolean fairbatch;
+    private int pipelineDepth;
+    private int instances;
+    private int blockRetention;
+    private boolean compactCertificate;
+    private boolean speculativeBatching;
+    private boolean digestProposals;
+    private boolean adaptiveBatching;
+    private int latencySloLow;
+    private int latencySloHigh;
+    private long metricsDumpInterval;
     private String bindAddress;
     
     /* Tulio Ribeiro*/
@@ -181,6 +197,20 @@ public class TOMConfiguration extends Configuration {
                 useSenderThread = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.communication.useBinaryCodec");
+            if (s == null) {
+                useBinaryCodec = false;
+            } else {
+                useBinaryCodec = Boolean.parseBoolean(s);
+            }
+
+            s = (String) configs.remove("system.communication.useNettyReplicaTransport");
+            if (s == null) {
+                useNettyReplicaTransport = false;
+            } else {
+                useNettyReplicaTransport = Boolean.parseBoolean(s);
+            }
+
             s = (String) configs.remove("system.communication.numNIOThreads");
             if (s == null) {
                 numNIOThreads = 2;
@@ -202,6 +232,13 @@ public class TOMConfiguration extends Configuration {
                 stateTransferEnabled = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.state_chunk_size");
+            if (s == null) {
+                stateChunkSize = 0;
+            } else {
+                stateChunkSize = Math.max(0, Integer.parseInt(s)) * 1024;
+            }
+
             s = (String) configs.remove("system.totalordermulticast.checkpoint_period");
             if (s == null) {
                 checkpointPeriod = 1;
@@ -290,6 +327,14 @@ public class TOMConfiguration extends Configuration {
                     syncLog = false;
             }
 
+            s = (String) configs
+                            .remove("system.totalordermulticast.log_segment_size");
+            if (s != null) {
+                    logSegmentSize = Math.max(1, Integer.parseInt(s)) * 1024;
+            } else {
+                    logSegmentSize = 64 * 1024 * 1024;
+            }
+
             s = (String) configs
                             .remove("system.totalordermulticast.checkpoint_to_disk");
             if (s == null) {
@@ -306,6 +351,14 @@ public class TOMConfiguration extends Configuration {
                     syncCkp = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs
+                            .remove("system.totalordermulticast.async_checkpoint");
+            if (s == null) {
+                    asyncCheckpoint = false;
+            } else {
+                    asyncCheckpoint = Boolean.parseBoolean(s);
+            }
+
             s = (String) configs.remove("system.totalordermulticast.global_checkpoint_period");
             if (s == null) {
                 globalCheckpointPeriod = 1;
@@ -329,6 +382,13 @@ public class TOMConfiguration extends Configuration {
             } else {
                 numNettyWorkers = Integer.parseInt(s);
             }
+
+            s = (String) configs.remove("system.numreaders");
+            if (s == null) {
+                numReaders = 0;
+            } else {
+                numReaders = Integer.parseInt(s);
+            }
             
             s = (String) configs.remove("system.communication.bindaddress");
             
@@ -353,6 +413,94 @@ public class TOMConfiguration extends Configuration {
             } else {
                     fairbatch = false;
             }
+
+            s = (String) configs.remove("system.totalordermulticast.pipeline_depth");
+            if (s == null) {
+                pipelineDepth = 1;
+            } else {
+                pipelineDepth = Integer.parseInt(s);
+                if (pipelineDepth < 1) {
+                    pipelineDepth = 1;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.instances");
+            if (s == null) {
+                instances = 1;
+            } else {
+                instances = Integer.parseInt(s);
+                if (instances < 1) {
+                    instances = 1;
+                }
+                if (instances > n) {
+                    instances = n;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.block_retention");
+            if (s == null) {
+                blockRetention = 1024;
+            } else {
+                blockRetention = Integer.parseInt(s);
+                if (blockRetention < 1) {
+                    blockRetention = 1;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.compact_certificate");
+            if (s != null) {
+                    compactCertificate = Boolean.parseBoolean(s);
+            } else {
+                    compactCertificate = false;
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.speculative_batching");
+            if (s != null) {
+                    speculativeBatching = Boolean.parseBoolean(s);
+            } else {
+                    speculativeBatching = false;
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.digest_proposals");
+            if (s != null) {
+                    digestProposals = Boolean.parseBoolean(s);
+            } else {
+                    digestProposals = false;
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.adaptive_batching");
+            if (s != null) {
+                    adaptiveBatching = Boolean.parseBoolean(s);
+            } else {
+                    adaptiveBatching = false;
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.latency_slo_low");
+            if (s == null) {
+                latencySloLow = 2;
+            } else {
+                latencySloLow = Integer.parseInt(s);
+                if (latencySloLow < 0) {
+                    latencySloLow = 0;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.latency_slo_high");
+            if (s == null) {
+                latencySloHigh = 20;
+            } else {
+                latencySloHigh = Integer.parseInt(s);
+            }
+            if (latencySloHigh <= latencySloLow) {
+                latencySloHigh = latencySloLow + 1;
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.metrics_dump_interval");
+            if (s != null) {
+                    metricsDumpInterval = Long.parseLong(s);
+            } else {
+                    metricsDumpInterval = 0;
+            }
             
             /**
              * Tulio Ribeiro 
@@ -474,6 +622,14 @@ public class TOMConfiguration extends Configuration {
         return stateTransferEnabled;
     }
 
+    /**
+     * @return the size of the chunks in which the state is fetched from all
+     * the replicas, in bytes, or 0 if it is sent whole by one replica
+     */
+    public int getStateChunkSize() {
+        return stateChunkSize;
+    }
+
     public int getInQueueSize() {
         return inQueueSize;
     }
@@ -486,6 +642,22 @@ public class TOMConfiguration extends Configuration {
         return useSenderThread;
     }
 
+    /**
+     * Indicates if the messages of the chained protocol are sent with the binary codec
+     * instead of java serialization
+     */
+    public boolean useBinaryCodec() {
+        return useBinaryCodec;
+    }
+
+    /**
+     * Indicates if replicas communicate through Netty event loops instead of
+     * blocking sockets with a sender and a receiver thread per replica
+     */
+    public boolean useNettyReplicaTransport() {
+        return useNettyReplicaTransport;
+    }
+
     /**
      *     *
      */
@@ -520,6 +692,13 @@ public class TOMConfiguration extends Configuration {
 		return syncCkp;
 	}
 
+	/**
+	 * @return true if the checkpoints of the disk log are serialized and written by a background thread
+	 */
+	public boolean isToCheckpointAsync() {
+		return asyncCheckpoint;
+	}
+
 	public boolean isToLog() {
 		return isToLog;
 	}
@@ -532,6 +711,13 @@ public class TOMConfiguration extends Configuration {
 		return logToDisk;
 	}
 
+	/**
+	 * @return the size of the segment files of the disk log, in bytes
+	 */
+	public int getLogSegmentSize() {
+		return logSegmentSize;
+	}
+
 	public boolean isToLogParallel() {
 		// TODO Auto-generated method stub
 		return parallelLog;
@@ -564,6 +750,10 @@ public class TOMConfiguration extends Configuration {
         return numNettyWorkers;
     }
     
+    public int getNumReaders() {
+        return numReaders;
+    }
+    
     public boolean getSameBatchSize() {
         return sameBatchSize;
     }
@@ -572,6 +762,73 @@ public class TOMConfiguration extends Configuration {
         return fairbatch;
     }
     
+    /**
+     * Indicates how many chained consensus heights can be in flight at once (1 disables pipelining)
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Indicates how many chains, each with its own leader, order the requests (1 is a single chain)
+     */
+    public int getInstances() {
+        return instances;
+    }
+
+    /**
+     * Indicates how many committed blocks each replica keeps in memory
+     */
+    public int getBlockRetention() {
+        return blockRetention;
+    }
+
+    /**
+     * Indicates if PROPOSALs carry a compact quorum certificate instead of every VOTE
+     */
+    public boolean useCompactCertificate() {
+        return compactCertificate;
+    }
+
+    /**
+     * Indicates if the leader assembles the next batch while the VOTEs for its height are in flight
+     */
+    public boolean useSpeculativeBatching() {
+        return speculativeBatching;
+    }
+
+    /**
+     * Indicates if PROPOSALs carry the digests of the requests instead of the requests themselves
+     */
+    public boolean useDigestProposals() {
+        return digestProposals;
+    }
+
+    /**
+     * Indicates if the batch size and the time spent waiting for a batch to fill are adjusted at runtime
+     */
+    public boolean useAdaptiveBatching() {
+        return adaptiveBatching;
+    }
+
+    /**
+     * Consensus latency, in milliseconds, below which the adaptive batching waits longer for batches to fill
+     */
+    public int getLatencySloLow() {
+        return latencySloLow;
+    }
+
+    /**
+     * Consensus latency, in milliseconds, above which the adaptive batching shortens the wait and the batches
+     */
+    public int getLatencySloHigh() {
+        return latencySloHigh;
+    }
+
+    public long getMetricsDumpInterval() {
+        return metricsDumpInterval;
+    }
+
     public String getBindAddress() {
         return bindAddress;
     }
@@ -380,4 +380,22 @@ public abstract class StateManager {
      */
     public abstract void SMReplyDeliver(SMMessage msg, boolean isBFT);
 
+    /**
+     * Invoked when a replica asks for a chunk of the application state. State managers
+     * that do not send the state in chunks ignore it.
+     * @param msg The message sent by the replica, of type 'SM_CHUNK_REQUEST'.
+     */
+    public void SMChunkRequestDeliver(SMMessage msg) {
+        logger.debug("Ignoring request for a chunk of the state from " + msg.getSender());
+    }
+
+    /**
+     * Invoked when a replica receives a chunk of the application state it asked for.
+     * @param msg The message sent by the replica, of type 'SM_CHUNK_REPLY'.
+     * @param isBFT true if the library is set for BFT, false if CFT
+     */
+    public void SMChunkReplyDeliver(SMMessage msg, boolean isBFT) {
+        logger.debug("Ignoring chunk of the state from " + msg.getSender());
+    }
+
 }
@@ -0,0 +1,170 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The chunks of a state fetched from several replicas. Each chunk is copied
+ * into the state as soon as it is checked against the manifest, and the
+ * checked chunks are kept across request rounds, so that a transfer
+ * interrupted by a timeout only fetches the missing ones.
+ */
+class ChunkedTransfer {
+
+    private static final int WINDOW = 4; // chunks requested from a replica and not received yet
+
+    private final StateManifest manifest;
+    private final byte[] state;
+    private final BitSet received;
+    private int missing;
+
+    private final ArrayDeque<Integer> pending = new ArrayDeque<>(); // chunks not requested in this round
+    private final Map<Integer, Set<Integer>> requested = new HashMap<>(); // chunks requested from each replica
+
+    ChunkedTransfer(StateManifest manifest) {
+        this.manifest = manifest;
+        this.state = new byte[manifest.getLength()];
+        this.received = new BitSet(manifest.getChunkCount());
+        this.missing = manifest.getChunkCount();
+    }
+
+    StateManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Starts a request round: forgets the chunks requested so far, and lets
+     * the missing chunks be requested from the given replicas
+     * @param sources the replicas that sent this manifest
+     */
+    void restart(Collection<Integer> sources) {
+        pending.clear();
+        requested.clear();
+        for (int i = received.nextClearBit(0); i < manifest.getChunkCount(); i = received.nextClearBit(i + 1)) {
+            pending.add(i);
+        }
+        for (int source : sources) {
+            addSource(source);
+        }
+    }
+
+    /**
+     * @param source a replica that sent this manifest after the round started
+     */
+    void addSource(int source) {
+        if (!requested.containsKey(source)) {
+            requested.put(source, new HashSet<Integer>());
+        }
+    }
+
+    /**
+     * @return the replicas from which chunks can be requested
+     */
+    Set<Integer> getSources() {
+        return requested.keySet();
+    }
+
+    /**
+     * Picks the next chunk to request from a replica. Once all the chunks are
+     * requested, a replica with nothing to send is asked for the chunks still
+     * expected from the others, so that a slow or silent replica does not
+     * hold the transfer back
+     * @param source the replica
+     * @return the index of the chunk, or -1 if the replica has enough chunks
+     * to send or there is no chunk left to request
+     */
+    int next(int source) {
+        Set<Integer> chunks = requested.get(source);
+        if (chunks == null || chunks.size() >= WINDOW) {
+            return -1;
+        }
+        Integer index;
+        do {
+            index = pending.poll();
+        } while (index != null && received.get(index));
+        if (index == null) {
+            if (!chunks.isEmpty()) {
+                return -1;
+            }
+            for (Set<Integer> others : requested.values()) {
+                for (int other : others) {
+                    if (!received.get(other)) {
+                        chunks.add(other);
+                        return other;
+                    }
+                }
+            }
+            return -1;
+        }
+        chunks.add(index);
+        return index;
+    }
+
+    /**
+     * Copies a chunk received from a replica into the state. A replica that
+     * sends a chunk that does not match its hash is not asked for more
+     * chunks in this round, and the chunks requested from it are requested
+     * from the others
+     * @param source the replica
+     * @param index the index of the chunk
+     * @param chunk the content of the chunk
+     * @return false if the chunk does not match its hash
+     */
+    boolean deliver(int source, int index, byte[] chunk) {
+        if (!manifest.verify(index, chunk)) {
+            Set<Integer> chunks = requested.remove(source);
+            if (chunks != null) {
+                pending.addAll(chunks);
+            }
+            return false;
+        }
+        Set<Integer> chunks = requested.get(source);
+        if (chunks != null) {
+            chunks.remove(index);
+        }
+        if (!received.get(index)) {
+            System.arraycopy(chunk, 0, state, manifest.getOffset(index), chunk.length);
+            received.set(index);
+            missing--;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of chunks not received yet
+     */
+    int getMissing() {
+        return missing;
+    }
+
+    boolean isComplete() {
+        return missing == 0;
+    }
+
+    /**
+     * @return the serialized state, complete once all chunks are received
+     */
+    byte[] getState() {
+        return state;
+    }
+}
@@ -31,6 +31,7 @@ import bftsmart.statemanagement.SMMessage;
 public class StandardSMMessage extends SMMessage {
 
 	private int replica;
+	private StateManifest manifest; // hashes of the chunks of the state, if it is fetched in chunks
 
     public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader) {
     	super(sender, cid, type, state, view, regency, leader);
@@ -49,15 +50,29 @@ public class StandardSMMessage extends SMMessage {
         return replica;
     }
 
+    /**
+     * Retrieves the hashes of the chunks of the state of the sender
+     * @return The manifest of the state, or null if the state is not sent in chunks
+     */
+    public StateManifest getManifest() {
+        return manifest;
+    }
+
+    public void setManifest(StateManifest manifest) {
+        this.manifest = manifest;
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException{
         super.writeExternal(out);
         out.writeInt(replica);
+        out.writeObject(manifest);
     }
 
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
         super.readExternal(in);
         replica = in.readInt();
+        manifest = (StateManifest) in.readObject();
     }
 }
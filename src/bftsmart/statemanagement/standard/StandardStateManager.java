@@ -18,7 +18,9 @@ package bftsmart.statemanagement.standard;
 import bftsmart.statemanagement.StateManager;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -37,6 +39,8 @@ import bftsmart.tom.util.TOMUtil;
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
 import bftsmart.tom.leaderchange.CertifiedDecision;
+import bftsmart.tom.server.defaultservices.ChunkedCheckpoint;
+import bftsmart.tom.server.defaultservices.DefaultApplicationState;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,13 +58,30 @@ public class StandardStateManager extends StateManager {
     private ReentrantLock lockTimer = new ReentrantLock();
     private Timer stateTimer = null;
     private final static long INIT_TIMEOUT = 40000;
+    private final static long MAX_TIMEOUT = INIT_TIMEOUT * 16;
     private long timeout = INIT_TIMEOUT;
 
+    // fetching the state in chunks from all the replicas
+    private int chunkSize;
+    private ChunkedTransfer transfer = null; // kept across rounds, to resume an interrupted transfer
+    private boolean fetching = false; // chunks were requested in this round
+    private HashMap<Integer, StateManifest> senderManifests = new HashMap<>();
+    private int agreedRegency = -1;
+    private int agreedLeader = -1;
+    private View agreedView = null;
+    private CertifiedDecision agreedProof = null;
+
+    // the last state sent in chunks to other replicas
+    private ReentrantLock lockServed = new ReentrantLock();
+    private StateManifest servedManifest = null;
+    private byte[] servedState = null;
+
     @Override
     public void init(TOMLayer tomLayer, DeliveryThread dt) {
 
         super.init(tomLayer, dt);
 
+        chunkSize = SVController.getStaticConf().getStateChunkSize();
         changeReplica(); // initialize replica from which to ask the complete state
 
     }
@@ -93,8 +114,9 @@ public class StandardStateManager extends StateManager {
 
         changeReplica(); // always ask the complete state to a different replica
 
+        // when the state is fetched in chunks, no replica sends it whole
         SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
-                waitingCID, TOMUtil.SM_REQUEST, replica, null, null, -1, -1);
+                waitingCID, TOMUtil.SM_REQUEST, chunkSize > 0 ? -1 : replica, null, null, -1, -1);
         tomLayer.getCommunication().send(SVController.getCurrentViewOtherAcceptors(), smsg);
 
         logger.info("I just sent a request to the other replicas for the state up to CID " + waitingCID);
@@ -108,10 +130,27 @@ public class StandardStateManager extends StateManager {
         };
 
         stateTimer = new Timer("state timer");
-        timeout = timeout * 2;
+        timeout = Math.min(timeout * 2, MAX_TIMEOUT);
         stateTimer.schedule(stateTask, timeout);
     }
 
+    /**
+     * Computes the hash of a received state, to compare it with the hashes sent
+     * by the other replicas. The hash of the state of a ChunkedState
+     * application is the root of the Merkle tree over its chunks
+     */
+    private byte[] computeStateHash(ApplicationState state) {
+        if (state instanceof DefaultApplicationState && ((DefaultApplicationState) state).isChunked()) {
+            try {
+                return ChunkedCheckpoint.root(state.getSerializedState());
+            } catch (RuntimeException e) {
+                logger.warn("Received an invalid chunked state", e);
+                return null;
+            }
+        }
+        return tomLayer.computeHash(state.getSerializedState());
+    }
+
     @Override
     public void stateTimeout() {
         lockTimer.lock();
@@ -130,8 +169,9 @@ public class StandardStateManager extends StateManager {
         if (SVController.getStaticConf().isStateTransferEnabled() && dt.getRecoverer() != null) {
             StandardSMMessage stdMsg = (StandardSMMessage) msg;
             boolean sendState = stdMsg.getReplica() == SVController.getStaticConf().getProcessId();
+            boolean sendManifest = stdMsg.getReplica() == -1 && chunkSize > 0;
 
-            ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState);
+            ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState || sendManifest);
             if (thisState == null) {
 
                 logger.warn("For some reason, I am sending a void state");
@@ -139,9 +179,12 @@ public class StandardStateManager extends StateManager {
             }
 
             int[] targets = {msg.getSender()};
-            SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
+            StandardSMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
                     msg.getCID(), TOMUtil.SM_REPLY, -1, thisState, SVController.getCurrentView(),
                     tomLayer.getSynchronizer().getLCManager().getLastReg(), tomLayer.execManager.getCurrentLeader());
+            if (sendManifest) {
+                smsg.setManifest(serveState(thisState));
+            }
 
             logger.info("Sending state...");
             tomLayer.getCommunication().send(targets, smsg);
@@ -183,7 +226,10 @@ public class StandardStateManager extends StateManager {
                     currentView = SVController.getCurrentView();
                 }
 
-                if (msg.getSender() == replica && msg.getState().getSerializedState() != null) {
+                if (chunkSize > 0) {
+                    senderManifests.put(msg.getSender(), msg instanceof StandardSMMessage
+                            ? ((StandardSMMessage) msg).getManifest() : null);
+                } else if (msg.getSender() == replica && msg.getState().getSerializedState() != null) {
                     logger.debug("Expected replica sent state. Setting it to state");
                     state = msg.getState();
                     if (stateTimer != null) {
@@ -194,13 +240,31 @@ public class StandardStateManager extends StateManager {
                 senderStates.put(msg.getSender(), msg.getState());
 
                 logger.debug("Verifying more than F replies");
-                if (enoughReplies()) {
+                if (chunkSize > 0) {
+                    if (currentRegency > -1) {
+                        agreedRegency = currentRegency;
+                    }
+                    if (currentLeader > -1) {
+                        agreedLeader = currentLeader;
+                    }
+                    if (currentView != null) {
+                        agreedView = currentView;
+                    }
+                    if (currentProof != null) {
+                        agreedProof = currentProof;
+                    }
+                    if (state != null) {
+                        tryInstallState(isBFT);
+                    } else {
+                        fetchState(isBFT);
+                    }
+                } else if (enoughReplies()) {
                     logger.debug("More than F confirmed");
                     ApplicationState otherReplicaState = getOtherReplicaState();
                     int haveState = 0;
                     if (state != null) {
                         byte[] hash = null;
-                        hash = tomLayer.computeHash(state.getSerializedState());
+                        hash = computeStateHash(state);
                         if (otherReplicaState != null) {
                             if (Arrays.equals(hash, otherReplicaState.getStateHash())) {
                                 haveState = 1;
@@ -213,104 +277,7 @@ public class StandardStateManager extends StateManager {
                     if (otherReplicaState != null && haveState == 1 && currentRegency > -1
                             && currentLeader > -1 && currentView != null && (!isBFT || currentProof != null || appStateOnly)) {
 
-                        logger.info("Received state. Will install it");
-
-                        tomLayer.getSynchronizer().getLCManager().setLastReg(currentRegency);
-                        tomLayer.getSynchronizer().getLCManager().setNextReg(currentRegency);
-                        tomLayer.getSynchronizer().getLCManager().setNewLeader(currentLeader);
-                        tomLayer.execManager.setNewLeader(currentLeader);
-
-                        if (currentProof != null && !appStateOnly) {
-
-                            logger.debug("Installing proof for consensus " + waitingCID);
-
-                            Consensus cons = execManager.getConsensus(waitingCID);
-                            Epoch e = null;
-
-                            for (ConsensusMessage cm : currentProof.getConsMessages()) {
-
-                                e = cons.getEpoch(cm.getEpoch(), true, SVController);
-                                if (e.getTimestamp() != cm.getEpoch()) {
-
-                                    logger.warn("Strange... proof contains messages from more than just one epoch");
-                                    e = cons.getEpoch(cm.getEpoch(), true, SVController);
-                                }
-                                e.addToProof(cm);
-
-                                if (cm.getType() == MessageFactory.ACCEPT) {
-                                    e.setAccept(cm.getSender(), cm.getValue());
-                                } else if (cm.getType() == MessageFactory.WRITE) {
-                                    e.setWrite(cm.getSender(), cm.getValue());
-                                }
-
-                            }
-
-                            if (e != null) {
-
-                                byte[] hash = tomLayer.computeHash(currentProof.getDecision());
-                                e.propValueHash = hash;
-                                e.propValue = currentProof.getDecision();
-                                e.deserializedPropValue = tomLayer.checkProposedValue(currentProof.getDecision(), false);
-                                cons.decided(e, false);
-
-                                logger.info("Successfully installed proof for consensus " + waitingCID);
-
-                            } else {
-                                logger.error("Failed to install proof for consensus " + waitingCID);
-
-                            }
-
-                        }
-
-                        // I might have timed out before invoking the state transfer, so
-                        // stop my re-transmission of STOP messages for all regencies up to the current one
-                        if (currentRegency > 0) {
-                            tomLayer.getSynchronizer().removeSTOPretransmissions(currentRegency - 1);
-                        }
-                        //if (currentRegency > 0)
-                        //    tomLayer.requestsTimer.setTimeout(tomLayer.requestsTimer.getTimeout() * (currentRegency * 2));
-
-                        dt.deliverLock();
-                        waitingCID = -1;
-                        dt.update(state);
-
-                        if (!appStateOnly && execManager.stopped()) {
-                            Queue<ConsensusMessage> stoppedMsgs = execManager.getStoppedMsgs();
-                            for (ConsensusMessage stopped : stoppedMsgs) {
-                                if (stopped.getNumber() > state.getLastCID() /*msg.getCID()*/) {
-                                    execManager.addOutOfContextMessage(stopped);
-                                }
-                            }
-                            execManager.clearStopped();
-                            execManager.restart();
-                        }
-
-                        tomLayer.processOutOfContext();
-
-                        if (SVController.getCurrentViewId() != currentView.getId()) {
-                            logger.info("Installing current view!");
-                            SVController.reconfigureTo(currentView);
-                        }
-
-                        isInitializing = false;
-
-                        dt.canDeliver();
-                        dt.deliverUnlock();
-
-                        reset();
-
-                        logger.info("I updated the state!");
-
-                        tomLayer.requestsTimer.Enabled(true);
-                        tomLayer.requestsTimer.startTimer();
-                        if (stateTimer != null) {
-                            stateTimer.cancel();
-                        }
-
-                        if (appStateOnly) {
-                            appStateOnly = false;
-                            tomLayer.getSynchronizer().resumeLC();
-                        }
+                        installState(currentRegency, currentLeader, currentView, currentProof);
                     } else if (otherReplicaState == null && (SVController.getCurrentViewN() / 2) < getReplies()) {
                         waitingCID = -1;
                         reset();
@@ -351,6 +318,320 @@ public class StandardStateManager extends StateManager {
         lockTimer.unlock();
     }
 
+    /**
+     * Installs the received state, together with the regency, leader and view
+     * agreed by the replicas and the proof of the last consensus
+     */
+    private void installState(int currentRegency, int currentLeader, View currentView, CertifiedDecision currentProof) {
+        logger.info("Received state. Will install it");
+
+        tomLayer.getSynchronizer().getLCManager().setLastReg(currentRegency);
+        tomLayer.getSynchronizer().getLCManager().setNextReg(currentRegency);
+        tomLayer.getSynchronizer().getLCManager().setNewLeader(currentLeader);
+        tomLayer.execManager.setNewLeader(currentLeader);
+
+        if (currentProof != null && !appStateOnly) {
+
+            logger.debug("Installing proof for consensus " + waitingCID);
+
+            Consensus cons = execManager.getConsensus(waitingCID);
+            Epoch e = null;
+
+            for (ConsensusMessage cm : currentProof.getConsMessages()) {
+
+                e = cons.getEpoch(cm.getEpoch(), true, SVController);
+                if (e.getTimestamp() != cm.getEpoch()) {
+
+                    logger.warn("Strange... proof contains messages from more than just one epoch");
+                    e = cons.getEpoch(cm.getEpoch(), true, SVController);
+                }
+                e.addToProof(cm);
+
+                if (cm.getType() == MessageFactory.ACCEPT) {
+                    e.setAccept(cm.getSender(), cm.getValue());
+                } else if (cm.getType() == MessageFactory.WRITE) {
+                    e.setWrite(cm.getSender(), cm.getValue());
+                }
+
+            }
+
+            if (e != null) {
+
+                byte[] hash = tomLayer.computeHash(currentProof.getDecision());
+                e.propValueHash = hash;
+                e.propValue = currentProof.getDecision();
+                e.deserializedPropValue = tomLayer.checkProposedValue(currentProof.getDecision(), false);
+                cons.decided(e, false);
+
+                logger.info("Successfully installed proof for consensus " + waitingCID);
+
+            } else {
+                logger.error("Failed to install proof for consensus " + waitingCID);
+
+            }
+
+        }
+
+        // I might have timed out before invoking the state transfer, so
+        // stop my re-transmission of STOP messages for all regencies up to the current one
+        if (currentRegency > 0) {
+            tomLayer.getSynchronizer().removeSTOPretransmissions(currentRegency - 1);
+        }
+        //if (currentRegency > 0)
+        //    tomLayer.requestsTimer.setTimeout(tomLayer.requestsTimer.getTimeout() * (currentRegency * 2));
+
+        dt.deliverLock();
+        waitingCID = -1;
+        dt.update(state);
+
+        if (!appStateOnly && execManager.stopped()) {
+            Queue<ConsensusMessage> stoppedMsgs = execManager.getStoppedMsgs();
+            for (ConsensusMessage stopped : stoppedMsgs) {
+                if (stopped.getNumber() > state.getLastCID() /*msg.getCID()*/) {
+                    execManager.addOutOfContextMessage(stopped);
+                }
+            }
+            execManager.clearStopped();
+            execManager.restart();
+        }
+
+        tomLayer.processOutOfContext();
+
+        if (SVController.getCurrentViewId() != currentView.getId()) {
+            logger.info("Installing current view!");
+            SVController.reconfigureTo(currentView);
+        }
+
+        isInitializing = false;
+
+        dt.canDeliver();
+        dt.deliverUnlock();
+
+        reset();
+
+        logger.info("I updated the state!");
+
+        tomLayer.requestsTimer.Enabled(true);
+        tomLayer.requestsTimer.startTimer();
+        if (stateTimer != null) {
+            stateTimer.cancel();
+        }
+
+        if (appStateOnly) {
+            appStateOnly = false;
+            tomLayer.getSynchronizer().resumeLC();
+        }
+
+        transfer = null;
+    }
+
+    /**
+     * Keeps the serialized state sent in chunks to the other replicas, and
+     * removes it from the reply, which only carries the hashes of its chunks.
+     * The state is kept until another one is requested, so that chunks keep
+     * being served after the next checkpoint
+     *
+     * @return The manifest of the state, or null if there is no state to send
+     */
+    private StateManifest serveState(ApplicationState thisState) {
+        byte[] serialized = thisState.getSerializedState();
+        if (serialized == null) {
+            return null;
+        }
+        thisState.setSerializedState(null);
+
+        lockServed.lock();
+        try {
+            if (servedState != serialized && !Arrays.equals(servedState, serialized)) {
+                servedManifest = StateManifest.create(serialized, chunkSize);
+                servedState = serialized;
+            }
+            return servedManifest;
+        } finally {
+            lockServed.unlock();
+        }
+    }
+
+    @Override
+    public void SMChunkRequestDeliver(SMMessage msg) {
+        if (!SVController.getStaticConf().isStateTransferEnabled() || !(msg instanceof StateChunkMessage)) {
+            return;
+        }
+        StateChunkMessage request = (StateChunkMessage) msg;
+        int index = request.getIndex();
+        byte[] chunk = null;
+
+        lockServed.lock();
+        try {
+            if (servedManifest != null && Arrays.equals(servedManifest.getDigest(), request.getDigest())
+                    && index >= 0 && index < servedManifest.getChunkCount()) {
+                int offset = servedManifest.getOffset(index);
+                chunk = Arrays.copyOfRange(servedState, offset, offset + servedManifest.getChunkLength(index));
+            }
+        } finally {
+            lockServed.unlock();
+        }
+
+        if (chunk == null) {
+            logger.debug("Replica {} asked for chunk {} of a state I no longer have", msg.getSender(), index);
+            return;
+        }
+        SMMessage reply = new StateChunkMessage(SVController.getStaticConf().getProcessId(), msg.getCID(),
+                TOMUtil.SM_CHUNK_REPLY, request.getDigest(), index, chunk);
+        tomLayer.getCommunication().send(new int[]{msg.getSender()}, reply);
+    }
+
+    @Override
+    public void SMChunkReplyDeliver(SMMessage msg, boolean isBFT) {
+        lockTimer.lock();
+        if (SVController.getStaticConf().isStateTransferEnabled() && waitingCID != -1 && transfer != null
+                && msg instanceof StateChunkMessage) {
+            StateChunkMessage reply = (StateChunkMessage) msg;
+            if (Arrays.equals(reply.getDigest(), transfer.getManifest().getDigest())) {
+                if (!transfer.deliver(msg.getSender(), reply.getIndex(), reply.getChunk())) {
+                    logger.warn("Replica {} sent chunk {} of the state, which does not match its hash",
+                            msg.getSender(), reply.getIndex());
+                }
+                if (transfer.isComplete()) {
+                    completeTransfer(isBFT);
+                } else if (fetching) {
+                    requestChunks();
+                }
+            }
+        }
+        lockTimer.unlock();
+    }
+
+    /**
+     * Once f+1 replicas sent the same state and the same hashes of its chunks,
+     * requests the missing chunks from all of them. If the transfer of the same
+     * state was interrupted, the chunks already received are kept
+     */
+    private void fetchState(boolean isBFT) {
+        if (!enoughReplies()) {
+            return;
+        }
+        List<Integer> sources = agreedSources();
+        if (sources == null) {
+            if (!fetching && (SVController.getCurrentViewN() - SVController.getCurrentViewF()) <= getReplies()) {
+                logger.debug("Could not obtain the state, retrying");
+                reset();
+                if (stateTimer != null) {
+                    stateTimer.cancel();
+                }
+                waitingCID = -1;
+            }
+            return;
+        }
+
+        if (fetching) {
+            for (int source : sources) {
+                transfer.addSource(source);
+            }
+        } else {
+            StateManifest manifest = senderManifests.get(sources.get(0));
+            if (transfer == null || !transfer.getManifest().equals(manifest)) {
+                transfer = new ChunkedTransfer(manifest);
+                logger.info("Fetching the state in {} chunks from replicas {}", manifest.getChunkCount(), sources);
+            } else {
+                logger.info("Resuming the state transfer, {} of {} chunks missing", transfer.getMissing(),
+                        manifest.getChunkCount());
+            }
+            transfer.restart(sources);
+            fetching = true;
+        }
+
+        if (transfer.isComplete()) {
+            completeTransfer(isBFT);
+        } else {
+            requestChunks();
+        }
+    }
+
+    private void requestChunks() {
+        for (int source : transfer.getSources()) {
+            int index;
+            while ((index = transfer.next(source)) != -1) {
+                SMMessage request = new StateChunkMessage(SVController.getStaticConf().getProcessId(), waitingCID,
+                        TOMUtil.SM_CHUNK_REQUEST, transfer.getManifest().getDigest(), index, null);
+                tomLayer.getCommunication().send(new int[]{source}, request);
+            }
+        }
+    }
+
+    /**
+     * Checks the state assembled from the chunks against the hash agreed by the
+     * replicas, and installs it
+     */
+    private void completeTransfer(boolean isBFT) {
+        List<Integer> sources = agreedSources();
+        if (state != null || sources == null) {
+            return;
+        }
+        ApplicationState agreedState = senderStates.get(sources.get(0));
+        agreedState.setSerializedState(transfer.getState());
+        if (!Arrays.equals(computeStateHash(agreedState), agreedState.getStateHash())) {
+            logger.warn("The state assembled from the chunks does not match the hash sent by the replicas");
+            agreedState.setSerializedState(null);
+            transfer = null;
+            reset();
+            if (stateTimer != null) {
+                stateTimer.cancel();
+            }
+            requestState();
+            return;
+        }
+        logger.debug("Received all the chunks of the state");
+        state = agreedState;
+        tryInstallState(isBFT);
+    }
+
+    private void tryInstallState(boolean isBFT) {
+        if (agreedRegency > -1 && agreedLeader > -1 && agreedView != null
+                && (!isBFT || agreedProof != null || appStateOnly)) {
+            installState(agreedRegency, agreedLeader, agreedView, agreedProof);
+        } else {
+            logger.debug("State transfer not yet finished");
+        }
+    }
+
+    /**
+     * Searches the replies for f+1 replicas that sent the same state and the
+     * same hashes of its chunks
+     *
+     * @return The replicas that sent the state, or null if there are not enough
+     */
+    private List<Integer> agreedSources() {
+        for (Map.Entry<Integer, ApplicationState> entry : senderStates.entrySet()) {
+            ApplicationState st = entry.getValue();
+            StateManifest manifest = senderManifests.get(entry.getKey());
+            if (st == null || !st.hasState() || manifest == null || !manifest.isValid(chunkSize)) {
+                continue;
+            }
+            List<Integer> sources = new ArrayList<>();
+            for (Map.Entry<Integer, ApplicationState> other : senderStates.entrySet()) {
+                if (st.equals(other.getValue()) && manifest.equals(senderManifests.get(other.getKey()))) {
+                    sources.add(other.getKey());
+                }
+            }
+            if (sources.size() > SVController.getCurrentViewF()) {
+                return sources;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        senderManifests.clear();
+        fetching = false;
+        agreedRegency = -1;
+        agreedLeader = -1;
+        agreedView = null;
+        agreedProof = null;
+    }
+
     /**
      * Search in the received states table for a state that was not sent by the
      * expected replica. This is used to compare both states after received the
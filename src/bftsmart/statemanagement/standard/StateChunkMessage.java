@@ -0,0 +1,103 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import bftsmart.statemanagement.SMMessage;
+
+/**
+ * A request for a chunk of the state (SM_CHUNK_REQUEST), or a chunk of the
+ * state (SM_CHUNK_REPLY). The state is identified by the digest of its
+ * manifest.
+ */
+public class StateChunkMessage extends SMMessage {
+
+    private static final long serialVersionUID = 2775763195535720868L;
+
+    private byte[] digest;
+    private int index;
+    private byte[] chunk;
+
+    public StateChunkMessage(int sender, int cid, int type, byte[] digest, int index, byte[] chunk) {
+        super(sender, cid, type, null, null, -1, -1);
+        this.digest = digest;
+        this.index = index;
+        this.chunk = chunk;
+    }
+
+    public StateChunkMessage() {
+        super();
+    }
+
+    /**
+     * @return the digest of the manifest of the state
+     */
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return the index of the chunk
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the content of the chunk, or null in a request
+     */
+    public byte[] getChunk() {
+        return chunk;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+        out.writeInt(index);
+        writeBytes(out, digest);
+        writeBytes(out, chunk);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        index = in.readInt();
+        digest = readBytes(in);
+        chunk = readBytes(in);
+    }
+
+    private static void writeBytes(ObjectOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ObjectInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
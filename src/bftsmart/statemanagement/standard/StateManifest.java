@@ -0,0 +1,147 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * The hashes of the chunks of a serialized state, sent by every replica that
+ * answers a state request. Once f+1 replicas sent the same manifest, each chunk
+ * can be fetched from any of them and checked against its hash as it arrives.
+ * The digest of the manifest identifies the state whose chunks are requested.
+ */
+public class StateManifest implements Serializable {
+
+    private static final long serialVersionUID = -3121958432736154871L;
+
+    private final int length; // bytes in the state
+    private final int chunkSize;
+    private final byte[][] hashes;
+    private transient byte[] digest;
+
+    private StateManifest(int length, int chunkSize, byte[][] hashes) {
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Splits a serialized state in chunks and hashes them
+     * @param state the serialized state
+     * @param chunkSize the size of the chunks, in bytes
+     * @return the manifest of the state
+     */
+    public static StateManifest create(byte[] state, int chunkSize) {
+        byte[][] hashes = new byte[(state.length + chunkSize - 1) / chunkSize][];
+        for (int i = 0; i < hashes.length; i++) {
+            int offset = i * chunkSize;
+            hashes[i] = TOMUtil.computeHash(Arrays.copyOfRange(state, offset, Math.min(state.length, offset + chunkSize)));
+        }
+        return new StateManifest(state.length, chunkSize, hashes);
+    }
+
+    /**
+     * @return the bytes in the state
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the number of chunks of the state
+     */
+    public int getChunkCount() {
+        return hashes.length;
+    }
+
+    /**
+     * @param index the index of a chunk
+     * @return the position of the chunk in the state
+     */
+    public int getOffset(int index) {
+        return index * chunkSize;
+    }
+
+    /**
+     * @param index the index of a chunk
+     * @return the bytes in the chunk
+     */
+    public int getChunkLength(int index) {
+        return Math.min(length - index * chunkSize, chunkSize);
+    }
+
+    /**
+     * Checks a chunk received from another replica
+     * @param index the index of the chunk
+     * @param chunk the content of the chunk
+     * @return true if the chunk has the length and the hash of this manifest
+     */
+    public boolean verify(int index, byte[] chunk) {
+        return index >= 0 && index < hashes.length && chunk != null && chunk.length == getChunkLength(index)
+                && Arrays.equals(hashes[index], TOMUtil.computeHash(chunk));
+    }
+
+    /**
+     * @return the hash of the length, chunk size and hashes of the chunks
+     */
+    public byte[] getDigest() {
+        if (digest == null) {
+            int size = 8;
+            for (byte[] hash : hashes) {
+                size += hash.length;
+            }
+            ByteBuffer bf = ByteBuffer.allocate(size);
+            bf.putInt(length);
+            bf.putInt(chunkSize);
+            for (byte[] hash : hashes) {
+                bf.put(hash);
+            }
+            digest = TOMUtil.computeHash(bf.array());
+        }
+        return digest;
+    }
+
+    /**
+     * Checks that this manifest describes a state split in chunks of the given
+     * size, so that a replica can not make the others allocate or request
+     * more than the state
+     * @param chunkSize the size of the chunks, in bytes
+     * @return true if the number of chunks matches the length of the state
+     */
+    public boolean isValid(int chunkSize) {
+        return this.chunkSize == chunkSize && length >= 0 && hashes != null
+                && hashes.length == (int) (((long) length + chunkSize - 1) / chunkSize);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof StateManifest) {
+            StateManifest manifest = (StateManifest) obj;
+            return length == manifest.length && chunkSize == manifest.chunkSize
+                    && Arrays.deepEquals(hashes, manifest.hashes);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * length + chunkSize) + Arrays.deepHashCode(hashes);
+    }
+}
@@ -37,9 +37,11 @@ import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.Replier;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.server.SingleExecutable;
+import bftsmart.tom.server.SnapshotReadable;
 
 import bftsmart.tom.server.defaultservices.DefaultReplier;
 import bftsmart.tom.util.KeyLoader;
+import bftsmart.tom.util.MetricsRegistry;
 import bftsmart.tom.util.ShutdownHookThread;
 import bftsmart.tom.util.TOMUtil;
 import java.security.Provider;
@@ -211,6 +213,26 @@ public class ServiceReplica {
                 (message.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST &&
                         message.getReplyServer() != this.id),message.getContent(), msgCtx);
 
+        sendReadonlyReply(response);
+    }
+
+    /**
+     * Executes a read-only request on a snapshot taken from a SnapshotReadable
+     * executor, and sends the reply to the client
+     * @param message the read-only request
+     * @param msgCtx information related with the request
+     * @param snapshot the snapshot the request reads
+     */
+    @SuppressWarnings("unchecked")
+    public final void receiveReadonlyMessage(TOMMessage message, MessageContext msgCtx, Object snapshot) {
+        TOMMessage response = ((SnapshotReadable<Object>) executor).executeOnSnapshot(snapshot, id,
+                SVController.getCurrentViewId(), (message.getReqType() == TOMMessageType.UNORDERED_HASHED_REQUEST &&
+                        message.getReplyServer() != this.id), message.getContent(), msgCtx);
+
+        sendReadonlyReply(response);
+    }
+
+    private void sendReadonlyReply(TOMMessage response) {
         if (response != null) {
             if (SVController.getStaticConf().getNumRepliers() > 0) {
                 repMan.send(response);
@@ -288,7 +310,7 @@ public class ServiceReplica {
 
         for (TOMMessage[] requestsFromConsensus : requests) {
 
-            TOMMessage firstRequest = requestsFromConsensus[0];
+            TOMMessage firstRequest = requestsFromConsensus.length > 0 ? requestsFromConsensus[0] : null;
             int requestCount = 0;
             noop = true;
             for (TOMMessage request : requestsFromConsensus) {
@@ -321,7 +343,6 @@ public class ServiceReplica {
                                 // a Recoverable object. It is useful to allow the application to create a log and
                                 // store the proof associated with decisions (which are needed by replicas
                                 // that are asking for a state transfer).
-                                request.requestReplyTime = System.nanoTime();
                                 if (this.recoverer != null) this.recoverer.Op(msgCtx.getConsensusId(), request.getContent(), msgCtx);
                                 
                                 // deliver requests and contexts to the executor later
@@ -336,7 +357,6 @@ public class ServiceReplica {
                                 // store the proof associated with decisions (which are needed by replicas
                                 // that are asking for a state transfer).
                                 if (this.recoverer != null) this.recoverer.Op(msgCtx.getConsensusId(), request.getContent(), msgCtx);
-                                request.requestReplyTime = System.nanoTime();
                                 // This is used to deliver the requests to the application and obtain a reply to deliver
                                 //to the clients. The raw decision is passed to the application in the line above.
                                 TOMMessage response = ((SingleExecutable) executor).executeOrdered(id, SVController.getCurrentViewId(), request.getContent(), msgCtx);
@@ -344,8 +364,6 @@ public class ServiceReplica {
                                 if (response != null) {
                                     
                                     logger.debug("sending reply to " + response.getSender());
-//                                    response.requestReplyTime = System.nanoTime();
-//                                    msgCtx.setRequestReplyTime();
                                     replier.manageReply(response, msgCtx);
                                 }
                             } else { //this code should never be executed
@@ -375,8 +393,10 @@ public class ServiceReplica {
                 
                 logger.debug("Delivering a no-op to the recoverer");
 
-                logger.info("A consensus instance finished, but there were no commands to deliver to the application.");
-                logger.info("Notifying recoverable about a blank consensus.");
+                if (requestsFromConsensus.length > 0) {
+                    logger.info("A consensus instance finished, but there were no commands to deliver to the application.");
+                    logger.info("Notifying recoverable about a blank consensus.");
+                }
 
                 byte[][] batch = null;
                 MessageContext[] msgCtx = null;
@@ -399,6 +419,14 @@ public class ServiceReplica {
                         
                         line++;
                     }
+                } else {
+                    // an empty block, from the leader of a chain whose clients had no requests, is
+                    // logged as a no-op without any command, so the log keeps one batch per consensus
+                    batch = new byte[][] { new byte[0] };
+                    msgCtx = new MessageContext[] { new MessageContext(-1, SVController.getCurrentViewId(),
+                        TOMMessageType.ORDERED_REQUEST, -1, -1, -1, -1, null, -1, 0, 0, regencies[consensusCount],
+                        leaders[consensusCount], consId[consensusCount], cDecs[consensusCount].getConsMessages(), null, true) };
+                    msgCtx[0].setLastInBatch();
                 }
 
                 this.recoverer.noOp(consId[consensusCount], batch, msgCtx);
@@ -484,13 +512,16 @@ public class ServiceReplica {
         ///
         ChainMessageFactory chainMessageFactory = new ChainMessageFactory(id);
 
-        Blockchain blockchain = new Blockchain();
-        blockchain.initBlockchain();
+        Blockchain[] blockchains = new Blockchain[SVController.getStaticConf().getInstances()];
+        for (int i = 0; i < blockchains.length; i++) {
+            blockchains[i] = new Blockchain(SVController.getStaticConf().getBlockRetention());
+            blockchains[i].initBlockchain();
+        }
 
-        ChainAcceptor chainAcceptor = new ChainAcceptor(cs, chainMessageFactory, SVController, blockchain);
+        ChainAcceptor chainAcceptor = new ChainAcceptor(cs, chainMessageFactory, SVController, blockchains);
         cs.setChainAcceptor(chainAcceptor);
 
-        ChainProposer chainProposer = new ChainProposer(cs, chainMessageFactory, SVController, blockchain);
+        ChainProposer chainProposer = new ChainProposer(cs, chainMessageFactory, SVController, blockchains);
         cs.setChainProposer(chainProposer);
 
         ExecutionManager executionManager = new ExecutionManager(SVController, chainAcceptor, chainProposer, id);
@@ -552,4 +583,22 @@ public class ServiceReplica {
     public int getId() {
         return id;
     }
+
+    /**
+     * Obtains the object that executes the requests
+     * 
+     * @return The executor
+     */
+    public Executable getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Obtains the latency histograms of the phases of the protocol
+     * 
+     * @return The replica's metrics registry
+     */
+    public MetricsRegistry getMetrics() {
+        return tomLayer.getMetrics();
+    }
 }
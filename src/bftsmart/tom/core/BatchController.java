@@ -0,0 +1,180 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses at runtime the target batch size, i.e., how many requests a replica
+ * waits for before voting and how many the leader proposes at most, and the
+ * linger time, i.e., for how long a replica waits for the target to be reached.
+ *
+ * The consensus latency, the throughput and the pending requests are measured
+ * over windows of decisions. At the end of each window:
+ * - if the latency is above the high bound, the linger time is halved, and
+ * once it is zero the target shrinks;
+ * - otherwise, if the pending requests grew past the target, the replica is
+ * not keeping up, so it stops lingering and doubles the target;
+ * - otherwise, the linger time is moved by one step in the direction that
+ * last increased the throughput, never increasing it while the latency is
+ * above the low bound. It is held while the throughput stays within a factor
+ * GAIN of the previous window, so that noise does not flip the direction at
+ * every window. The target grows while the batches fill it.
+ */
+public class BatchController {
+
+    private static final int WINDOW = 16; // decisions measured before each adjustment
+    private static final double GAIN = 1.05; // throughput change for the linger time to be moved
+    private static final long MIN_LINGER_STEP = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int maxBatchSize;
+    private final long latencyLow; // nanoseconds
+    private final long latencyHigh; // nanoseconds
+    private final long maxLinger; // nanoseconds
+    private final long lingerStep; // nanoseconds
+
+    private volatile int targetBatchSize;
+    private volatile long linger = 0; // nanoseconds
+
+    // the consensus started by this replica and not decided yet
+    private int startedCid = -1;
+    private long startTime = 0;
+
+    // the current window
+    private int decisions = 0;
+    private long requests = 0;
+    private long latencySum = 0;
+    private int latencySamples = 0;
+    private long windowStart = 0;
+    private int windowPending = -1;
+
+    private double lastThroughput = 0; // requests per second in the previous window
+    private int direction = 1; // direction of the last linger change
+
+    /**
+     * @param maxBatchSize the maximum batch size
+     * @param latencyLow consensus latency, in milliseconds, below which the linger time may increase
+     * @param latencyHigh consensus latency, in milliseconds, above which the linger time and the batches shrink
+     */
+    public BatchController(int maxBatchSize, int latencyLow, int latencyHigh) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.latencyLow = TimeUnit.MILLISECONDS.toNanos(latencyLow);
+        this.latencyHigh = TimeUnit.MILLISECONDS.toNanos(latencyHigh);
+        this.maxLinger = this.latencyHigh / 2; // lingering alone never exceeds the high bound
+        this.lingerStep = Math.max(MIN_LINGER_STEP, this.latencyLow / 8);
+        this.targetBatchSize = this.maxBatchSize;
+    }
+
+    /**
+     * @return the number of requests to wait for before voting, and to propose at most
+     */
+    public int getTargetBatchSize() {
+        return targetBatchSize;
+    }
+
+    /**
+     * @return the nanoseconds to wait for the target batch size to be reached
+     */
+    public long getLinger() {
+        return linger;
+    }
+
+    /**
+     * Records that this replica voted for a consensus
+     * @param cid the ID of the consensus
+     * @param pending the requests waiting to be ordered
+     */
+    public synchronized void started(int cid, int pending) {
+        startedCid = cid;
+        startTime = System.nanoTime();
+        if (windowPending == -1) {
+            windowPending = pending;
+            windowStart = startTime;
+        }
+    }
+
+    /**
+     * Records a decision, and adjusts the target batch size and the linger
+     * time at the end of each window
+     * @param cid the ID of the consensus
+     * @param batchSize the number of requests decided
+     * @param pending the requests still waiting to be ordered
+     */
+    public synchronized void decided(int cid, int batchSize, int pending) {
+        long now = System.nanoTime();
+        if (cid == startedCid) {
+            latencySum += now - startTime;
+            latencySamples++;
+            startedCid = -1;
+        }
+        decisions++;
+        requests += batchSize;
+
+        if (decisions < WINDOW || windowPending == -1 || now <= windowStart) {
+            return;
+        }
+
+        long latency = latencySamples > 0 ? latencySum / latencySamples : 0;
+        double throughput = requests * 1e9 / (now - windowStart);
+        double averageBatch = (double) requests / decisions;
+        boolean backlog = pending > windowPending && pending >= targetBatchSize;
+
+        if (latency > latencyHigh) {
+            if (linger > 0) {
+                linger = linger / 2 < lingerStep ? 0 : linger / 2;
+            } else {
+                targetBatchSize = Math.max(1, targetBatchSize - targetBatchSize / 4);
+            }
+            direction = -1;
+        } else if (backlog) {
+            linger = 0;
+            targetBatchSize = (int) Math.min(maxBatchSize, 2L * targetBatchSize);
+            direction = 1;
+        } else {
+            boolean hold = false;
+            if (throughput < lastThroughput / GAIN) {
+                direction = -direction; // the last change did not pay off
+            } else if (throughput <= lastThroughput * GAIN) {
+                hold = true; // the throughput did not move beyond the noise
+            }
+            if (direction > 0 && latency >= latencyLow) {
+                direction = -1;
+            }
+            if (!hold) {
+                linger = Math.max(0, Math.min(maxLinger, linger + direction * lingerStep));
+            }
+            if (averageBatch >= targetBatchSize * 0.9) {
+                targetBatchSize = Math.min(maxBatchSize, targetBatchSize + Math.max(1, targetBatchSize / 4));
+            }
+        }
+
+        logger.debug("Latency {} us, throughput {} req/s, average batch {}, pending {}: target batch size {}, linger {} us",
+                latency / 1000, (long) throughput, averageBatch, pending, targetBatchSize, linger / 1000);
+
+        lastThroughput = throughput;
+        decisions = 0;
+        requests = 0;
+        latencySum = 0;
+        latencySamples = 0;
+        windowStart = now;
+        windowPending = pending;
+    }
+}
@@ -16,11 +16,15 @@ limitations under the License.
 package bftsmart.tom.core;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import bftsmart.consensus.Decision;
 import bftsmart.reconfiguration.ServerViewController;
@@ -30,8 +34,12 @@ import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.leaderchange.CertifiedDecision;
+import bftsmart.tom.server.Executable;
 import bftsmart.tom.server.Recoverable;
+import bftsmart.tom.server.SnapshotReadable;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.LatencyHistogram;
+import bftsmart.tom.util.MetricsRegistry;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +62,12 @@ public final class DeliveryThread extends Thread {
 	private final ServerViewController controller;
 	private final Lock decidedLock = new ReentrantLock();
 	private final Condition notEmptyQueue = decidedLock.newCondition();
+	private final LatencyHistogram decideToExecute; // time from the decision to its execution starting
+	private final LatencyHistogram execution; // time to execute the decided batches, the replies are sent later
+	private final ExecutorService[] readers; // threads executing the unordered requests, null if there are none
+	private final SnapshotReadable<?> snapshotReadable; // the executor, if its unordered requests read snapshots and there are readers
+	private volatile Object snapshot = null; // the latest snapshot taken from snapshotReadable
+	private final ReentrantReadWriteLock executionLock = new ReentrantReadWriteLock(); // ordered execution excludes the readers
 
 	/**
 	 * Creates a new instance of DeliveryThread
@@ -72,6 +86,33 @@ public final class DeliveryThread extends Thread {
 		// ******* EDUARDO BEGIN **************//
 		this.controller = controller;
 		// ******* EDUARDO END **************//
+		this.decideToExecute = tomLayer.getMetrics().histogram(MetricsRegistry.DECIDE_TO_EXECUTE);
+		this.execution = tomLayer.getMetrics().histogram(MetricsRegistry.EXECUTE);
+
+		int numReaders = controller.getStaticConf().getNumReaders();
+		if (numReaders > 0) {
+			this.readers = new ExecutorService[numReaders];
+			for (int i = 0; i < numReaders; i++) {
+				String name = "Read-only Thread " + i;
+				this.readers[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, name));
+			}
+		} else {
+			this.readers = null;
+		}
+		Executable executor = receiver.getExecutor();
+		this.snapshotReadable = readers != null && executor instanceof SnapshotReadable
+				? (SnapshotReadable<?>) executor : null;
+		takeSnapshot();
+	}
+
+	/**
+	 * Takes a snapshot for the unordered requests, if the executor provides
+	 * them. Must be called while no ordered request is executing
+	 */
+	private void takeSnapshot() {
+		if (snapshotReadable != null) {
+			snapshot = snapshotReadable.takeSnapshot();
+		}
 	}
 
 	public Recoverable getRecoverer() {
@@ -116,6 +157,16 @@ public final class DeliveryThread extends Thread {
 		}
 	}
 
+	/**
+	 * Number of decisions that were delivered by the consensus layer but are
+	 * still waiting to be executed
+	 * 
+	 * @return size of the decided queue
+	 */
+	public int getPendingDecisions() {
+		return decided.size();
+	}
+
 	private boolean containsReconfig(Decision dec) {
 		TOMMessage[] decidedMessages = dec.getDeserializedValue();
 
@@ -152,7 +203,14 @@ public final class DeliveryThread extends Thread {
 
 	public void update(ApplicationState state) {
 
-		int lastCID = recoverer.setState(state);
+		int lastCID;
+		executionLock.writeLock().lock();
+		try {
+			lastCID = recoverer.setState(state);
+			takeSnapshot();
+		} finally {
+			executionLock.writeLock().unlock();
+		}
 
 		// set this decision as the last one from this replica
 		logger.info("Setting last CID to " + lastCID);
@@ -237,7 +295,7 @@ public final class DeliveryThread extends Thread {
 						cDecs[count] = cDec;
 
 						// cons.firstMessageProposed contains the performance counters
-						if (requests[count][0].equals(d.firstMessageProposed)) {
+						if (requests[count].length > 0 && requests[count][0].equals(d.firstMessageProposed)) {
 							long time = requests[count][0].timestamp;
 							long seed = requests[count][0].seed;
 							int numOfNonces = requests[count][0].numOfNonces;
@@ -253,11 +311,24 @@ public final class DeliveryThread extends Thread {
 					Decision lastDecision = decisions.get(decisions.size() - 1);
 
 					if (requests != null && requests.length > 0) {
-						deliverMessages(consensusIds, regenciesIds, leadersIds, cDecs, requests);
-
-						// ******* EDUARDO BEGIN ***********//
-						if (controller.hasUpdates()) {
-							processReconfigMessages(lastDecision.getConsensusId());
+						long executionStart = System.nanoTime();
+						for (Decision d : decisions) {
+							if (d.decisionTime > 0) {
+								decideToExecute.record(executionStart - d.decisionTime);
+							}
+						}
+						executionLock.writeLock().lock();
+						try {
+							deliverMessages(consensusIds, regenciesIds, leadersIds, cDecs, requests);
+							takeSnapshot();
+							execution.record(System.nanoTime() - executionStart);
+
+							// ******* EDUARDO BEGIN ***********//
+							if (controller.hasUpdates()) {
+								processReconfigMessages(lastDecision.getConsensusId());
+							}
+						} finally {
+							executionLock.writeLock().unlock();
 						}
 						if (lastReconfig > -2 && lastReconfig <= lastDecision.getConsensusId()) {
 
@@ -314,6 +385,15 @@ public final class DeliveryThread extends Thread {
 		return requests;
 	}
 
+	/**
+	 * Delivers a read-only request to the application. If there is a pool of
+	 * readers, the request is executed by the reader its client is pinned to,
+	 * so the requests of a client are executed in the order they are received,
+	 * and the caller is not blocked by the execution.
+	 * 
+	 * @param request the read-only request
+	 * @param regency the current regency
+	 */
 	protected void deliverUnordered(TOMMessage request, int regency) {
 
 		MessageContext msgCtx = new MessageContext(request.getSender(), request.getViewID(), request.getReqType(),
@@ -323,7 +403,29 @@ public final class DeliveryThread extends Thread {
 						// there is no consensus info to pass
 
 		msgCtx.readOnly = true;
-		receiver.receiveReadonlyMessage(request, msgCtx);
+
+		if (readers == null) {
+			receiver.receiveReadonlyMessage(request, msgCtx);
+			return;
+		}
+
+		try {
+			readers[Math.floorMod(request.getSender(), readers.length)].execute(() -> {
+				if (snapshotReadable != null) {
+					// the snapshot is not changed by the ordered execution, no need to wait for it
+					receiver.receiveReadonlyMessage(request, msgCtx, snapshot);
+					return;
+				}
+				executionLock.readLock().lock();
+				try {
+					receiver.receiveReadonlyMessage(request, msgCtx);
+				} finally {
+					executionLock.readLock().unlock();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.debug("Read-only request from client {} discarded, the readers are shut down", request.getSender());
+		}
 	}
 
 	private void deliverMessages(int consId[], int regencies[], int leaders[], CertifiedDecision[] cDecs,
@@ -357,6 +459,12 @@ public final class DeliveryThread extends Thread {
 		decidedLock.lock();
 		notEmptyQueue.signalAll();
 		decidedLock.unlock();
+
+		if (readers != null) {
+			for (ExecutorService reader : readers) {
+				reader.shutdownNow();
+			}
+		}
 	}
 
 	/*
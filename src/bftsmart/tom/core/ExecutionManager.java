@@ -161,6 +161,63 @@ public final class ExecutionManager {
     public int getCurrentLeader() {
             return currentLeader;
     }
+
+    /**
+     * Get the number of chains ordering requests in parallel
+     * @return Number of chains, 1 if there is a single chain
+     */
+    public int getInstances() {
+        return controller.getStaticConf().getInstances();
+    }
+
+    /**
+     * Get the chain a consensus belongs to. The blocks of the chains are
+     * interleaved, consensus cid being the next block of chain cid mod instances
+     * @param cid Consensus ID
+     * @return The chain of the consensus
+     */
+    public int getInstance(int cid) {
+        return Math.floorMod(cid, getInstances());
+    }
+
+    /**
+     * Get the leader of a chain, which is the replica that many positions
+     * after the current leader in the view, so a leader change rotates the
+     * leaders of all chains
+     * @param instance The chain
+     * @return The leader of the chain
+     */
+    public int getInstanceLeader(int instance) {
+        if (instance == 0) {
+            return currentLeader;
+        }
+        int[] acceptors = controller.getCurrentViewAcceptors();
+        int pos = Math.max(0, controller.getCurrentViewPos(currentLeader));
+        return acceptors[(pos + instance) % acceptors.length];
+    }
+
+    /**
+     * Get the leader of a consensus
+     * @param cid Consensus ID
+     * @return The leader of the chain the consensus belongs to
+     */
+    public int getLeader(int cid) {
+        return getInstanceLeader(getInstance(cid));
+    }
+
+    /**
+     * Get the chain led by a replica
+     * @param replica The replica ID
+     * @return The chain, or -1 if the replica leads none
+     */
+    public int getInstanceLedBy(int replica) {
+        for (int i = 0; i < getInstances(); i++) {
+            if (getInstanceLeader(i) == replica) {
+                return i;
+            }
+        }
+        return -1;
+    }
         
     /**
      * Sets the TOM layer associated with this execution manager
@@ -364,6 +421,30 @@ public final class ExecutionManager {
                 (msg.getConsId() < inExec)
         ) {
             logger.debug("too old message with number {}.", msg.getConsId());
+        }else if(msg.getMsgType() == ChainMessageFactory.VOTE && getInstances() > 1) {
+            // the VOTEs for the next block of each chain can be processed once the
+            // previous block of that chain, instances consensus before, is executed
+            if (msg.getConsId() <= lastConsId) {
+                logger.debug("too old vote message with number {}.", msg.getConsId());
+            } else if (msg.getConsId() <= lastConsId + getInstances()) {
+                logger.debug("can process message with number {}.", msg.getConsId());
+                canProcessTheMessage = true;
+            } else {
+                addOutOfContextChainMessage(msg);
+                logger.debug("too new vote message with number {}.", msg.getConsId());
+            }
+        }else if(msg.getMsgType() == ChainMessageFactory.PROPOSAL && getInstances() > 1) {
+            // the leaders of the chains propose in parallel, but the blocks are
+            // decided in the order of their consensus, which merges the chains
+            if (msg.getConsId() <= lastConsId) {
+                logger.debug("too old proposal message with number {}.", msg.getConsId());
+            } else if (msg.getConsId() == lastConsId + 1) {
+                logger.debug("can process message with number {}.", msg.getConsId());
+                canProcessTheMessage = true;
+            } else {
+                addOutOfContextChainMessage(msg);
+                logger.debug("too new proposal message with number {}.", msg.getConsId());
+            }
         }else if(msg.getConsId() > inExec && inExec != -1){
             addOutOfContextChainMessage(msg);
             logger.debug("too new vote message with number {}.", msg.getConsId());
@@ -402,6 +483,19 @@ public final class ExecutionManager {
         return result;
     }
 
+    /**
+     * Checks if this replica received VOTEs for a future consensus
+     * @param cid Consensus ID
+     * @return true if some VOTEs were stored as out of context
+     */
+    public boolean receivedOutOfContextVote(int cid) {
+        outOfContextLock.lock();
+        boolean result = outOfContextVote.get(cid) != null;
+        outOfContextLock.unlock();
+
+        return result;
+    }
+
     /**
      * Removes a consensus from this manager
      * @param id ID of the consensus to be removed
@@ -6,36 +6,31 @@ package bftsmart.tom.core;
 
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.tom.core.messages.TOMMessage;
-import io.netty.channel.Channel;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
+ * Sends the replies to the clients from a pool of threads. Each client is
+ * pinned to one thread, so the replies for a client connection are all
+ * written by the same thread, which flushes the connection once per batch of
+ * replies it takes from its queue.
  *
  * @author joao
  */
 public class ReplyManager {
         
     private LinkedList<ReplyThread> threads;
-    private int iteration;
     
     public ReplyManager(int numThreads, ServerCommunicationSystem cs) {
         
         this.threads = new LinkedList();
-        this.iteration = 0;
         
         for (int i = 0; i < numThreads; i++) {
-            this.threads.add(new ReplyThread(cs));
+            this.threads.add(new ReplyThread(cs, i));
         }
         
         for (ReplyThread t : threads)
@@ -44,8 +39,7 @@ public class ReplyManager {
     
     public void send (TOMMessage msg) {
         
-        iteration++;
-        threads.get((iteration % threads.size())).send(msg);
+        threads.get(Math.floorMod(msg.getSender(), threads.size())).send(msg);
 
     }
 }
@@ -54,52 +48,53 @@ class ReplyThread extends Thread {
     private LinkedBlockingQueue<TOMMessage> replies;
     private ServerCommunicationSystem cs = null;
     
-    private final Lock queueLock = new ReentrantLock();
-    private final Condition notEmptyQueue = queueLock.newCondition();
-    
-    private Map<Integer, Channel> channels;
-    
-    ReplyThread(ServerCommunicationSystem cs) {
+    ReplyThread(ServerCommunicationSystem cs, int index) {
+        super("Reply Thread " + index);
         this.cs = cs;
         this.replies = new LinkedBlockingQueue<TOMMessage>();
-        this.channels = new HashMap<>();
     }
     
     void send(TOMMessage msg) {
         
-        try {
-            queueLock.lock();
-            replies.put(msg);
-            notEmptyQueue.signalAll();
-            queueLock.unlock();
-        } catch (InterruptedException ex) {
-            Logger.getLogger(ReplyThread.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        replies.offer(msg);
     }
     
     public void run() {
 
+        List<TOMMessage> list = new ArrayList<>();
+        List<TOMMessage> batch = new ArrayList<>();
 
         while (true) {
 
             try {
                 
-                LinkedList<TOMMessage> list = new LinkedList<>();
-                
-                queueLock.lock();
-                while (replies.isEmpty()) notEmptyQueue.await(10, TimeUnit.MILLISECONDS);
+                list.add(replies.take());
                 replies.drainTo(list);
-                queueLock.unlock();
                 
                 for (TOMMessage msg : list) {
                     
-                    cs.getClientsConn().send(new int[] {msg.getSender()}, msg.reply, false);             
+                    // the reply is kept for retransmissions, which may serialize it concurrently
+                    TOMMessage reply;
+                    try {
+                        reply = (TOMMessage) msg.reply.clone();
+                    } catch (CloneNotSupportedException ex) {
+                        LoggerFactory.getLogger(this.getClass()).error("Failed to clone reply", ex);
+                        continue;
+                    }
+                    reply.destination = msg.getSender();
+                    batch.add(reply);
                 }
+                
+                cs.getClientsConn().sendReplies(batch);
+                
             } catch (InterruptedException ex) {
                 LoggerFactory.getLogger(this.getClass()).error("Could not retrieve reply from queue",ex);
+            } finally {
+                list.clear();
+                batch.clear();
             }
 
         }
 
     }
-}
\ No newline at end of file
+}
@@ -23,6 +23,7 @@ import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignedObject;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.clientsmanagement.ClientsManager;
@@ -41,14 +42,17 @@ import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.util.BatchBuilder;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.MetricsRegistry;
 import bftsmart.tom.util.TOMUtil;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -73,10 +77,12 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     private ServerCommunicationSystem communication; // Communication system between replicas
     //private OutOfContextMessageThread ot; // Thread which manages messages that do not belong to the current consensus
     private DeliveryThread dt; // Thread which delivers total ordered messages to the appication
+    private MetricsRegistry metrics; // Latency histograms of the phases of the protocol
     public StateManager stateManager = null; // object which deals with the state transfer protocol
 
     //thread pool used to paralelise verification of requests contained in a batch
     private ExecutorService verifierExecutor = null;
+    private static final int DESERIALIZATION_CHUNK = 64; // requests deserialized by each task of the verifier executor
     
     /**
      * Manage timers for pending requests
@@ -86,6 +92,10 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     //timeout for batch
     private Timer batchTimer = null;
     private long lastRequest = -1;
+
+    //target batch size and linger time, if they are adjusted at runtime
+    private BatchController batchController = null;
+    private volatile boolean lingering = false; // the TOM layer thread waits for the target batch size
     
     /**
      * Store requests received but still not ordered
@@ -108,8 +118,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     /* The locks and conditions used to wait upon creating a propose */
     private ReentrantLock leaderLock = new ReentrantLock();
     private Condition iAmLeader = leaderLock.newCondition();
-    private ReentrantLock messagesLock = new ReentrantLock();
-    private Condition haveMessages = messagesLock.newCondition();
+    private volatile boolean waitingForRequests = false; // the TOM layer thread is parked until requests arrive
     private ReentrantLock proposeLock = new ReentrantLock();
     private Condition canPropose = proposeLock.newCondition();
 
@@ -182,6 +191,9 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             logger.error("Failed to get signature engine",e);
         }
 
+        this.metrics = new MetricsRegistry(this.controller.getStaticConf().getProcessId(),
+                this.controller.getStaticConf().getMetricsDumpInterval());
+
         this.dt = new DeliveryThread(this, receiver, recoverer, this.controller); // Create delivery thread
         this.dt.start();
         this.stateManager = recoverer.getStateManager();
@@ -194,14 +206,21 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         this.syncher = new Synchronizer(this); // create synchronizer
         
-        if (controller.getStaticConf().getBatchTimeout() > -1) {
+        if (controller.getStaticConf().useAdaptiveBatching()) {
+
+            batchController = new BatchController(controller.getStaticConf().getMaxBatchSize(),
+                    controller.getStaticConf().getLatencySloLow(), controller.getStaticConf().getLatencySloHigh());
+            metrics.gauge(MetricsRegistry.BATCH_TARGET, batchController::getTargetBatchSize);
+            metrics.gauge(MetricsRegistry.BATCH_LINGER, () -> batchController.getLinger() / 1000);
+
+        } else if (controller.getStaticConf().getBatchTimeout() > -1) {
 
             batchTimer = new Timer();
             batchTimer.scheduleAtFixedRate(new TimerTask() {
                 @Override
                 public void run() {
 
-                    if (clientsManager.havePendingRequests() && 
+                    if (havePendingRequests() && 
                             (System.currentTimeMillis() - lastRequest) >= controller.getStaticConf().getBatchTimeout()) {
 
                         logger.debug("Signaling proposer thread!!");
@@ -302,6 +321,30 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         proposeLock.unlock();
     }
 
+    /**
+     * Marks the consensus following the last executed one as being executed,
+     * if no other consensus is running. Both the TOM layer thread and a pipelined
+     * acceptor start heights through this method, so a height is never started twice
+     *
+     * @return ID of the consensus that was started, or -1 if one is already in execution
+     */
+    public int claimNextConsensus() {
+        int execId = -1;
+        proposeLock.lock();
+        if (this.inExecution == -1) {
+            execId = this.lastExecuted + 1;
+            logger.debug("Modifying inExec from " + this.inExecution + " to " + execId);
+            this.inExecution = execId;
+        }
+        proposeLock.unlock();
+
+        if (execId != -1 && batchController != null) {
+            batchController.started(execId, countPendingRequests());
+        }
+
+        return execId;
+    }
+
     /**
      * This method blocks until the PaW algorithm is finished
      */
@@ -344,12 +387,23 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             logger.debug("Received TOMMessage from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " for session " + msg.getSession());
 
             if (clientsManager.requestReceived(msg, true, communication)) {
+
+                // the leader may already hold a quorum of VOTEs that was waiting for requests
+                if (chainProposer.hasStalledProposal()) {
+                    chainProposer.resumeStalledProposal();
+                }
+                chainProposer.requestsReceived();
                 
-                if(controller.getStaticConf().getBatchTimeout() == -1) {
+                if (batchController != null) {
+                    // while lingering, only wake up the TOM layer thread once the target is reached
+                    if (!lingering || countPendingRequests() >= batchController.getTargetBatchSize()) {
+                        haveMessages();
+                    }
+                } else if(controller.getStaticConf().getBatchTimeout() == -1) {
                     haveMessages();
                 } else {
                     
-                    if (clientsManager.countPendingRequests() < controller.getStaticConf().getMaxBatchSize()) {
+                    if (countPendingRequests() < controller.getStaticConf().getMaxBatchSize()) {
                         
                         lastRequest = System.currentTimeMillis();
                                                 
@@ -374,34 +428,102 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      */
     public byte[] createPropose(Decision dec) {
         // Retrieve a set of pending requests from the clients manager
-        RequestList pendingRequests = clientsManager.getPendingRequests();
-        
+        RequestList pendingRequests = clientsManager.getPendingRequests(getBatchSizeLimit());
+
+        setProposedRequests(dec, pendingRequests);
+
+        return makeBatch(pendingRequests);
+    }
+
+    /**
+     * Retrieves the maximum number of requests in the batches proposed, which
+     * is the target batch size if it is adjusted at runtime
+     */
+    public int getBatchSizeLimit() {
+        return batchController != null ? batchController.getTargetBatchSize()
+                : controller.getStaticConf().getMaxBatchSize();
+    }
+
+    /**
+     * Waits up to the linger time for the target batch size to be reached, or
+     * for the requests to be ordered by someone else
+     */
+    private void lingerForBatch() {
+        long deadline = System.nanoTime() + batchController.getLinger();
+        // set before checking the requests, so requestReceived() either sees it
+        // and wakes up this thread once the target is reached, or its requests are seen by the check
+        lingering = true;
+        long remaining;
+        while (doWork && havePendingRequests() && countPendingRequests() < batchController.getTargetBatchSize()
+                && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+        lingering = false;
+    }
+
+    /**
+     * Indicates if there are requests waiting to be ordered, including the
+     * ones already in the batch the leader prepared for the next height
+     */
+    private boolean havePendingRequests() {
+        return chainProposer.countPreparedRequests() > 0 || clientsManager.havePendingRequests();
+    }
+
+    /**
+     * Retrieves the number of requests waiting to be ordered, including the
+     * ones already in the batch the leader prepared for the next height
+     */
+    private int countPendingRequests() {
+        return chainProposer.countPreparedRequests() + clientsManager.countPendingRequests();
+    }
+
+    /**
+     * Records the requests proposed in a consensus
+     * @param dec the decision of the consensus
+     * @param pendingRequests the requests in the batch proposed
+     */
+    public void setProposedRequests(Decision dec, RequestList pendingRequests) {
         logger.debug("Number of pending requets to propose in consensus {}: {}", dec.getConsensusId(), pendingRequests.size());
 
         int numberOfMessages = pendingRequests.size(); // number of messages retrieved
-        int numberOfNonces = this.controller.getStaticConf().getNumberOfNonces(); // ammount of nonces to be generated
 
         //for benchmarking
-        if (dec.getConsensusId() > -1) { // if this is from the leader change, it doesnt matter
-            TOMMessage tmptom = dec.firstMessageProposed;
+        if (dec.getConsensusId() > -1 && !pendingRequests.isEmpty()) { // if this is from the leader change, it doesnt matter
             dec.firstMessageProposed = pendingRequests.getFirst();
-            if(tmptom != null) {
-                dec.firstMessageProposed.voteSentTime = tmptom.voteSentTime;
-                dec.firstMessageProposed.voteReceivedTime = tmptom.voteReceivedTime;
-                dec.firstMessageProposed.proposalSentTime = tmptom.proposalSentTime;
-                dec.firstMessageProposed.proposalReceivedTime = tmptom.proposalReceivedTime;
-                dec.firstMessageProposed.deliveryTime = tmptom.deliveryTime;
-                dec.firstMessageProposed.requestReplyTime = tmptom.requestReplyTime;
-            }
-//            dec.firstMessageProposed.consensusStartTime = System.nanoTime();
         }
         dec.batchSize = numberOfMessages;
 
         logger.debug("Creating a PROPOSE with " + numberOfMessages + " msgs");
+    }
+
+    /**
+     * Serializes a batch of requests to be proposed
+     * @param pendingRequests the requests in the batch
+     * @return the serialized batch
+     */
+    public byte[] makeBatch(RequestList pendingRequests) {
+        int numberOfNonces = this.controller.getStaticConf().getNumberOfNonces(); // ammount of nonces to be generated
 
         return bb.makeBatch(pendingRequests, numberOfNonces, System.currentTimeMillis(), controller.getStaticConf().getUseSignatures() == 1);
     }
 
+    /**
+     * @return an empty batch body, to which requests are serialized as they are added
+     */
+    public BatchBuilder.Body newBatchBody() {
+        return new BatchBuilder.Body(controller.getStaticConf().getUseSignatures() == 1);
+    }
+
+    /**
+     * Creates the batch of the requests already serialized in a body, with the
+     * current time as timestamp and fresh nonces
+     * @param body the serialized requests
+     * @return the serialized batch
+     */
+    public byte[] makeBatch(BatchBuilder.Body body) {
+        return bb.makeBatch(body, this.controller.getStaticConf().getNumberOfNonces(), System.currentTimeMillis());
+    }
+
     /**
      * This is the main code for this thread. It basically waits until this
      * replica becomes the leader, and when so, proposes a value to the other
@@ -430,18 +552,22 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             }
             */
 
-            // blocks until there are requests to be processed/ordered
-            messagesLock.lock();
-            if (!clientsManager.havePendingRequests() ||
+            // blocks until there are requests to be processed/ordered. The flag is
+            // set before checking the requests, so haveMessages() either sees it
+            // and unparks this thread, or its requests are seen by the check
+            waitingForRequests = true;
+            if (doWork && (!havePendingRequests() ||
                     (controller.getStaticConf().getBatchTimeout() > -1
-                    		&& clientsManager.countPendingRequests() < controller.getStaticConf().getMaxBatchSize())) {
+                    		&& countPendingRequests() < getBatchSizeLimit()))) {
 
                 logger.debug("Waiting for enough requests");
-                haveMessages.awaitUninterruptibly();
+                LockSupport.park(this);
                 logger.debug("Got enough requests");
             }
-            long receiveTime = System.nanoTime();
-            messagesLock.unlock();
+            if (doWork && batchController != null && batchController.getLinger() > 0) {
+                lingerForBatch();
+            }
+            waitingForRequests = false;
 
             if (!doWork) break;
 
@@ -450,14 +576,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             ///
 
             if (//(execManager.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
-                    (clientsManager.havePendingRequests()) && //there are messages to be ordered
-                    (getInExec() == -1)) { //there is no consensus in execution
-
-                // Sets the current consensus
-                int execId = getLastExec() + 1;
-                setInExec(execId);
-                execManager.getChainAcceptor().startConsensus(execId, receiveTime);
-                logger.debug("I'm a follower, I'm going to start cid {}", execId);
+                    (havePendingRequests())) { //there are messages to be ordered
+
+                // Sets the current consensus, unless a pipelined acceptor already started it
+                int execId = claimNextConsensus();
+                if (execId != -1) {
+                    execManager.getChainAcceptor().startConsensus(execId);
+                    logger.debug("I'm a follower, I'm going to start cid {}", execId);
+                }
             }
         }
         logger.info("TOMLayer stopped.");
@@ -472,7 +598,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     public void decided(Decision dec) {
         
         dec.setRegency(syncher.getLCManager().getLastReg());
-        dec.setLeader(execManager.getCurrentLeader());
+        dec.setLeader(execManager.getLeader(dec.getConsensusId()));
+
+        if (batchController != null) {
+            TOMMessage[] requests = dec.getDeserializedValue();
+            int size = requests != null ? requests.length : 0;
+            batchController.decided(dec.getConsensusId(), size, Math.max(0, countPendingRequests() - size));
+        }
         
         this.dt.delivery(dec); // Sends the decision to the delivery thread
     }
@@ -498,38 +630,60 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
             TOMMessage[] requests = null;
 
-            //deserialize the message
+            //deserialize the message, in parallel chunks
             //TODO: verify Timestamps and Nonces
-            requests = batchReader.deserialiseRequests(this.controller);
+            requests = batchReader.deserialiseRequests(this.controller, verifierExecutor, DESERIALIZATION_CHUNK);
             
-            if (addToClientManager) {
+            for (TOMMessage request : requests) {
+                if (request == null) {
+                    logger.warn("Proposed value contains a request that could not be deserialized");
+                    return null;
+                }
+            }
 
-                //use parallelization to validate the request
-                final CountDownLatch latch = new CountDownLatch(requests.length);
+            if (addToClientManager) {
 
+                //use parallelization to validate the requests: the requests of each
+                //stripe of the clients table are validated by one task, in the order of
+                //the batch, so the tasks never contend for the same client
+                List<List<TOMMessage>> partitions = new ArrayList<>(clientsManager.getNumShards());
+                for (int i = 0; i < clientsManager.getNumShards(); i++) {
+                    partitions.add(null);
+                }
                 for (TOMMessage request : requests) {
-                    
-                    verifierExecutor.submit(() -> {
-                        try {
-                            
-                            //notifies the client manager that this request was received and get
-                            //the result of its validation
-                            request.isValid = clientsManager.requestReceived(request, false);
-                            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
-                            
-                        }
-                        catch (Exception e) {
-                            
-                            logger.error("Error while validating requests", e);
-                            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
-                            
+                    int shard = clientsManager.getShard(request.getSender());
+                    if (partitions.get(shard) == null) {
+                        partitions.set(shard, new ArrayList<>());
+                    }
+                    partitions.get(shard).add(request);
+                }
+
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (List<TOMMessage> partition : partitions) {
+                    if (partition == null) continue;
+                    tasks.add(() -> {
+                        for (TOMMessage request : partition) {
+                            try {
+
+                                //notifies the client manager that this request was received and get
+                                //the result of its validation
+                                request.isValid = clientsManager.requestReceived(request, false);
+
+                            } catch (Exception e) {
+
+                                logger.error("Error while validating requests", e);
+                                request.isValid = false;
+                            }
                         }
-                        
-                        latch.countDown();
+                        return null;
                     });
                 }
-                
-                latch.await();
+
+                if (tasks.size() == 1) {
+                    tasks.get(0).call();
+                } else {
+                    verifierExecutor.invokeAll(tasks);
+                }
                 
                 for (TOMMessage request : requests) {
                     
@@ -547,14 +701,13 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         
         } catch (Exception e) {
             logger.error("Failed to check proposed value",e);
-            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
 
             return null;
         }
     }
 
     public void forwardRequestToLeader(TOMMessage request) {
-        int leaderId = execManager.getCurrentLeader();
+        int leaderId = execManager.getInstanceLeader(clientsManager.getPartition(request.getSender()));
         if (this.controller.isCurrentViewMember(leaderId)) {
             logger.debug("Forwarding " + request + " to " + leaderId);
             communication.send(new int[]{leaderId},
@@ -597,6 +750,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
              nextConsensus = getLastExec() + 1) {
             execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
         }
+        // with several chains, the VOTEs for the next block of each chain
+        // can be processed once the previous block of that chain is executed
+        int instances = execManager.getInstances();
+        for (int cid = getLastExec() + 1; instances > 1 && cid <= getLastExec() + instances; cid++) {
+            if (execManager.receivedOutOfContextVote(cid)) {
+                execManager.processOutOfContext(execManager.getConsensus(cid));
+            }
+        }
     }
 
     public StateManager getStateManager() {
@@ -607,20 +768,27 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         return syncher;
     }
    
-    private void haveMessages() {
-        messagesLock.lock();
-        haveMessages.signal();
-        messagesLock.unlock();
+    /**
+     * Wakes up the TOM layer thread if it is waiting for requests to order
+     */
+    public void haveMessages() {
+        if (waitingForRequests) {
+            LockSupport.unpark(this);
+        }
     }
     
     public DeliveryThread getDeliveryThread() {
         return dt;
     }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
     
     public void shutdown() {
         this.doWork = false;
         imAmTheLeader();
-        haveMessages();
+        LockSupport.unpark(this);
         setNoExec();
 
         if (this.requestsTimer != null) this.requestsTimer.shutdown();
@@ -629,7 +797,10 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             this.clientsManager.getPendingRequests().clear();
         }
         if (this.dt != null) this.dt.shutdown();
+        if (this.chainProposer != null) this.chainProposer.shutdown();
+        if (this.chainAcceptor != null) this.chainAcceptor.shutdown();
         if (this.communication != null) this.communication.shutdown();
+        if (this.metrics != null) this.metrics.shutdown();
  
     }
 }
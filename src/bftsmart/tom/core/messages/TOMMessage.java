@@ -78,11 +78,6 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 	public transient long decisionTime = 0; //time the decision is established
 	public transient long deliveryTime = 0; //time the request is delivered
 	public transient long executedTime = 0; //time the request is executed
-	public transient long proposalSentTime = 0;
-	public transient long proposalReceivedTime = 0;
-	public transient long voteSentTime = 0;
-	public transient long voteReceivedTime = 0;
-	public transient long requestReplyTime = 0;
 
 	//the reply associated with this message
 	public transient TOMMessage reply = null;
@@ -355,11 +350,6 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 
                     clone.setReplyServer(replyServer);
 
-                    clone.requestReplyTime = this.requestReplyTime;
-                    clone.proposalReceivedTime = this.proposalReceivedTime;
-                    clone.proposalSentTime = this.proposalSentTime;
-                    clone.voteSentTime = this.voteSentTime;
-                    clone.voteReceivedTime = this.voteReceivedTime;
                     clone.acceptSentTime = this.acceptSentTime;
                     clone.alreadyProposed = this.alreadyProposed;
                     clone.authenticated = this.authenticated;
@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Executables that implement this interface execute their unordered requests
+ * on a snapshot of the application state, concurrently with the ordered
+ * requests, if the replica has a pool of readers (system.numreaders).
+ *
+ * The delivery thread takes a snapshot when the replica starts, after each
+ * ordered batch and after a state is installed. The requests executed
+ * afterwards must not change a snapshot already taken, so it should be an
+ * immutable value or a copy-on-write structure. Each unordered request is
+ * executed on the latest snapshot taken.
+ *
+ * @param <S> the type of the snapshots
+ */
+public interface SnapshotReadable<S> extends Executable {
+
+    /**
+     * Takes a snapshot of the application state. Invoked by the delivery
+     * thread, while no ordered request is executing
+     *
+     * @return a view of the state that the following requests do not change
+     */
+    public S takeSnapshot();
+
+    /**
+     * Method called to execute an unordered request on a snapshot, by one of
+     * the reader threads
+     *
+     * @param snapshot the latest snapshot taken
+     * @param command the command issue by the client
+     * @param msgCtx information related with the command
+     *
+     * @return the reply for the request issued by the client
+     */
+    public byte[] executeOnSnapshot(S snapshot, byte[] command, MessageContext msgCtx);
+
+    public default TOMMessage executeOnSnapshot(S snapshot, int processID, int viewID, boolean isReplyHash,
+            byte[] command, MessageContext msgCtx) {
+
+        byte[] result = executeOnSnapshot(snapshot, command, msgCtx);
+
+        if (isReplyHash) result = TOMUtil.computeHash(result);
+
+        return getTOMMessage(processID, viewID, command, msgCtx, result);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import bftsmart.tom.util.MerkleTree;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * The state of a ChunkedState application at its last checkpoint: a copy of
+ * its chunks and the Merkle tree over them, which is the hash of the state. A
+ * new checkpoint only replaces and hashes the chunks changed since the
+ * previous one, and remembers them so that the disk log writes only them.
+ *
+ * Serialized state: number of chunks, followed for each chunk by its length
+ * and content. Changes: number of chunks, number of changed chunks, followed
+ * for each changed chunk by its index, length and content.
+ */
+public class ChunkedCheckpoint {
+
+    private byte[][] chunks;
+    private final MerkleTree tree;
+    private long size; // bytes in the chunks
+    private int[] changed = new int[0]; // chunks changed by the last checkpoint
+    private long changedSize = 0;
+
+    /**
+     * Creates the checkpoint of a whole state
+     * @param chunks the chunks of the state
+     */
+    public ChunkedCheckpoint(byte[][] chunks) {
+        this.chunks = chunks;
+        this.tree = new MerkleTree(hashEngine(), chunks);
+        for (byte[] chunk : chunks) {
+            size += chunk.length;
+        }
+    }
+
+    /**
+     * Replaces the chunks changed since the previous checkpoint
+     * @param count the number of chunks of the state
+     * @param indexes the indexes of the changed chunks
+     * @param data the new content of the changed chunks
+     */
+    public void update(int count, int[] indexes, byte[][] data) {
+        if (count != chunks.length) {
+            for (int i = count; i < chunks.length; i++) {
+                size -= chunks[i].length;
+            }
+            int oldCount = chunks.length;
+            chunks = Arrays.copyOf(chunks, count);
+            for (int i = oldCount; i < count; i++) {
+                chunks[i] = new byte[0];
+            }
+        }
+        changedSize = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            size += data[i].length - chunks[indexes[i]].length;
+            chunks[indexes[i]] = data[i];
+            changedSize += data[i].length;
+        }
+        tree.update(count, indexes, data);
+        changed = indexes;
+    }
+
+    /**
+     * @return the root of the Merkle tree over the chunks
+     */
+    public byte[] getRoot() {
+        return tree.getRoot();
+    }
+
+    /**
+     * @return the bytes in the chunks of the state
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the bytes in the chunks changed by the last checkpoint
+     */
+    public long getChangedSize() {
+        return changedSize;
+    }
+
+    /**
+     * @return the whole state, serialized
+     */
+    public byte[] serialize() {
+        return serialize(chunks);
+    }
+
+    /**
+     * Serializes a state made of chunks
+     * @param chunks the chunks of the state
+     * @return the state, serialized
+     */
+    public static byte[] serialize(byte[][] chunks) {
+        long size = 4;
+        for (byte[] chunk : chunks) {
+            size += 4 + chunk.length;
+        }
+        ByteBuffer bf = ByteBuffer.allocate((int) size);
+        bf.putInt(chunks.length);
+        for (byte[] chunk : chunks) {
+            bf.putInt(chunk.length);
+            bf.put(chunk);
+        }
+        return bf.array();
+    }
+
+    /**
+     * @return the chunks changed by the last checkpoint, serialized
+     */
+    public byte[] serializeChanges() {
+        ByteBuffer bf = ByteBuffer.allocate((int) (8 + 8L * changed.length + changedSize));
+        bf.putInt(chunks.length);
+        bf.putInt(changed.length);
+        for (int index : changed) {
+            bf.putInt(index);
+            bf.putInt(chunks[index].length);
+            bf.put(chunks[index]);
+        }
+        return bf.array();
+    }
+
+    /**
+     * Reads a serialized state
+     * @param state the state, as created by serialize()
+     * @return the chunks of the state
+     */
+    public static byte[][] deserialize(byte[] state) {
+        ByteBuffer bf = ByteBuffer.wrap(state);
+        byte[][] chunks = new byte[readLength(bf)][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new byte[readLength(bf)];
+            bf.get(chunks[i]);
+        }
+        return chunks;
+    }
+
+    /**
+     * Applies the changes of a checkpoint to the chunks of the previous one
+     * @param chunks the chunks of the previous checkpoint
+     * @param changes the changes, as created by serializeChanges()
+     * @return the chunks of the checkpoint
+     */
+    public static byte[][] applyChanges(byte[][] chunks, byte[] changes) {
+        ByteBuffer bf = ByteBuffer.wrap(changes);
+        int count = bf.getInt();
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid number of chunks " + count);
+        }
+        int oldCount = chunks.length;
+        chunks = Arrays.copyOf(chunks, count);
+        for (int i = oldCount; i < count; i++) {
+            chunks[i] = new byte[0];
+        }
+        int changed = readLength(bf);
+        for (int i = 0; i < changed; i++) {
+            int index = bf.getInt();
+            if (index < 0 || index >= count) {
+                throw new IllegalArgumentException("Invalid chunk index " + index);
+            }
+            chunks[index] = new byte[readLength(bf)];
+            bf.get(chunks[index]);
+        }
+        return chunks;
+    }
+
+    /**
+     * Computes the hash of a serialized state, the root of the Merkle tree
+     * over its chunks
+     * @param state the state, as created by serialize()
+     * @return the root of the tree
+     */
+    public static byte[] root(byte[] state) {
+        return MerkleTree.root(hashEngine(), deserialize(state));
+    }
+
+    private static int readLength(ByteBuffer bf) {
+        int length = bf.getInt();
+        if (length < 0 || length > bf.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length + " in chunked state");
+        }
+        return length;
+    }
+
+    private static MessageDigest hashEngine() {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to create hash engine", e);
+        }
+    }
+}
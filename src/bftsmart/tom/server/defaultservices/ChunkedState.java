@@ -0,0 +1,53 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+/**
+ * Implemented by the applications extending DefaultRecoverable whose state is
+ * split in chunks, such as pages or buckets of keys. Their checkpoints only
+ * copy, hash and write the chunks changed since the previous checkpoint, and
+ * the hash of their state is the root of a Merkle tree over the chunks.
+ * getSnapshot() and installSnapshot() are not used for these applications.
+ */
+public interface ChunkedState {
+
+    /**
+     * @return the number of chunks of the state. Chunks added since the
+     * previous checkpoint must be reported as changed
+     */
+    public int getChunkCount();
+
+    /**
+     * Returns the chunks changed since the previous call, and forgets them
+     * @return the indexes of the changed chunks
+     */
+    public int[] getChangedChunks();
+
+    /**
+     * Returns a chunk of the state, as an array that is not changed by the
+     * requests executed afterwards
+     * @param index the index of the chunk
+     * @return the serialized chunk
+     */
+    public byte[] getChunk(int index);
+
+    /**
+     * Replaces the state with the chunks obtained from the state transfer
+     * protocol or from disk. No chunk is changed after it
+     * @param chunks the serialized chunks
+     */
+    public void installChunks(byte[][] chunks);
+}
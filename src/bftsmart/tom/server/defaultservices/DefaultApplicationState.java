@@ -44,6 +44,7 @@ public class DefaultApplicationState implements ApplicationState {
     private CommandsInfo[] messageBatches; // batches received since the last checkpoint.
     private int lastCheckpointCID; // Consensus ID for the last checkpoint
     private byte[] logHash;
+    private boolean chunked; // the state is made of chunks, and its hash is the root of their Merkle tree
     
     private int pid;
 
@@ -104,6 +105,18 @@ public class DefaultApplicationState implements ApplicationState {
         return hasState;
     }
 
+    /**
+     * Indicates if the state is the serialized chunks of a ChunkedState application
+     * @return true if the hash of the state is the root of the Merkle tree over its chunks
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
 
     /**
      * Retrieves the consensus ID for the last messages batch delivered to the application
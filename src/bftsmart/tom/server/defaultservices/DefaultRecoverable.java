@@ -21,6 +21,10 @@ package bftsmart.tom.server.defaultservices;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.reconfiguration.ServerViewController;
@@ -57,6 +61,10 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private MessageDigest md;
     private StateLog log;
     private StateManager stateManager;
+    private boolean asyncCheckpoint;
+    private ExecutorService checkpointExecutor; // takes the checkpoints of the disk log in the background
+    private volatile Future<?> pendingCheckpoint;
+    private ChunkedCheckpoint chunkedCheckpoint; // the state at the last checkpoint, for ChunkedState applications
 
     /**
      * Constructor
@@ -88,6 +96,9 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         if (checkpointIndex == -1) {
 
+            // the batches are written to disk while they are executed
+            saveCommands(commands, msgCtxs);
+
             if (!noop) {
 
                 stateLock.lock();
@@ -95,8 +106,6 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 stateLock.unlock();
 
             }
-
-            saveCommands(commands, msgCtxs);
         } else {
             // there is a replica supposed to take the checkpoint. In this case, the commands
             // must be executed in two steps. First the batch of commands containing commands
@@ -129,11 +138,25 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 stateLock.unlock();
             }
 
-            logger.info("Performing checkpoint for consensus " + cid);
-            stateLock.lock();
-            byte[] snapshot = getSnapshot();
-            stateLock.unlock();
-            saveState(snapshot, cid);
+            if (chunkedCheckpoint != null) {
+                logger.info("Performing checkpoint for consensus " + cid + " with the changed chunks");
+                saveChangedChunks(cid);
+            } else if (asyncCheckpoint) {
+                // the batches up to the checkpoint are kept in the log until the checkpoint is on disk
+                saveCommands(firstHalf, firstHalfMsgCtx);
+
+                logger.info("Performing checkpoint for consensus " + cid + " in the background");
+                stateLock.lock();
+                SnapshotHandle snapshot = getSnapshotHandle();
+                stateLock.unlock();
+                saveStateInBackground(snapshot, cid);
+            } else {
+                logger.info("Performing checkpoint for consensus " + cid);
+                stateLock.lock();
+                byte[] snapshot = getSnapshot();
+                stateLock.unlock();
+                saveState(snapshot, cid);
+            }
 
             System.arraycopy(firstHalfReplies, 0, replies, 0, firstHalfReplies.length);
 
@@ -156,6 +179,11 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         }
 
+        // the replies are only sent once the batches are durable
+        if (!log.sync()) {
+            logger.error("Some batches could not be written to the log, they are lost if this replica recovers from it");
+        }
+
         if (cids != null && cids.length > 0) {
             getStateManager().setLastCID(cids[cids.length - 1]);
         }
@@ -192,6 +220,87 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         logger.debug("(TOMLayer.saveState) Finished saving state of CID " + lastCID);
     }
 
+    /**
+     * Takes the checkpoint of a ChunkedState application, copying and hashing
+     * only the chunks changed since the previous checkpoint
+     *
+     * @param lastCID the consensus ID of the checkpoint
+     */
+    private void saveChangedChunks(int lastCID) {
+
+        ChunkedState app = (ChunkedState) this;
+        stateLock.lock();
+        int count = app.getChunkCount();
+        int[] changed = app.getChangedChunks();
+        byte[][] chunks = new byte[changed.length][];
+        for (int i = 0; i < changed.length; i++) {
+            chunks[i] = app.getChunk(changed[i]);
+        }
+        stateLock.unlock();
+
+        StateLog thisLog = getLog();
+
+        logLock.lock();
+
+        logger.debug("Saving " + changed.length + " of " + count + " chunks of the state of CID " + lastCID);
+
+        chunkedCheckpoint.update(count, changed, chunks);
+        thisLog.newCheckpoint(chunkedCheckpoint, lastCID);
+        thisLog.setLastCID(lastCID);
+        thisLog.setLastCheckpointCID(lastCID);
+
+        logLock.unlock();
+    }
+
+    /**
+     * Copies all the chunks of the state of a ChunkedState application
+     *
+     * @return the checkpoint of the whole state
+     */
+    private ChunkedCheckpoint readChunks() {
+        ChunkedState app = (ChunkedState) this;
+        stateLock.lock();
+        app.getChangedChunks(); // all the chunks are copied below
+        byte[][] chunks = new byte[app.getChunkCount()][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = app.getChunk(i);
+        }
+        stateLock.unlock();
+        return new ChunkedCheckpoint(chunks);
+    }
+
+    /**
+     * Serializes, hashes and writes a checkpoint in the checkpoint thread. At
+     * most one checkpoint is pending, so a checkpoint slower than the
+     * checkpoint period makes the delivery thread wait instead of piling up
+     * snapshots
+     *
+     * @param snapshot the view of the state at the checkpoint
+     * @param lastCID the consensus ID of the checkpoint
+     */
+    private void saveStateInBackground(SnapshotHandle snapshot, int lastCID) {
+
+        DiskStateLog thisLog = (DiskStateLog) getLog();
+
+        waitForCheckpoint();
+        pendingCheckpoint = checkpointExecutor.submit(() -> {
+            byte[] state = snapshot.serialize();
+            thisLog.newBackgroundCheckpoint(state, computeHash(state), lastCID);
+        });
+    }
+
+    private void waitForCheckpoint() {
+        Future<?> checkpoint = pendingCheckpoint;
+        if (checkpoint != null) {
+            try {
+                checkpoint.get();
+            } catch (InterruptedException | ExecutionException e) {
+                logger.error("Failed to take checkpoint", e);
+            }
+            pendingCheckpoint = null;
+        }
+    }
+
     /**
      * Write commands to log file
      *
@@ -259,8 +368,16 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             if (state.getSerializedState() != null) {
                 logger.info("The state is not null. Will install it");
                 initLog();
+                waitForCheckpoint(); // the installed checkpoint replaces the pending one
                 log.update(state);
-                installSnapshot(state.getSerializedState());
+                if (this instanceof ChunkedState) {
+                    byte[][] chunks = ChunkedCheckpoint.deserialize(state.getSerializedState());
+                    ((ChunkedState) this).installChunks(chunks);
+                    chunkedCheckpoint = new ChunkedCheckpoint(chunks);
+                    log.setChunkedCheckpoint(chunkedCheckpoint);
+                } else {
+                    installSnapshot(state.getSerializedState());
+                }
             }
 
             for (int cid = lastCheckpointCID + 1; cid <= lastCID; cid++) {
@@ -378,13 +495,33 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private void initLog() {
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
-            byte[] state = getSnapshot();
+            byte[] state = null;
+            byte[] stateHash;
+            if (this instanceof ChunkedState) {
+                chunkedCheckpoint = readChunks();
+                stateHash = chunkedCheckpoint.getRoot();
+            } else {
+                state = getSnapshot();
+                stateHash = computeHash(state);
+            }
             if (config.isToLog() && config.logToDisk()) {
                 int replicaId = config.getProcessId();
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, stateHash, isToLog, syncLog, syncCkp,
+                        config.getLogSegmentSize());
+                log.setChunkedCheckpoint(chunkedCheckpoint);
+
+                // the checkpoints of a ChunkedState application only copy its changed chunks
+                asyncCheckpoint = config.isToCheckpointAsync() && chunkedCheckpoint == null;
+                if (asyncCheckpoint) {
+                    checkpointExecutor = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, "Checkpoint");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -392,7 +529,8 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                     getStateManager().setLastCID(storedState.getLastCID());
                 }
             } else {
-                log = new StateLog(this.config.getProcessId(), checkpointPeriod, state, computeHash(state));
+                log = new StateLog(this.config.getProcessId(), checkpointPeriod, state, stateHash);
+                log.setChunkedCheckpoint(chunkedCheckpoint);
             }
         }
     }
@@ -441,6 +579,20 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
      * @return A serialized snapshot of the application state
      */
     public abstract byte[] getSnapshot();
+
+    /**
+     * Returns a view of the application state that is not changed by the
+     * requests executed afterwards, serialized by the checkpoint thread when
+     * checkpoints are taken in the background. Applications should return an
+     * immutable or copy-on-write copy of their state, as the default
+     * implementation serializes the state with getSnapshot() on the delivery
+     * thread
+     * @return A view of the application state
+     */
+    public SnapshotHandle getSnapshotHandle() {
+        byte[] snapshot = getSnapshot();
+        return () -> snapshot;
+    }
     
     /**
      * Execute a batch of ordered requests
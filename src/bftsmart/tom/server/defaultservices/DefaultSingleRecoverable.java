@@ -101,6 +101,9 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
 	            saveState(snapshot, cid);
 	        } else {
 	            saveCommands(commands.toArray(new byte[0][]), msgContexts.toArray(new MessageContext[0]));
+	            if (!log.sync()) {
+	                logger.error("Some batches could not be written to the log, they are lost if this replica recovers from it");
+	            }
 	        }
 			getStateManager().setLastCID(cid);
 	        commands = new ArrayList<>();
@@ -255,7 +258,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp, config.getLogSegmentSize());
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -285,7 +288,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             	boolean isToLog = config.isToLog();
             	boolean syncLog = config.isToWriteSyncLog();
             	boolean syncCkp = config.isToWriteSyncCkp();
-            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp, config.getLogSegmentSize());
             } else
             	log = new StateLog(controller.getStaticConf().getProcessId(), checkpointPeriod, state, computeHash(state));
     	}
@@ -23,13 +23,24 @@ import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.tom.MessageContext;
 
+/**
+ * Keeps the log of the batches executed since the last checkpoint on disk.
+ * The batches are serialized and written by an appender thread: the batches
+ * added while it writes the previous ones are written together, with a single
+ * write and, if the log is synchronous, a single flush to disk. The delivery
+ * thread waits in sync() for the batches it added to be durable.
+ */
 public class DiskStateLog extends StateLog {
 
 	private int id;
@@ -37,41 +48,66 @@ public class DiskStateLog extends StateLog {
 			.getProperty("file.separator"));
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
+	private static final String DELTA_EXTENSION = ".dlt";
 
-	private RandomAccessFile log;
+	private SegmentedLog log;
 	private boolean syncLog;
-	private String logPath;
+	private int segmentSize;
 	private String lastCkpPath;
 	private boolean syncCkp;
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
-	private Map<Integer, Long> logPointers;
+	private List<String> deltaPaths = new ArrayList<>(); // the checkpoints written as changes to the last full one
+	private long deltaSize = 0;
+
+	private LinkedBlockingQueue<PendingBatch> appendQueue = new LinkedBlockingQueue<>();
+	private ReentrantLock durableLock = new ReentrantLock();
+	private Condition durableCond = durableLock.newCondition();
+	private volatile long added = 0; // batches added to the log, only updated by the delivery thread
+	private long written = 0; // batches written to disk, and flushed if the log is synchronous
+	private long failed = 0; // batches that could not be written since the log file was created
+
+	/**
+	 * A batch waiting to be written by the appender thread
+	 */
+	private static class PendingBatch {
+		final CommandsInfo commandsInfo;
+		final int consensusId;
+
+		PendingBatch(CommandsInfo commandsInfo, int consensusId) {
+			this.commandsInfo = commandsInfo;
+			this.consensusId = consensusId;
+		}
+	}
 	
 	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
-			boolean isToLog, boolean syncLog, boolean syncCkp) {
+			boolean isToLog, boolean syncLog, boolean syncCkp, int segmentSize) {
 		super(id, initialState, initialHash);
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
 		this.syncCkp = syncCkp;
-		this.logPointers = new HashMap<>();
+		this.segmentSize = segmentSize;
                 
                 File directory = new File(DEFAULT_DIR);
                 if (!directory.exists()) directory.mkdir();
+
+		if (isToLog) {
+			Thread appender = new Thread(this::appendBatches, "Log appender");
+			appender.setDaemon(true);
+			appender.start();
+		}
 	}
 
 	private void createLogFile() {
-		logPath = DEFAULT_DIR + String.valueOf(id) + "."
-				+ System.currentTimeMillis() + ".log";
-		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-			// PreAllocation
-			/*
-			 * log.setLength(TEN_MB); log.seek(0);
-			 */
-		} catch (FileNotFoundException e) {
-			logger.error("Failed to create log file",e);
-		}
+		// a synchronous log is flushed once per group of batches, instead of on every write
+		log = SegmentedLog.create(DEFAULT_DIR, id, segmentSize, syncLog);
+
+		// the batches that could not be written are covered by the checkpoint that replaced the log
+		durableLock.lock();
+		written += failed;
+		failed = 0;
+		durableLock.unlock();
 	}
 
 	/**
@@ -95,56 +131,95 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		added++;
+		appendQueue.add(new PendingBatch(commandsInfo, consensusId));
+	}
+
+	/**
+	 * Waits until the batches added to the log were written to disk, and
+	 * flushed if the log is synchronous
+	 * 
+	 * @return false if some batch added since the log file was created could
+	 * not be written
+	 */
+	@Override
+	public boolean sync() {
+		if (!isToLog) {
+			return true;
+		}
+		durableLock.lock();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
+			while (written + failed < added) {
+				durableCond.awaitUninterruptibly();
+			}
+			return failed == 0;
+		} finally {
+			durableLock.unlock();
+		}
+	}
 
-			byte[] batchBytes = bos.toByteArray();
+	/**
+	 * Writes the batches added to the log, in groups, run by the appender
+	 * thread
+	 */
+	private void appendBatches() {
+		List<PendingBatch> group = new ArrayList<>();
+		List<byte[]> serialized = new ArrayList<>();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		while (true) {
+			try {
+				group.add(appendQueue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			appendQueue.drainTo(group);
 
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			logger.error("Failed to write command to disk",e);
-	    }
+			int[] cids = new int[group.size()];
+			boolean ok = false;
+			try {
+				for (int i = 0; i < cids.length; i++) {
+					bos.reset();
+					ObjectOutputStream oos = new ObjectOutputStream(bos);
+					oos.writeObject(group.get(i).commandsInfo);
+					oos.flush();
+					serialized.add(bos.toByteArray());
+					cids[i] = group.get(i).consensusId;
+				}
+
+				log.append(serialized, cids);
+				logger.debug("Wrote {} batches to the log", group.size());
+				ok = true;
+			} catch (IOException e) {
+				logger.error("Failed to write command to disk",e);
+			}
+
+			durableLock.lock();
+			if (ok) {
+				written += group.size();
+			} else {
+				failed += group.size();
+			}
+			durableCond.signalAll();
+			durableLock.unlock();
+
+			group.clear();
+			serialized.clear();
+		}
 	}
 
         @Override
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
 		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".tmp";
+		sync(); // the log file is replaced below
 		try {
 			checkpointLock.lock();
-			RandomAccessFile ckp = new RandomAccessFile(ckpPath,
-					(syncCkp ? "rwd" : "rw"));
-
-			ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
-					+ 4 * INT_BYTE_SIZE);
-			bf.putInt(state.length);
-			bf.put(state);
-			bf.putInt(stateHash.length);
-			bf.put(stateHash);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-
-			byte[] ckpState = bf.array();
-			
-			ckp.write(ckpState);
-			ckp.close();
+			writeCkp(ckpPath, state, stateHash, consensusId, syncCkp);
 
 			if (isToLog)
 				deleteLogFile();
 			deleteLastCkp();
+			deleteDeltas();
 			renameCkp(ckpPath);
 			if (isToLog)
 				createLogFile();
@@ -160,6 +235,117 @@ public class DiskStateLog extends StateLog {
 		}
 	}
 
+	/**
+	 * Stores the checkpoint of a ChunkedState application. Only the chunks
+	 * changed since the previous checkpoint are written, to a delta file applied
+	 * over the last full checkpoint when the replica recovers. The whole state
+	 * is written again once the deltas would be larger than the state
+	 * 
+	 * @param checkpoint the chunks and Merkle tree of the state
+	 * @param consensusId the consensus ID of the checkpoint
+	 */
+	@Override
+	public void newCheckpoint(ChunkedCheckpoint checkpoint, int consensusId) {
+		if (lastCkpPath == null || deltaSize + checkpoint.getChangedSize() > checkpoint.getSize()) {
+			newCheckpoint(checkpoint.serialize(), checkpoint.getRoot(), consensusId);
+			setChunkedCheckpoint(checkpoint);
+			return;
+		}
+
+		String deltaPath = DEFAULT_DIR + String.valueOf(id) + "."
+				+ System.currentTimeMillis() + ".tmp";
+		sync(); // the log file is replaced below
+		try {
+			checkpointLock.lock();
+			byte[] changes = checkpoint.serializeChanges();
+			byte[] root = checkpoint.getRoot();
+			ByteBuffer bf = ByteBuffer.allocate(2 * INT_BYTE_SIZE + root.length + changes.length);
+			bf.putInt(consensusId);
+			bf.putInt(root.length);
+			bf.put(root);
+			bf.put(changes);
+
+			RandomAccessFile delta = new RandomAccessFile(deltaPath,
+					(syncCkp ? "rwd" : "rw"));
+			delta.write(bf.array());
+			delta.close();
+
+			String finalDeltaPath = deltaPath.replace(".tmp", DELTA_EXTENSION);
+			new File(deltaPath).renameTo(new File(finalDeltaPath));
+			deltaPaths.add(finalDeltaPath);
+			deltaSize += changes.length;
+			if (isToLog) {
+				deleteLogFile();
+				createLogFile();
+			}
+			setChunkedCheckpoint(checkpoint);
+		} catch (IOException e) {
+			logger.error("Failed to write checkpoint to disk",e);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	private void deleteDeltas() {
+		for (String deltaPath : deltaPaths)
+			new File(deltaPath).delete();
+		deltaPaths.clear();
+		deltaSize = 0;
+	}
+
+	/**
+	 * Stores a checkpoint taken while the batches that follow it kept being
+	 * added to the log. Instead of being replaced, the log is truncated up to
+	 * the checkpoint, and only once the checkpoint is on disk. Invoked by the
+	 * checkpoint thread
+	 * 
+	 * @param state the serialized state at the checkpoint
+	 * @param stateHash the hash of the state
+	 * @param consensusId the consensus ID of the checkpoint
+	 */
+	public void newBackgroundCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
+		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
+				+ System.currentTimeMillis() + ".tmp";
+		try {
+			writeCkp(ckpPath, state, stateHash, consensusId, true);
+		} catch (IOException e) {
+			logger.error("Failed to write checkpoint to disk",e);
+			return;
+		}
+
+		checkpointLock.lock();
+		try {
+			deleteLastCkp();
+			renameCkp(ckpPath);
+			if (log != null)
+				log.truncate(consensusId);
+			setLastCheckpointCID(consensusId);
+		} finally {
+			checkpointLock.unlock();
+		}
+		logger.debug("Checkpoint of consensus " + consensusId + " is durable");
+	}
+
+	private void writeCkp(String ckpPath, byte[] state, byte[] stateHash, int consensusId, boolean sync)
+			throws IOException {
+		RandomAccessFile ckp = new RandomAccessFile(ckpPath,
+				(sync ? "rwd" : "rw"));
+
+		ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
+				+ 4 * INT_BYTE_SIZE);
+		bf.putInt(state.length);
+		bf.put(state);
+		bf.putInt(stateHash.length);
+		bf.put(stateHash);
+		bf.putInt(EOF);
+		bf.putInt(consensusId);
+
+		byte[] ckpState = bf.array();
+		
+		ckp.write(ckpState);
+		ckp.close();
+	}
+
 	private void renameCkp(String ckpPath) {
 		String finalCkpPath = ckpPath.replace(".tmp", ".ckp");
 		new File(ckpPath).renameTo(new File(finalCkpPath));
@@ -172,13 +358,8 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void deleteLogFile() {
-		try {
-			if(log != null)
-				log.close();
-			new File(logPath).delete();
-		} catch (IOException e) {
-			logger.error("Failed to delete log file",e);
-		}
+		if(log != null)
+			log.delete();
 	}
 
 	/**
@@ -190,6 +371,17 @@ public class DiskStateLog extends StateLog {
 	 */
         @Override
 	public DefaultApplicationState getApplicationState(int cid, boolean sendState) {
+		// a checkpoint taken in the background replaces the checkpoint and
+		// truncates the log at once
+		checkpointLock.lock();
+		try {
+			return readApplicationState(cid, sendState);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	private DefaultApplicationState readApplicationState(int cid, boolean sendState) {
 //		readingState = true;
 		CommandsInfo[] batches = null;
 
@@ -202,29 +394,42 @@ public class DiskStateLog extends StateLog {
 
 			int size = cid - lastCheckpointCID;
 
+			if (!sync()) { // the batches are read back from the log file
+				logger.warn("The log is missing batches that could not be written to disk");
+				return null;
+			}
+
 			FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 
 //			if (size > 0 && sendState) {
 			if (size > 0) {
-				CommandsInfo[] recoveredBatches = fr.getLogState(size, logPath);
-
-				batches = new CommandsInfo[size];
-
-				for (int i = 0; i < size; i++)
-					batches[i] = recoveredBatches[i];
+				batches = log == null ? null : log.read(lastCheckpointCID + 1, size);
+				if (batches == null) {
+					logger.warn("The log does not have the batches from CID " + (lastCheckpointCID + 1) + " to " + cid);
+					return null;
+				}
 			}
 			
-			checkpointLock.lock();
-			byte[] ckpState = fr.getCkpState(lastCkpPath);
-			byte[] ckpStateHash = fr.getCkpStateHash();
-			checkpointLock.unlock();
+			byte[] ckpState;
+			byte[] ckpStateHash;
+			ChunkedCheckpoint chunked = getChunkedCheckpoint();
+			if (chunked != null) {
+				// the checkpoint file does not have the chunks written to delta files
+				ckpState = sendState ? chunked.serialize() : null;
+				ckpStateHash = chunked.getRoot();
+			} else {
+				ckpState = fr.getCkpState(lastCkpPath);
+				ckpStateHash = fr.getCkpStateHash();
+			}
 
 			logger.info("FINISHED READING STATE");
 //			readingState = false;
 
 //			return new DefaultApplicationState((sendState ? batches : null), lastCheckpointCID,
-			return new DefaultApplicationState(batches, lastCheckpointCID,
+			DefaultApplicationState state = new DefaultApplicationState(batches, lastCheckpointCID,
 					cid, (sendState ? ckpState : null), ckpStateHash, this.id);
+			state.setChunked(chunked != null);
+			return state;
 
 		}
 		return null;
@@ -233,26 +438,11 @@ public class DiskStateLog extends StateLog {
 	public void transferApplicationState(SocketChannel sChannel, int cid) {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		fr.transferCkpState(sChannel, lastCkpPath);
-//		int lastCheckpointCID = getLastCheckpointCID();
-//		int lastCID = getLastCID();
-//		if (cid >= lastCheckpointCID && cid <= lastCID) {
-//			int size = cid - lastCheckpointCID;
-//			fr.transferLog(sChannel, size);
-//		}
 	}
 
 	public void setLastCID(int cid, int checkpointPeriod, int checkpointPortion) {
+		// the log is read by consensus ID, so there are no file pointers to keep
 		super.setLastCID(cid);
-		// save the file pointer to retrieve log information later
-		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
-			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
-		}
 	}
 
 	/**
@@ -265,6 +455,12 @@ public class DiskStateLog extends StateLog {
 	 */
         @Override
 	public void update(DefaultApplicationState transState) {
+		if (lastCkpPath != null && transState.getLastCheckpointCID() == getLastCheckpointCID()) {
+			// the checkpoint is already on disk, as when the durable state is
+			// installed, so it and the log that follows it are kept
+			return;
+		}
+		setChunkedCheckpoint(null);
 		newCheckpoint(transState.getState(), transState.getStateHash(), transState.getLastCheckpointCID());
 		setLastCheckpointCID(transState.getLastCheckpointCID());
 	}
@@ -272,18 +468,76 @@ public class DiskStateLog extends StateLog {
 	protected ApplicationState loadDurableState() {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		lastCkpPath = fr.getLatestFile(".ckp");
-		logPath = fr.getLatestFile(".log");
 		byte[] checkpoint = null;
 		if(lastCkpPath != null)
 			checkpoint = fr.getCkpState(lastCkpPath);
 		CommandsInfo[] log = null;
-		if(logPath !=null)
-			log = fr.getLogState(0, logPath);
+		int logLastConsensusId = -1;
 		int ckpLastConsensusId = fr.getCkpLastConsensusId();
-		int logLastConsensusId = fr.getLogLastConsensusId();
+		byte[] ckpStateHash = fr.getCkpStateHash();
+
+		// the checkpoints of a ChunkedState application written as changes to the full one
+		TreeMap<Integer, File> deltas = new TreeMap<>();
+		File[] deltaFiles = new File(DEFAULT_DIR).listFiles((d, name) -> name.startsWith(id + ".") && name.endsWith(DELTA_EXTENSION));
+		for (File f : deltaFiles == null ? new File[0] : deltaFiles) {
+			try (RandomAccessFile delta = new RandomAccessFile(f, "r")) {
+				deltas.put(delta.readInt(), f);
+			} catch (IOException e) {
+				logger.error("Failed to read checkpoint delta " + f, e);
+			}
+		}
+		byte[][] chunks = null;
+		boolean broken = false;
+		for (File f : deltas.values()) {
+			try {
+				ByteBuffer bf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+				int deltaConsensusId = bf.getInt();
+				if (checkpoint == null || deltaConsensusId <= ckpLastConsensusId || broken) {
+					// written before the full checkpoint, or after a delta that could not be read
+					f.delete();
+					continue;
+				}
+				byte[] root = new byte[bf.getInt()];
+				bf.get(root);
+				byte[] changes = new byte[bf.remaining()];
+				bf.get(changes);
+				chunks = ChunkedCheckpoint.applyChanges(chunks == null ? ChunkedCheckpoint.deserialize(checkpoint) : chunks,
+						changes);
+				ckpLastConsensusId = deltaConsensusId;
+				ckpStateHash = root;
+				deltaPaths.add(f.getPath());
+				deltaSize += changes.length;
+			} catch (IOException | RuntimeException e) {
+				logger.error("Failed to read checkpoint delta " + f, e);
+				f.delete();
+				broken = true;
+			}
+		}
+		if (chunks != null) {
+			checkpoint = ChunkedCheckpoint.serialize(chunks);
+			logger.info("Applied " + deltaPaths.size() + " checkpoint deltas, up to consensus " + ckpLastConsensusId);
+		}
+
+		if (isToLog) {
+			fr.warnLegacyLog();
+			// the recovered log is kept, and the next batches are appended to it
+			this.log = SegmentedLog.recover(DEFAULT_DIR, id, segmentSize, syncLog);
+			if (this.log != null) {
+				logLastConsensusId = this.log.getLastCID();
+				// the log may still hold batches older than a checkpoint taken in the background
+				if (logLastConsensusId > ckpLastConsensusId) {
+					log = this.log.read(ckpLastConsensusId + 1, logLastConsensusId - ckpLastConsensusId);
+				}
+			}
+		}
+		if (log == null) {
+			// there are no batches after the checkpoint
+			logLastConsensusId = ckpLastConsensusId;
+		}
 		logger.info("log last consensus id: " + logLastConsensusId);
-		ApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId,
-				logLastConsensusId, checkpoint, fr.getCkpStateHash(), this.id);
+		DefaultApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId,
+				logLastConsensusId, checkpoint, ckpStateHash, this.id);
+		state.setChunked(chunks != null);
 		if(logLastConsensusId > ckpLastConsensusId) {
 			super.setLastCID(logLastConsensusId);
 		} else
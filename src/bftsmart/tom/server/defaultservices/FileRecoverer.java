@@ -15,15 +15,12 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.slf4j.Logger;
@@ -35,7 +32,6 @@ public class FileRecoverer {
 
 	private byte[] ckpHash;
 	private int ckpLastConsensusId;
-	private int logLastConsensusId;
 	
 	private int replicaId;
 	private String defaultDir;
@@ -44,66 +40,8 @@ public class FileRecoverer {
 		this.replicaId = replicaId;
 		this.defaultDir = defaultDir;
 		ckpLastConsensusId = -1;
-		logLastConsensusId = -1;
 	}
 	
-	/**
-	 * Reads all log messages from the last log file created
-	 * @return an array with batches of messages executed for each consensus
-	 */
-//	public CommandsInfo[] getLogState() {
-//		String lastLogFilename = getLatestFile(".log");
-//		if(lastLogFilename != null)
-//			return getLogState(0, lastLogFilename);
-//		return null;
-//	}
-
-	public CommandsInfo[] getLogState(int index, String logPath) {
-		RandomAccessFile log = null;
-
-		logger.info("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-
-			CommandsInfo[] logState = recoverLogState(log, index);
-
-			try {
-				log.close();
-			} catch (IOException e) {
-				logger.error("Failed to get state log",e);
-			}
-
-			return logState;
-		}
-
-		return null;
-	}
-
-	/**
-	 * Recover portions of the log for collaborative state transfer.
-	 * @param start the index for which the commands start to be collected
-	 * @param number the number of commands retrieved
-	 * @return The commands for the period selected
-	 */
-	public CommandsInfo[] getLogState(long pointer, int startOffset,  int number, String logPath) {
-		RandomAccessFile log = null;
-
-		logger.info("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-
-			CommandsInfo[] logState = recoverLogState(log, pointer, startOffset, number);
-
-			try {
-				log.close();
-			} catch (IOException e) {
-				logger.error("Failed to get state log",e);
-			}
-
-			return logState;
-		}
-
-		return null;
-	}
-
 	public byte[] getCkpState(String ckpPath) {
 		RandomAccessFile ckp = null;
 
@@ -195,38 +133,6 @@ public class FileRecoverer {
 		return ckpState;
 	}
 
-	public void transferLog(SocketChannel sChannel, int index, String logPath) {
-		RandomAccessFile log = null;
-
-		logger.info("GETTING STATE FROM LOG " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-			transferLog(log, sChannel, index);
-		}
-	}
-
-	private void transferLog(RandomAccessFile logFile, SocketChannel sChannel, int index) {
-		try {
-			long totalBytes = logFile.length();
-			logger.info("Called transferLog." + totalBytes + " " + (sChannel == null));
-			FileChannel fileChannel = logFile.getChannel();
-			long bytesTransfered = 0;
-			while(bytesTransfered < totalBytes) {
-				long bufferSize = 65536;
-				if(totalBytes  - bytesTransfered < bufferSize) {
-					bufferSize = (int)(totalBytes - bytesTransfered);
-					if(bufferSize <= 0)
-						bufferSize = (int)totalBytes;
-				}
-				long bytesSent = fileChannel.transferTo(bytesTransfered, bufferSize, sChannel);
-				if(bytesSent > 0) {
-					bytesTransfered += bytesSent;
-				}
-			}
-		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception", e);
-		}
-	}
-
 	public void transferCkpState(SocketChannel sChannel, String ckpPath) {
 		RandomAccessFile ckp = null;
 
@@ -277,10 +183,6 @@ public class FileRecoverer {
 		return ckpLastConsensusId;
 	}
 
-	public int getLogLastConsensusId() {
-		return logLastConsensusId;
-	}
-
 	private RandomAccessFile openLogFile(String file) {
 		try {
 			return new RandomAccessFile(file, "r");
@@ -290,119 +192,16 @@ public class FileRecoverer {
 		return null;
 	}
 
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, int endOffset) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
-			logger.debug("filepointer: " + log.getFilePointer() + " loglength " + logLength + " endoffset " + endOffset);
-			while (mayRead) {
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-								state.add((CommandsInfo) ois.readObject());
-								if (++recoveredBatches == endOffset) {
-									logger.debug("read all " + endOffset + " log messages");
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							logLastConsensusId = log.readInt();
-							return state.toArray(new CommandsInfo[state.size()]);
-						}
-					} else {
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					logger.error("Failed to recover log state",e);
-					state.clear();
-					mayRead = false;
-				}
-			}
-		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception", e);
-		}
-
-		return null;
-	}
-
 	/**
-	 * Searches the log file and retrieves the portion selected.
-	 * @param log The log file
-	 * @param start The offset to start retrieving commands
-	 * @param number The number of commands retrieved
-	 * @return The commands for the period selected
+	 * Warns about the single-file logs written before the log was split in
+	 * segments, which are no longer read when the state is recovered
 	 */
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, long pointer, int startOffset, int number) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
-
-			log.seek(pointer);
-
-			int index = 0;
-			while(index < startOffset) {
-				int size = log.readInt();
-				byte[] bytes = new byte[size];
-				log.read(bytes);
-				index++;
-			}
-
-			while (mayRead) {
-
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-
-								state.add((CommandsInfo) ois.readObject());
-
-								if (++recoveredBatches == number) {
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							mayRead = false;
-						}
-					} else {
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					logger.error("Failed to recolver log state",e);
-					state.clear();
-					mayRead = false;
-				}
-			}
-		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception",e);
+	public void warnLegacyLog() {
+		String legacyLog = getLatestFile(".log");
+		if (legacyLog != null) {
+			logger.warn("Ignoring the log " + legacyLog + " written by an older version, only the "
+					+ SegmentedLog.EXTENSION + " segments are recovered");
 		}
-
-		return null;
 	}
 
 	public String getLatestFile(String extention) {
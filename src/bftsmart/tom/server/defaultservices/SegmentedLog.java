@@ -0,0 +1,471 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The batches logged since the last checkpoint, stored in segment files of a
+ * fixed size, named replica.timestamp.segment.seg. A new segment is started
+ * when the next batch does not fit in the current one, so only a batch larger
+ * than the segment size makes a segment grow past it.
+ *
+ * Each record holds the size of the serialized batch, its consensus ID and the
+ * serialized batch. The segments are read through memory mappings, and a
+ * sparse index of the position of every INDEX_INTERVAL-th record lets a range
+ * of consensus be read by jumping next to its first record instead of reading
+ * the log from its start.
+ */
+public class SegmentedLog {
+
+    public static final String EXTENSION = ".seg";
+    private static final int HEADER = 8; // size and consensus ID of a record
+    private static final int INDEX_INTERVAL = 16; // records between two entries of the index
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String dir;
+    private final int replicaId;
+    private final long timestamp;
+    private final int segmentSize;
+    private final boolean sync;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>(); // null once truncated
+    private int firstSegment = 0; // the first segment not truncated
+    private final TreeMap<Integer, Position> index = new TreeMap<>(); // position of some records, by consensus ID
+    private int records = 0;
+    private int firstCID = -1;
+    private int lastCID = -1;
+
+    /**
+     * A segment file. Only the last one is open for writing
+     */
+    private static class Segment {
+        final String path;
+        RandomAccessFile file; // null once the segment is full
+        long length = 0;
+        MappedByteBuffer map; // the first mappedLength bytes of the segment
+        long mappedLength = 0;
+        int records = 0;
+        int firstCID = -1;
+        int lastCID = -1;
+
+        Segment(String path) {
+            this.path = path;
+        }
+    }
+
+    private static class Position {
+        final int segment;
+        final int offset;
+
+        Position(int segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private SegmentedLog(String dir, int replicaId, long timestamp, int segmentSize, boolean sync) {
+        this.dir = dir;
+        this.replicaId = replicaId;
+        this.timestamp = timestamp;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+    }
+
+    /**
+     * Creates an empty log, for the batches following a new checkpoint
+     * @param dir the directory of the segments
+     * @param replicaId the ID of the replica
+     * @param segmentSize the size of the segments, in bytes
+     * @param sync if the segments are flushed to disk after each append
+     * @return the log
+     */
+    public static SegmentedLog create(String dir, int replicaId, int segmentSize, boolean sync) {
+        return new SegmentedLog(dir, replicaId, System.currentTimeMillis(), segmentSize, sync);
+    }
+
+    /**
+     * Opens the most recent log of a replica, indexing its records. A record
+     * partially written when the replica stopped is truncated
+     * @param dir the directory of the segments
+     * @param replicaId the ID of the replica
+     * @param segmentSize the size of the segments, in bytes
+     * @param sync if the segments are flushed to disk after each append
+     * @return the log, or null if the replica has none
+     */
+    public static SegmentedLog recover(String dir, int replicaId, int segmentSize, boolean sync) {
+        File[] files = new File(dir).listFiles((d, name) -> name.startsWith(replicaId + ".") && name.endsWith(EXTENSION));
+        if (files == null || files.length == 0) {
+            return null;
+        }
+        TreeMap<Long, TreeMap<Integer, File>> logs = new TreeMap<>();
+        for (File f : files) {
+            String[] nameItems = f.getName().split("\\.");
+            if (nameItems.length != 4) {
+                continue;
+            }
+            try {
+                logs.computeIfAbsent(Long.parseLong(nameItems[1]), t -> new TreeMap<>())
+                        .put(Integer.parseInt(nameItems[2]), f);
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        if (logs.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, TreeMap<Integer, File>> latest = logs.lastEntry();
+        SegmentedLog log = new SegmentedLog(dir, replicaId, latest.getKey(), segmentSize, sync);
+        boolean complete = true;
+        // the segments before the first one were truncated after a checkpoint
+        log.firstSegment = latest.getValue().firstKey();
+        while (log.segments.size() < log.firstSegment) {
+            log.segments.add(null);
+        }
+        for (File f : latest.getValue().values()) {
+            if (!complete || !f.getName().equals(log.segmentName(log.segments.size()))) {
+                // a previous segment is missing or was truncated, so this one is not part of the log
+                log.logger.warn("Deleting log segment {}", f);
+                f.delete();
+                complete = false;
+            } else {
+                complete = log.index(f);
+            }
+        }
+        log.logger.info("Recovered {} batches, up to consensus {}, from {} segments", log.records, log.lastCID,
+                log.segments.size() - log.firstSegment);
+        return log;
+    }
+
+    private String segmentName(int segment) {
+        return replicaId + "." + timestamp + "." + segment + EXTENSION;
+    }
+
+    /**
+     * Adds a recovered segment to the log, indexing its records
+     * @return true if the segment ends with a complete record
+     */
+    private boolean index(File f) {
+        Segment segment = new Segment(f.getPath());
+        int number = segments.size();
+        try {
+            if (number > firstSegment) {
+                // only the last segment is written to
+                segments.get(number - 1).file.close();
+                segments.get(number - 1).file = null;
+            }
+            segment.file = new RandomAccessFile(f, "rw");
+            segment.length = segment.file.length();
+            ByteBuffer buffer = map(segment, segment.length);
+            segments.add(segment);
+            int offset = 0;
+            while (offset + HEADER <= segment.length) {
+                int size = buffer.getInt(offset);
+                if (size <= 0 || offset + HEADER + (long) size > segment.length) {
+                    break;
+                }
+                addRecord(buffer.getInt(offset + 4), number, offset);
+                offset += HEADER + size;
+            }
+            if (offset < segment.length) {
+                logger.warn("Truncating segment {} from {} to {} bytes", segment.path, segment.length, offset);
+                segment.file.getChannel().truncate(offset);
+                segment.length = offset;
+                segment.map = null;
+                segment.mappedLength = 0;
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to read log segment " + f, e);
+            return false;
+        }
+    }
+
+    private void addRecord(int cid, int segment, int offset) {
+        if (records % INDEX_INTERVAL == 0) {
+            index.put(cid, new Position(segment, offset));
+        }
+        if (firstCID == -1) {
+            firstCID = cid;
+        }
+        lastCID = cid;
+        records++;
+
+        Segment s = segments.get(segment);
+        if (s.firstCID == -1) {
+            s.firstCID = cid;
+        }
+        s.lastCID = cid;
+        s.records++;
+    }
+
+    /**
+     * Appends batches to the log, writing each segment they fall in at once,
+     * and flushing it if the log is synchronous
+     * @param batches the serialized batches
+     * @param cids the consensus ID of each batch
+     */
+    public void append(List<byte[]> batches, int[] cids) throws IOException {
+        lock.lock();
+        try {
+            int i = 0;
+            while (i < batches.size()) {
+                Segment segment = writableSegment(HEADER + batches.get(i).length);
+                int number = segments.size() - 1;
+
+                // the batches that fit in the segment
+                int end = i;
+                long size = 0;
+                while (end < batches.size() && (end == i ||
+                        segment.length + size + HEADER + batches.get(end).length <= segmentSize)) {
+                    size += HEADER + batches.get(end).length;
+                    end++;
+                }
+
+                ByteBuffer bf = ByteBuffer.allocate((int) size);
+                for (int j = i; j < end; j++) {
+                    bf.putInt(batches.get(j).length);
+                    bf.putInt(cids[j]);
+                    bf.put(batches.get(j));
+                }
+                bf.flip();
+                FileChannel channel = segment.file.getChannel();
+                long offset = segment.length;
+                while (bf.hasRemaining()) {
+                    offset += channel.write(bf, offset);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+
+                for (int j = i; j < end; j++) {
+                    addRecord(cids[j], number, (int) segment.length);
+                    segment.length += HEADER + batches.get(j).length;
+                }
+                i = end;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The segment to write a record to, starting a new segment if it does
+     * not fit in the current one
+     */
+    private Segment writableSegment(int recordSize) throws IOException {
+        Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current != null && (current.length == 0 || current.length + recordSize <= segmentSize)) {
+            return current;
+        }
+        if (current != null) {
+            current.file.close();
+            current.file = null;
+        }
+        Segment segment = new Segment(dir + segmentName(segments.size()));
+        segment.file = new RandomAccessFile(segment.path, "rw");
+        segments.add(segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Segment segment, long length) throws IOException {
+        if (segment.map == null || segment.mappedLength < length) {
+            if (segment.file != null) {
+                segment.map = segment.file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } else {
+                try (RandomAccessFile file = new RandomAccessFile(segment.path, "r")) {
+                    segment.map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                }
+            }
+            segment.mappedLength = length;
+        }
+        return segment.map;
+    }
+
+    /**
+     * Reads consecutive batches of the log
+     * @param fromCID the consensus ID of the first batch
+     * @param number the number of batches to read
+     * @return the batches, or null if the log does not have all of them
+     */
+    public CommandsInfo[] read(int fromCID, int number) {
+        if (number <= 0) {
+            return new CommandsInfo[0];
+        }
+
+        // the mapped segments from the closest indexed record, taken under the
+        // lock, as the records written to them no longer change
+        List<ByteBuffer> views = new ArrayList<>();
+        int offset;
+        lock.lock();
+        try {
+            Map.Entry<Integer, Position> start = index.floorEntry(fromCID);
+            if (start == null || fromCID + number - 1 > lastCID) {
+                return null;
+            }
+            offset = start.getValue().offset;
+            for (int s = start.getValue().segment; s < segments.size(); s++) {
+                Segment segment = segments.get(s);
+                ByteBuffer view = map(segment, segment.length).duplicate();
+                view.limit((int) segment.length);
+                views.add(view);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to map log segment", e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+
+        CommandsInfo[] batches = new CommandsInfo[number];
+        int found = 0;
+        try {
+            for (ByteBuffer view : views) {
+                while (offset + HEADER <= view.limit() && found < number) {
+                    int size = view.getInt(offset);
+                    int cid = view.getInt(offset + 4);
+                    if (cid >= fromCID) {
+                        byte[] bytes = new byte[size];
+                        view.position(offset + HEADER);
+                        view.get(bytes);
+                        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                        batches[found++] = (CommandsInfo) ois.readObject();
+                    }
+                    offset += HEADER + size;
+                }
+                offset = 0;
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            logger.error("Failed to read batches from the log", e);
+            return null;
+        }
+        return found == number ? batches : null;
+    }
+
+    /**
+     * Deletes the segments that only hold batches up to a consensus, once a
+     * checkpoint of that consensus is durable. The segment being written to is
+     * kept, so the log may still hold batches older than the checkpoint
+     * @param cid the consensus ID of the checkpoint
+     */
+    public void truncate(int cid) {
+        lock.lock();
+        try {
+            while (firstSegment < segments.size() - 1 && segments.get(firstSegment).lastCID <= cid) {
+                Segment segment = segments.get(firstSegment);
+                segment.map = null;
+                new File(segment.path).delete();
+                segments.set(firstSegment, null);
+                records -= segment.records;
+                firstSegment++;
+            }
+            Segment first = segments.isEmpty() ? null : segments.get(firstSegment);
+            if (first != null && first.firstCID != -1 && first.firstCID != firstCID) {
+                // the reads of the remaining batches start from the first segment
+                index.headMap(first.firstCID).clear();
+                index.put(first.firstCID, new Position(firstSegment, 0));
+                firstCID = first.firstCID;
+                logger.debug("Truncated the log up to consensus {}", firstCID - 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return all the batches of the log
+     */
+    public CommandsInfo[] readAll() {
+        lock.lock();
+        try {
+            if (records == 0) {
+                return new CommandsInfo[0];
+            }
+            return read(firstCID, records);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the consensus ID of the first batch, or -1 if the log is empty
+     */
+    public int getFirstCID() {
+        lock.lock();
+        try {
+            return firstCID;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the consensus ID of the last batch, or -1 if the log is empty
+     */
+    public int getLastCID() {
+        lock.lock();
+        try {
+            return lastCID;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes and deletes the segments of the log
+     */
+    public void delete() {
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment == null) {
+                    continue;
+                }
+                if (segment.file != null) {
+                    segment.file.close();
+                    segment.file = null;
+                }
+                segment.map = null;
+                new File(segment.path).delete();
+            }
+            segments.clear();
+            index.clear();
+        } catch (IOException e) {
+            logger.error("Failed to delete log segments", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+/**
+ * A view of the application state at a checkpoint, which is not changed by the
+ * requests executed afterwards, such as an immutable or copy-on-write copy of
+ * the state. It is taken by the delivery thread and serialized by the
+ * checkpoint thread, while the following requests are executed.
+ */
+public interface SnapshotHandle {
+
+    /**
+     * Serializes the state this handle refers to. Invoked once, outside the
+     * delivery thread
+     * @return the serialized snapshot of the application state
+     */
+    public byte[] serialize();
+}
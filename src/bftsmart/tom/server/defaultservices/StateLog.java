@@ -38,6 +38,7 @@ public class StateLog {
     private int position; // next position in the array of batches to be written
     private int lastCID; // Consensus ID for the last messages batch delivered to the application
     private int id; //replica ID
+    private ChunkedCheckpoint chunkedCheckpoint; // the state at the last checkpoint, for ChunkedState applications
 
     /**
      * Constructs a State log
@@ -100,6 +101,31 @@ public class StateLog {
                        
     }
 
+    /**
+     * Sets the state associated with the last checkpoint of a ChunkedState
+     * application, of which only the chunks changed since the previous
+     * checkpoint were copied and hashed
+     * @param checkpoint The chunks and Merkle tree of the state
+     * @param lastConsensusId
+     */
+    public void newCheckpoint(ChunkedCheckpoint checkpoint, int lastConsensusId) {
+        newCheckpoint((byte[]) null, checkpoint.getRoot(), lastConsensusId);
+        this.chunkedCheckpoint = checkpoint;
+    }
+
+    /**
+     * Sets the chunks of the state of a ChunkedState application, after the
+     * state is installed, without taking a checkpoint
+     * @param checkpoint The chunks and Merkle tree of the state
+     */
+    public void setChunkedCheckpoint(ChunkedCheckpoint checkpoint) {
+        this.chunkedCheckpoint = checkpoint;
+    }
+
+    protected ChunkedCheckpoint getChunkedCheckpoint() {
+        return chunkedCheckpoint;
+    }
+
     /**
      * Sets the consensus ID for the last checkpoint
      * @param lastCheckpointCID Consensus ID for the last checkpoint
@@ -139,7 +165,7 @@ public class StateLog {
      * @return State associated with the last checkpoint
      */
     public byte[] getState() {
-        return state;
+        return chunkedCheckpoint != null ? chunkedCheckpoint.serialize() : state;
     }
 
     /**
@@ -147,7 +173,7 @@ public class StateLog {
      * @return Hash of the state associated with the last checkpoint
      */
     public byte[] getStateHash() {
-        return stateHash;
+        return chunkedCheckpoint != null ? chunkedCheckpoint.getRoot() : stateHash;
     }
 
     /**
@@ -166,6 +192,15 @@ public class StateLog {
         setLastCID(lastConsensusId);
     }
 
+    /**
+     * Waits until the batches added to the log are durable. The batches of
+     * this log are kept in memory, so there is nothing to wait for
+     * @return false if some batch could not be made durable
+     */
+    public boolean sync() {
+        return true;
+    }
+
     /**
      * Returns a batch of messages, given its correspondent consensus ID
      * @param cid Consensus ID associated with the batch to be fetched
@@ -219,7 +254,10 @@ public class StateLog {
                     batches[i] = messageBatches[i];
             }
             lastCID = cid;
-            return new DefaultApplicationState(batches, lastCheckpointCID, lastCID, (setState ? state : null), stateHash, this.id);
+            DefaultApplicationState appState = new DefaultApplicationState(batches, lastCheckpointCID, lastCID,
+                    (setState ? getState() : null), getStateHash(), this.id);
+            appState.setChunked(chunkedCheckpoint != null);
+            return appState;
 
         }
         else return null;
@@ -241,6 +279,7 @@ public class StateLog {
         this.lastCheckpointCID = transState.getLastCheckpointCID();
 
         this.state = transState.getState();
+        this.chunkedCheckpoint = null;
 
         this.stateHash = transState.getStateHash();
 
@@ -23,6 +23,7 @@ import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
@@ -33,6 +34,7 @@ import bftsmart.statemanagement.durability.CSTState;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.server.defaultservices.SegmentedLog;
 import bftsmart.tom.server.defaultservices.StateLog;
 import bftsmart.tom.util.TOMUtil;
 
@@ -44,24 +46,25 @@ public class DurableStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private SegmentedLog log;
 	private boolean syncLog;
-	private String logPath;
+	private int segmentSize;
 	private String lastCkpPath;
 	private boolean syncCkp;
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
-	private Map<Integer, Long> logPointers;
+	private Map<Integer, Integer> logCIDs; // the last consensus logged when each replica took its checkpoint
 	private FileRecoverer fr;
 	
 	public DurableStateLog(int id, byte[] initialState, byte[] initialHash,
-			boolean isToLog, boolean syncLog, boolean syncCkp) {
+			boolean isToLog, boolean syncLog, boolean syncCkp, int segmentSize) {
 		super(id, initialState, initialHash);
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
 		this.syncCkp = syncCkp;
-		this.logPointers = new HashMap<Integer, Long>();
+		this.segmentSize = segmentSize;
+		this.logCIDs = new HashMap<Integer, Integer>();
                 
                 File directory = new File(DEFAULT_DIR);
                 if (!directory.exists()) directory.mkdir();
@@ -70,13 +73,7 @@ public class DurableStateLog extends StateLog {
 	}
 
 	private void createLogFile() {
-		logPath = DEFAULT_DIR + String.valueOf(id) + "."
-				+ System.currentTimeMillis() + ".log";
-		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-		} catch (FileNotFoundException e) {
-			logger.error("Failed to create log file",e);
-		}
+		log = SegmentedLog.create(DEFAULT_DIR, id, segmentSize, syncLog);
 	}
 
 	/**
@@ -106,18 +103,7 @@ public class DurableStateLog extends StateLog {
 			oos.writeObject(commandsInfo);
 			oos.flush();
 
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(Collections.singletonList(bos.toByteArray()), new int[] { consensusId });
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
@@ -177,13 +163,8 @@ public class DurableStateLog extends StateLog {
 	}
 
 	private void deleteLogFile() {
-		try {
-			if(log != null)
-				log.close();
-			new File(logPath).delete();
-		} catch (IOException e) {
-			logger.error("Failed to delete log file",e);
-		}
+		if(log != null)
+			log.delete();
 	}
 
 	public CSTState getState(CSTRequest cstRequest) {
@@ -203,8 +184,8 @@ public class DurableStateLog extends StateLog {
 				byte[] ckpState = fr.getCkpState(lastCkpPath);
 				checkpointLock.unlock();
 	    		logger.info("sending checkpoint: " + ckpState.length);
-	    		CommandsInfo[] logLower = fr.getLogState(requestF1.getLogLowerSize(), logPath);
-	    		CommandsInfo[] logUpper = fr.getLogState(logPointers.get(requestF1.getLogUpper()), 0, requestF1.getLogUpperSize(), logPath);
+	    		CommandsInfo[] logLower = log.read(log.getFirstCID(), requestF1.getLogLowerSize());
+	    		CommandsInfo[] logUpper = log.read(logCIDs.get(requestF1.getLogUpper()) + 1, requestF1.getLogUpperSize());
 	    		byte[] logLowerBytes = TOMUtil.getBytes(logLower);
 	    		logger.debug(logLower.length + " Log lower bytes size: " + logLowerBytes.length);
 	    		byte[] logLowerHash = TOMUtil.computeHash(logLowerBytes);
@@ -215,8 +196,8 @@ public class DurableStateLog extends StateLog {
 	    		return cstState;
 			} else if(id == requestF1.getLogLower()) {
 				// This replica is expected to send the lower part of the log
-	    		logger.info("Sending lower log: " + requestF1.getLogLowerSize() + " from " + logPointers.get(requestF1.getCheckpointReplica())) ;
-	    		CommandsInfo[] logLower = fr.getLogState(logPointers.get(requestF1.getCheckpointReplica()), 0, requestF1.getLogLowerSize(), logPath);
+	    		logger.info("Sending lower log: " + requestF1.getLogLowerSize() + " from " + (logCIDs.get(requestF1.getCheckpointReplica()) + 1)) ;
+	    		CommandsInfo[] logLower = log.read(logCIDs.get(requestF1.getCheckpointReplica()) + 1, requestF1.getLogLowerSize());
 	    		logger.debug(" " + TOMUtil.getBytes(logLower).length + " bytes");
 	    		CSTState cstState = new CSTState(null, null, logLower, null, null, null, lastCheckpointCID, lastCID, this.id);
 	    		return cstState;
@@ -228,57 +209,27 @@ public class DurableStateLog extends StateLog {
 				byte[] ckpHash = fr.getCkpStateHash();
 				byte[] ckpState = fr.getCkpState(lastCkpPath);
 				checkpointLock.unlock();
-	    		CommandsInfo[] logUpper = fr.getLogState(requestF1.getLogUpperSize(), logPath);
+	    		CommandsInfo[] logUpper = log.read(log.getFirstCID(), requestF1.getLogUpperSize());
 	    		logger.debug("State size: " + ckpState.length + " Current state Hash: " + ckpHash);
 	    		int lastCIDInState = lastCheckpointCID + requestF1.getLogUpperSize();
 	    		CSTState cstState = new CSTState(null, ckpHash, null, null, logUpper, null, lastCheckpointCID, lastCIDInState, this.id);
 	    		return cstState;
 			}
 		}
-//		else if(cstRequest instanceof CSTRequestFGT1) {
-//			CSTRequestFGT1 requestFGT1 = (CSTRequestFGT1)cstRequest;
-//			if(id == requestFGT1.getCheckpointReplica()) {
-//				checkpointLock.lock();
-//				byte[] ckpState = fr.getCkpState();
-//				checkpointLock.unlock(); 
-//	    		batches = fr.getLogState(requestFGT1.getLogSize());
-//	    		System.out.println("--- sending checkpoint: " + ckpState.length);
-//	            return new DefaultApplicationState(batches, lastCheckpointCID, cid, ckpState, null);
-//			} else { // Replica should send the checkpoint and log hashes
-//	    		batches = fr.getLogState(requestFGT1.getLogSize() - requestFGT1.getNbrHashesBeforeCkp());
-//	    		byte[] logBytes = TOMUtil.getBytes(batches);
-//	    		byte[] logHash = TOMUtil.computeHash(logBytes);
-//	    		fr.recoverCkpHash();
-//				byte[] ckpHash = fr.getCkpStateHash();
-//	            return new DefaultApplicationState(null, logHash, lastCheckpointCID, cid, null, ckpHash);
-//			}
-//				
-//		}
 		return null;
 	}
 	
 	public void transferApplicationState(SocketChannel sChannel, int cid) {
 		fr.transferCkpState(sChannel, lastCkpPath);
-		
-//		int lastCheckpointCID = getLastCheckpointCID();
-//		int lastCID = getLastCID();
-//		if (cid >= lastCheckpointCID && cid <= lastCID) {
-//			int size = cid - lastCheckpointCID;
-//			fr.transferLog(sChannel, size);
-//		}
 	}
 
 	public void setLastCID(int cid, int checkpointPeriod, int checkpointPortion) {
 		super.setLastCID(cid);
-		// save the file pointer to retrieve log information later
+		// save the consensus ID to retrieve log information later
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
+			logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My last logged consensus is " + cid);
+			logCIDs.put(ckpReplicaIndex, cid);
 		}
 	}
 
@@ -298,15 +249,21 @@ public class DurableStateLog extends StateLog {
 	protected CSTState loadDurableState() {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		lastCkpPath = fr.getLatestFile(".ckp");
-		logPath = fr.getLatestFile(".log");
 		byte[] checkpoint = null;
 		if(lastCkpPath != null)
 			checkpoint = fr.getCkpState(lastCkpPath);
 		CommandsInfo[] log = null;
-		if(logPath !=null)
-			log = fr.getLogState(0, logPath);
+		int logLastConsensusId = -1;
+		if (isToLog) {
+			fr.warnLegacyLog();
+			// the recovered log is kept, and the next batches are appended to it
+			this.log = SegmentedLog.recover(DEFAULT_DIR, id, segmentSize, syncLog);
+			if (this.log != null) {
+				log = this.log.readAll();
+				logLastConsensusId = this.log.getLastCID();
+			}
+		}
 		int ckpLastConsensusId = fr.getCkpLastConsensusId();
-		int logLastConsensusId = fr.getLogLastConsensusId();
 		CSTState cstState = new CSTState(checkpoint, fr.getCkpStateHash(), log, null,
 				null, null, ckpLastConsensusId, logLastConsensusId, this.id);
 		if(logLastConsensusId > ckpLastConsensusId) {
@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.tom.util;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -62,6 +63,7 @@ public final class BatchBuilder {
                 
 		int size = 20 + //timestamp 8, nonces 4, nummessages 4
 				(numberOfNonces > 0 ? 8 : 0) + //seed if needed
+				(Integer.BYTES * numberOfMessages) + // messages offset
 				(Integer.BYTES * numberOfMessages) + // messages length
                                 sigsSize + // signatures size
 				totalMessagesSize; //size of all msges
@@ -78,6 +80,16 @@ public final class BatchBuilder {
 
 		proposalBuffer.putInt(numberOfMessages);
 
+		// offset of each message, so that the messages can be read independently
+		int offset = proposalBuffer.position() + Integer.BYTES * numberOfMessages;
+		for (int i = 0; i < numberOfMessages; i++) {
+			proposalBuffer.putInt(offset);
+			offset += Integer.BYTES + messages[i].length;
+			if (useSignatures) {
+				offset += Integer.BYTES + (signatures[i] != null ? signatures[i].length : 0);
+			}
+		}
+
 		for (int i = 0; i < numberOfMessages; i++) {
 			putMessage(proposalBuffer,messages[i], useSignatures, signatures[i]);
 		}
@@ -151,4 +163,84 @@ public final class BatchBuilder {
 				useSignatures, messages, signatures);
 
 	}
+
+        /**
+         * Builds the batch whose messages were already serialized in the
+         * given body, writing only the header with the timestamp and the
+         * nonces. The result is identical to makeBatch with the same messages
+         */
+        public byte[] makeBatch(Body body, int numNounces, long timestamp) {
+
+                int numMsgs = body.count;
+                int header = 16 + (numNounces > 0 ? 8 : 0); // timestamp, nonces, seed if needed, nummessages
+                int first = header + Integer.BYTES * numMsgs; // position of the first message
+
+                // same size as createBatch
+                ByteBuffer proposalBuffer = ByteBuffer.allocate(first + body.buffer.position() + 4);
+
+                proposalBuffer.putLong(timestamp);
+                proposalBuffer.putInt(numNounces);
+                if (numNounces > 0) {
+                        proposalBuffer.putLong(rnd.nextLong());
+                }
+                proposalBuffer.putInt(numMsgs);
+                for (int i = 0; i < numMsgs; i++) {
+                        proposalBuffer.putInt(first + body.starts[i]);
+                }
+                proposalBuffer.put(body.buffer.array(), 0, body.buffer.position());
+
+                return proposalBuffer.array();
+        }
+
+        /**
+         * The messages of a batch, serialized as they are added, so that a
+         * batch assembled over time is not serialized again for each message
+         */
+        public static final class Body {
+
+                private final boolean useSignatures;
+                private ByteBuffer buffer = ByteBuffer.allocate(4096);
+                private int[] starts = new int[64]; // position of each message in the buffer
+                private int count = 0;
+
+                public Body(boolean useSignatures) {
+                        this.useSignatures = useSignatures;
+                }
+
+                public void add(TOMMessage msg) {
+                        byte[] signature = msg.serializedMessageSignature;
+                        int size = Integer.BYTES + msg.serializedMessage.length +
+                                        (useSignatures ? Integer.BYTES + (signature != null ? signature.length : 0) : 0);
+                        if (buffer.remaining() < size) {
+                                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+                                larger.put(buffer.array(), 0, buffer.position());
+                                buffer = larger;
+                        }
+                        if (count == starts.length) {
+                                starts = Arrays.copyOf(starts, count * 2);
+                        }
+                        starts[count++] = buffer.position();
+
+                        buffer.putInt(msg.serializedMessage.length);
+                        buffer.put(msg.serializedMessage);
+                        if (useSignatures) {
+                                if (signature != null) {
+                                        buffer.putInt(signature.length);
+                                        buffer.put(signature);
+                                } else {
+                                        buffer.putInt(0);
+                                }
+                        }
+                }
+
+                public void addAll(List<TOMMessage> msgs) {
+                        for (TOMMessage msg : msgs) {
+                                add(msg);
+                        }
+                }
+
+                public int size() {
+                        return count;
+                }
+        }
 }
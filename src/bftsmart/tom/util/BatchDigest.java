@@ -0,0 +1,162 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * The digest form of a batch built by BatchBuilder, proposed instead of the
+ * batch itself when the replicas already received the requests from the
+ * clients. It keeps the header of the batch (timestamp, nonces and seed) and,
+ * for each request, its sender, its sequence number and the digest of its
+ * serialized form and signature. Given the same requests, any replica rebuilds
+ * a batch identical to the one of the leader.
+ *
+ * Layout: timestamp, number of nonces, seed, number of requests, followed for
+ * each request by its sender, sequence number, digest length and digest.
+ */
+public final class BatchDigest {
+
+    private final long timestamp;
+    private final int numberOfNonces;
+    private final long seed;
+    private final int[] senders;
+    private final int[] sequences;
+    private final byte[][] digests;
+
+    /**
+     * Reads the digest form of a batch
+     * @param data the digest form, as created by create()
+     */
+    public BatchDigest(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        timestamp = buffer.getLong();
+        numberOfNonces = buffer.getInt();
+        seed = buffer.getLong();
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 12) {
+            throw new IllegalArgumentException("Invalid number of requests " + count + " in batch digest");
+        }
+        senders = new int[count];
+        sequences = new int[count];
+        digests = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            senders[i] = buffer.getInt();
+            sequences[i] = buffer.getInt();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid digest length " + length + " in batch digest");
+            }
+            digests[i] = new byte[length];
+            buffer.get(digests[i]);
+        }
+    }
+
+    /**
+     * Creates the digest form of a batch
+     * @param md the hash engine
+     * @param batch the batch, as built by BatchBuilder
+     * @param requests the requests in the batch, in the same order
+     * @param useSignatures if the batch carries the signatures of the requests
+     * @return the digest form of the batch
+     */
+    public static byte[] create(MessageDigest md, byte[] batch, List<TOMMessage> requests, boolean useSignatures) {
+        ByteBuffer header = ByteBuffer.wrap(batch);
+        long timestamp = header.getLong();
+        int numberOfNonces = header.getInt();
+        long seed = numberOfNonces > 0 ? header.getLong() : 0;
+
+        byte[][] digests = new byte[requests.size()][];
+        int size = 24; // timestamp 8, nonces 4, seed 8, number of requests 4
+        int i = 0;
+        for (TOMMessage request : requests) {
+            digests[i] = digest(md, request, useSignatures);
+            size += 12 + digests[i].length;
+            i++;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putLong(timestamp);
+        out.putInt(numberOfNonces);
+        out.putLong(seed);
+        out.putInt(requests.size());
+        i = 0;
+        for (TOMMessage request : requests) {
+            out.putInt(request.getSender());
+            out.putInt(request.getSequence());
+            out.putInt(digests[i].length);
+            out.put(digests[i]);
+            i++;
+        }
+        return out.array();
+    }
+
+    /**
+     * Computes the digest identifying a request in the digest form of a batch
+     * @param md the hash engine
+     * @param request the request, serialized
+     * @param useSignatures if the signature of the request is part of the batch
+     * @return the digest of the serialized request and of its signature
+     */
+    public static byte[] digest(MessageDigest md, TOMMessage request, boolean useSignatures) {
+        md.update(request.serializedMessage);
+        if (useSignatures && request.serializedMessageSignature != null) {
+            md.update(request.serializedMessageSignature);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Checks whether a request is the one at some position of the batch
+     * @param md the hash engine
+     * @param index the position in the batch
+     * @param request the request, serialized
+     * @param useSignatures if the signature of the request is part of the batch
+     * @return true if the request has the sender, sequence number and digest expected
+     */
+    public boolean matches(MessageDigest md, int index, TOMMessage request, boolean useSignatures) {
+        return request != null && request.serializedMessage != null &&
+                request.getSender() == senders[index] && request.getSequence() == sequences[index] &&
+                Arrays.equals(digest(md, request, useSignatures), digests[index]);
+    }
+
+    /**
+     * Rebuilds the batch from its requests
+     * @param requests the requests, in the order of the batch
+     * @param useSignatures if the batch carries the signatures of the requests
+     * @return the batch, identical to the one the digest form was created from
+     */
+    public byte[] rebuild(List<TOMMessage> requests, boolean useSignatures) {
+        return new BatchBuilder(seed).makeBatch(requests, numberOfNonces, seed, timestamp, useSignatures);
+    }
+
+    public int size() {
+        return senders.length;
+    }
+
+    public int getSender(int index) {
+        return senders[index];
+    }
+
+    public int getSequence(int index) {
+        return sequences[index];
+    }
+}
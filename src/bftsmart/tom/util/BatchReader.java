@@ -18,88 +18,160 @@ package bftsmart.tom.util;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.nio.ByteBuffer;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.LoggerFactory;
 
 /**
- * Batch format: N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte)] +
- *               TIMESTAMP(long) + N_NONCES(int) + NONCES(byte[])
- *
+ * Reads the requests of a batch built by BatchBuilder. The header of the batch
+ * holds the offset of each request, so any request can be read independently
+ * of the others, and a large batch can be deserialized in parallel chunks.
  */
 public final class BatchReader {
 
     private ByteBuffer proposalBuffer;
     private boolean useSignatures;
 
+    private long timestamp;
+    private int numberOfNonces;
+    private long seed;
+    private int numberOfMessages;
+    private int offsetsPosition; // position of the offsets of the requests
+
     /** wrap buffer */
     public BatchReader(byte[] batch, boolean useSignatures) {
         proposalBuffer = ByteBuffer.wrap(batch);
         this.useSignatures = useSignatures;
     }
 
-    public TOMMessage[] deserialiseRequests(ServerViewController controller) {
+    private void readHeader() {
 
         //obtain the timestamps to be delivered to the application
-        long timestamp = proposalBuffer.getLong();
+        timestamp = proposalBuffer.getLong();
 
-        int numberOfNonces = proposalBuffer.getInt();
+        numberOfNonces = proposalBuffer.getInt();
         
-        long seed = 0;
+        seed = 0;
 
-        Random rnd = null;
         if(numberOfNonces > 0){
             seed = proposalBuffer.getLong();
-            rnd = new Random(seed);
         }
         else numberOfNonces = 0; // make sure the value is correct
         
-        int numberOfMessages = proposalBuffer.getInt();
+        numberOfMessages = proposalBuffer.getInt();
+
+        offsetsPosition = proposalBuffer.position();
+    }
+
+    public TOMMessage[] deserialiseRequests(ServerViewController controller) {
+
+        readHeader();
 
         TOMMessage[] requests = new TOMMessage[numberOfMessages];
 
         for (int i = 0; i < numberOfMessages; i++) {
+            requests[i] = deserialiseRequest(i);
+        }
+        return requests;
+    }
+
+    /**
+     * Deserializes the requests of the batch in chunks, executed in parallel
+     * @param controller the view controller
+     * @param executor the threads deserializing the chunks
+     * @param chunkSize the number of requests in each chunk, batches not
+     * larger than this are deserialized by the caller
+     * @return the requests, where a request that could not be deserialized is null
+     */
+    public TOMMessage[] deserialiseRequests(ServerViewController controller, ExecutorService executor, int chunkSize)
+            throws InterruptedException {
+
+        readHeader();
+
+        TOMMessage[] requests = new TOMMessage[numberOfMessages];
+
+        List<Callable<Void>> chunks = new ArrayList<>();
+        for (int from = chunkSize; from < numberOfMessages; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(from + chunkSize, numberOfMessages);
+            chunks.add(() -> {
+                for (int i = start; i < end; i++) {
+                    requests[i] = deserialiseRequest(i);
+                }
+                return null;
+            });
+        }
+
+        List<Future<Void>> results = new ArrayList<>(chunks.size());
+        for (Callable<Void> chunk : chunks) {
+            results.add(executor.submit(chunk));
+        }
+
+        // the first chunk is deserialized by the caller
+        for (int i = 0; i < Math.min(chunkSize, numberOfMessages); i++) {
+            requests[i] = deserialiseRequest(i);
+        }
+
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                LoggerFactory.getLogger(this.getClass()).error("Failed to deserialize batch", e.getCause());
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Deserializes one request, only reading the buffer at absolute positions
+     * so that many requests can be deserialized at the same time
+     */
+    private TOMMessage deserialiseRequest(int index) {
+        try {
             //read the message and its signature from the batch
-            int messageSize = proposalBuffer.getInt();
+            int offset = proposalBuffer.getInt(offsetsPosition + index * Integer.BYTES);
+
+            int messageSize = proposalBuffer.getInt(offset);
+            offset += Integer.BYTES;
 
             byte[] message = new byte[messageSize];
-            proposalBuffer.get(message);
+            System.arraycopy(proposalBuffer.array(), offset, message, 0, messageSize);
+            offset += messageSize;
 
             byte[] signature = null;
             
             if (useSignatures) {
                 
-                int sigSize = proposalBuffer.getInt();
+                int sigSize = proposalBuffer.getInt(offset);
+                offset += Integer.BYTES;
 
                 if (sigSize > 0) {
                     signature = new byte[sigSize];
-                    proposalBuffer.get(signature);
+                    System.arraycopy(proposalBuffer.array(), offset, signature, 0, sigSize);
                 }
             }
             
-            //obtain the nonces to be delivered to the application
-            byte[] nonces = new byte[numberOfNonces];
-            if (nonces.length > 0) {
-                rnd.nextBytes(nonces);
-            }
-            try {
-                DataInputStream ois = new DataInputStream(new ByteArrayInputStream(message));
-                TOMMessage tm = new TOMMessage();
-                tm.rExternal(ois);
-
-                tm.serializedMessage = message;
-                tm.serializedMessageSignature = signature;
-                tm.numOfNonces = numberOfNonces;
-                tm.seed = seed;
-                tm.timestamp = timestamp;
-                requests[i] = tm;
-
-            } catch (Exception e) {
-                LoggerFactory.getLogger(this.getClass()).error("Failed to deserialize batch",e);
-            }
+            DataInputStream ois = new DataInputStream(new ByteArrayInputStream(message));
+            TOMMessage tm = new TOMMessage();
+            tm.rExternal(ois);
+
+            tm.serializedMessage = message;
+            tm.serializedMessageSignature = signature;
+            tm.numOfNonces = numberOfNonces;
+            tm.seed = seed;
+            tm.timestamp = timestamp;
+            return tm;
+
+        } catch (Exception e) {
+            LoggerFactory.getLogger(this.getClass()).error("Failed to deserialize batch",e);
+            return null;
         }
-        return requests;
     }
 }
@@ -0,0 +1,135 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.security.MessageDigest;
+
+/**
+ * A Merkle tree over a sequence of chunks of data. Changing some chunks only
+ * hashes these chunks and the nodes on their paths to the root, instead of all
+ * the data.
+ *
+ * The tree is kept in an array, the children of node i being nodes 2i and
+ * 2i+1, and the leaves being the last nodes. The number of leaves is the
+ * number of chunks rounded up to a power of two, the missing leaves being
+ * filled with zeros. Leaves and inner nodes are hashed with different prefixes,
+ * so that a node can not be taken for a chunk.
+ */
+public final class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private final MessageDigest md;
+    private final byte[] empty; // the hash of a missing leaf
+    private byte[][] nodes;
+    private int width; // number of leaves
+    private int count; // number of chunks
+
+    /**
+     * Creates the tree of a sequence of chunks
+     * @param md the hash engine
+     * @param chunks the chunks
+     */
+    public MerkleTree(MessageDigest md, byte[][] chunks) {
+        this.md = md;
+        this.empty = new byte[md.getDigestLength()];
+        resize(chunks.length);
+        for (int i = 0; i < chunks.length; i++) {
+            nodes[width + i] = hashLeaf(chunks[i]);
+        }
+        hashNodes();
+    }
+
+    /**
+     * Changes some chunks of the tree
+     * @param count the number of chunks after the change. Chunks added at the
+     * end must be among the changed chunks
+     * @param indexes the indexes of the changed chunks
+     * @param chunks the new content of the changed chunks
+     */
+    public void update(int count, int[] indexes, byte[][] chunks) {
+        boolean resized = count != this.count;
+        if (resized) {
+            byte[][] old = nodes;
+            int oldWidth = width;
+            int oldCount = this.count;
+            resize(count);
+            System.arraycopy(old, oldWidth, nodes, width, Math.min(count, oldCount));
+            for (int i = oldCount; i < count; i++) {
+                nodes[width + i] = hashLeaf(new byte[0]); // replaced below if it changed
+            }
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            int leaf = width + indexes[i];
+            nodes[leaf] = hashLeaf(chunks[i]);
+            if (!resized) {
+                for (int node = leaf / 2; node > 0; node /= 2) {
+                    nodes[node] = hashNode(nodes[2 * node], nodes[2 * node + 1]);
+                }
+            }
+        }
+        if (resized) {
+            hashNodes();
+        }
+    }
+
+    /**
+     * @return the root of the tree
+     */
+    public byte[] getRoot() {
+        return nodes[1].clone();
+    }
+
+    /**
+     * Computes the root of the tree of a sequence of chunks
+     * @param md the hash engine
+     * @param chunks the chunks
+     * @return the root of their tree
+     */
+    public static byte[] root(MessageDigest md, byte[][] chunks) {
+        return new MerkleTree(md, chunks).getRoot();
+    }
+
+    private void resize(int count) {
+        this.count = count;
+        width = 1;
+        while (width < count) {
+            width *= 2;
+        }
+        nodes = new byte[2 * width][]; // node 0 is unused, and a single leaf is the root
+        for (int i = width + count; i < 2 * width; i++) {
+            nodes[i] = empty;
+        }
+    }
+
+    private void hashNodes() {
+        for (int node = width - 1; node > 0; node--) {
+            nodes[node] = hashNode(nodes[2 * node], nodes[2 * node + 1]);
+        }
+    }
+
+    private byte[] hashLeaf(byte[] chunk) {
+        md.update(LEAF);
+        return md.digest(chunk);
+    }
+
+    private byte[] hashNode(byte[] left, byte[] right) {
+        md.update(NODE);
+        md.update(left);
+        return md.digest(right);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+Copyright (c) 2020 Hao Yin, Zhibo Xing
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The latency histograms of a replica, by name. The components look up their
+ * histograms once and record into them directly; if a dump interval is
+ * configured, the values recorded in each interval are written to the log,
+ * along with the current value of the gauges.
+ */
+public class MetricsRegistry {
+
+    // phases of the chained protocol
+    public static final String VOTE_TO_QUORUM = "vote->quorum"; // first VOTE received to VOTE quorum, at the leader
+    public static final String QUORUM_TO_PROPOSAL = "quorum->proposal"; // VOTE quorum to PROPOSAL sent, at the leader
+    public static final String PROPOSAL_TO_DECIDE = "proposal->decide"; // PROPOSAL received to block decided
+    public static final String DECIDE_TO_EXECUTE = "decide->execute"; // block decided to its execution starting
+    public static final String EXECUTE = "execute"; // execution of the decided batches by the application
+
+    // decisions of the adaptive batching
+    public static final String BATCH_TARGET = "batch.target"; // requests a batch is filled up to
+    public static final String BATCH_LINGER = "batch.linger"; // microseconds a replica waits for a batch to fill
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int id;
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService dumper = null;
+
+    /**
+     * @param id the ID of the replica
+     * @param dumpInterval milliseconds between dumps of the histograms, or 0 to not dump them
+     */
+    public MetricsRegistry(int id, long dumpInterval) {
+        this.id = id;
+        if (dumpInterval > 0) {
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Metrics dumper");
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleAtFixedRate(this::dump, dumpInterval, dumpInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Retrieves the histogram with the given name, creating it if needed. Only
+     * the dumps reset the histograms, other readers take snapshots without
+     * resetting them so the dumps still cover each whole interval
+     * @param name the name of the histogram
+     * @return the histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a value sampled at each dump, such as a setting chosen at runtime
+     * @param name the name of the value
+     * @param gauge reads the current value
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return the current value of all the gauges, by name
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new ConcurrentSkipListMap<>();
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * @return all the histograms, by name
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Write to the log the values recorded since the last dump, in microseconds,
+     * and the current value of the gauges
+     */
+    public void dump() {
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram.Snapshot s = e.getValue().snapshot(true);
+            if (s.getCount() == 0) {
+                continue;
+            }
+            logger.info(String.format("[%d] %-17s count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d (us)",
+                    id, e.getKey(), s.getCount(), s.getMean() / 1000,
+                    s.getValueAtPercentile(50) / 1000, s.getValueAtPercentile(90) / 1000,
+                    s.getValueAtPercentile(99) / 1000, s.getMax() / 1000));
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            logger.info(String.format("[%d] %-17s value=%d", id, e.getKey(), e.getValue().getAsLong()));
+        }
+    }
+
+    public void shutdown() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+        }
+    }
+}